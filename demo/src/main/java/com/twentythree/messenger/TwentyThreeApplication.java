@@ -3,9 +3,11 @@ package com.twentythree.messenger;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing; // For created_at, updated_at
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableJpaAuditing // Enable JPA Auditing
+@EnableScheduling // Chat expiry (ChatExpiryWheel, ChatServiceImpl.processExpiredChats)
 public class TwentyThreeApplication {
     public static void main(String[] args) {
         SpringApplication.run(TwentyThreeApplication.class, args);
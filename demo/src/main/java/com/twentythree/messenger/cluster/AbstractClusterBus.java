@@ -0,0 +1,262 @@
+package com.twentythree.messenger.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Batching, chunking and de-duplication shared by the transports.
+ * <p>
+ * Publishes are queued and a flusher thread packs them into JSON arrays of at most
+ * {@link #maxPayloadBytes()} bytes, one {@link #send(String)} per array. Bodies that don't fit
+ * are split into parts and reassembled on receive. Receivers drop their own messages and anything
+ * at or below the last seq seen from the same origin, so a redelivered payload is harmless.
+ */
+public abstract class AbstractClusterBus implements ClusterBus {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final TypeReference<List<ClusterMessage>> BATCH_TYPE = new TypeReference<>() {};
+    private static final int MAX_TRACKED_ORIGINS = 1024;
+
+    private final ObjectMapper objectMapper;
+    private final long flushIntervalMs;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong seq = new AtomicLong();
+    private final LinkedBlockingQueue<ClusterMessage> outbox = new LinkedBlockingQueue<>();
+    private final List<Consumer<ClusterMessage>> receivers = new CopyOnWriteArrayList<>();
+
+    // Guarded by "this" (receive side)
+    private final Map<String, Long> lastSeqByOrigin = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_ORIGINS;
+        }
+    };
+    private final Map<String, String[]> partialBodies = new HashMap<>();
+
+    private final Counter publishedMessages;
+    private final Counter sentPayloads;
+    private final Counter receivedMessages;
+    private final Counter duplicateMessages;
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    protected AbstractClusterBus(ObjectMapper objectMapper, MeterRegistry meterRegistry, long flushIntervalMs) {
+        this.objectMapper = objectMapper;
+        this.flushIntervalMs = flushIntervalMs;
+        String transport = transportName();
+        this.publishedMessages = Counter.builder("cluster.bus.messages").tag("direction", "published").tag("transport", transport).register(meterRegistry);
+        this.receivedMessages = Counter.builder("cluster.bus.messages").tag("direction", "received").tag("transport", transport).register(meterRegistry);
+        this.duplicateMessages = Counter.builder("cluster.bus.messages").tag("direction", "duplicate").tag("transport", transport).register(meterRegistry);
+        this.sentPayloads = Counter.builder("cluster.bus.payloads").tag("transport", transport).register(meterRegistry);
+    }
+
+    /** Transport-level send of one packed JSON array. */
+    protected abstract void send(String payload) throws Exception;
+
+    /** Largest payload (UTF-8 bytes) the transport accepts. */
+    protected abstract int maxPayloadBytes();
+
+    protected abstract String transportName();
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void publish(String destination, String body) {
+        outbox.add(new ClusterMessage(nodeId, seq.incrementAndGet(), destination, body, 0, 1));
+        publishedMessages.increment();
+    }
+
+    @Override
+    public void subscribe(Consumer<ClusterMessage> receiver) {
+        receivers.add(receiver);
+    }
+
+    @PostConstruct
+    protected void start() {
+        running = true;
+        flusher = new Thread(this::flushLoop, "cluster-bus-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("Cluster bus '{}' started, node id {}", transportName(), nodeId);
+    }
+
+    @PreDestroy
+    protected void stop() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Transport-level receive of one payload produced by {@link #send(String)} on some node. */
+    protected synchronized void receive(String payload) {
+        List<ClusterMessage> batch;
+        try {
+            batch = objectMapper.readValue(payload, BATCH_TYPE);
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed cluster bus payload: {}", e.getMessage());
+            return;
+        }
+        for (ClusterMessage message : batch) {
+            if (nodeId.equals(message.origin())) {
+                continue;
+            }
+            ClusterMessage complete = reassemble(message);
+            if (complete == null) {
+                continue;
+            }
+            Long last = lastSeqByOrigin.get(complete.origin());
+            if (last != null && complete.seq() <= last) {
+                duplicateMessages.increment();
+                continue;
+            }
+            lastSeqByOrigin.put(complete.origin(), complete.seq());
+            receivedMessages.increment();
+            for (Consumer<ClusterMessage> receiver : receivers) {
+                try {
+                    receiver.accept(complete);
+                } catch (RuntimeException e) {
+                    logger.error("Cluster bus receiver failed for {}", complete.destination(), e);
+                }
+            }
+        }
+    }
+
+    private ClusterMessage reassemble(ClusterMessage message) {
+        if (message.parts() <= 1) {
+            return message;
+        }
+        String key = message.origin() + ':' + message.seq();
+        if (partialBodies.size() > MAX_TRACKED_ORIGINS && !partialBodies.containsKey(key)) {
+            partialBodies.clear(); // Parts lost in transit would otherwise accumulate forever
+        }
+        String[] parts = partialBodies.computeIfAbsent(key, k -> new String[message.parts()]);
+        parts[message.part()] = message.body();
+        for (String part : parts) {
+            if (part == null) {
+                return null;
+            }
+        }
+        partialBodies.remove(key);
+        return message.withBody(String.join("", parts));
+    }
+
+    private void flushLoop() {
+        List<ClusterMessage> pending = new ArrayList<>();
+        while (running) {
+            try {
+                ClusterMessage first = outbox.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                pending.add(first);
+                if (flushIntervalMs > 0) {
+                    Thread.sleep(flushIntervalMs); // Let a burst accumulate into one payload
+                }
+                outbox.drainTo(pending);
+                flush(pending);
+                pending.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void flush(List<ClusterMessage> messages) {
+        int limit = maxPayloadBytes();
+        StringBuilder batch = new StringBuilder(Math.min(limit, 8192));
+        int batchBytes = 2; // brackets
+        for (ClusterMessage message : messages) {
+            for (String json : encode(message, limit)) {
+                int bytes = json.getBytes(StandardCharsets.UTF_8).length;
+                if (batch.length() > 0 && batchBytes + 1 + bytes > limit) {
+                    sendBatch(batch);
+                    batch.setLength(0);
+                    batchBytes = 2;
+                }
+                if (batch.length() > 0) {
+                    batch.append(',');
+                    batchBytes++;
+                }
+                batch.append(json);
+                batchBytes += bytes;
+            }
+        }
+        if (batch.length() > 0) {
+            sendBatch(batch);
+        }
+    }
+
+    private void sendBatch(StringBuilder batch) {
+        try {
+            send("[" + batch + "]");
+            sentPayloads.increment();
+        } catch (Exception e) {
+            logger.error("Cluster bus send failed, dropping payload: {}", e.getMessage());
+        }
+    }
+
+    // One JSON object, or several parts if the body is too big for a single payload
+    private List<String> encode(ClusterMessage message, int limit) {
+        String json = toJson(message);
+        if (json.getBytes(StandardCharsets.UTF_8).length + 2 <= limit) {
+            return List.of(json);
+        }
+        // Worst case a char costs 6 bytes escaped (\\uXXXX); leave room for the envelope fields
+        int chunkChars = Math.max(1, (limit - 2 - toJson(message.withBody("")).length() - 32) / 6);
+        String body = message.body();
+        List<String> chunks = new ArrayList<>();
+        for (int from = 0; from < body.length(); ) {
+            int to = Math.min(body.length(), from + chunkChars);
+            if (to < body.length() && Character.isHighSurrogate(body.charAt(to - 1))) {
+                to--; // Don't split a surrogate pair
+            }
+            chunks.add(body.substring(from, to));
+            from = to;
+        }
+        List<String> parts = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            parts.add(toJson(new ClusterMessage(message.origin(), message.seq(), message.destination(), chunks.get(i), i, chunks.size())));
+        }
+        return parts;
+    }
+
+    private String toJson(ClusterMessage message) {
+        try {
+            return objectMapper.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize cluster message", e);
+        }
+    }
+}
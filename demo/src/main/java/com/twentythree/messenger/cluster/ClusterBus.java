@@ -0,0 +1,21 @@
+package com.twentythree.messenger.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Fan-out between application instances, so a broadcast published on one node reaches
+ * WebSocket subscribers connected to any node.
+ * Delivery is at-most-once and ordered per publishing node; messages published while a node
+ * is disconnected from the bus are not replayed (clients catch up with delta sync).
+ */
+public interface ClusterBus {
+
+    /** Sends {@code body} for {@code destination} to all other nodes. Publishes are batched. */
+    void publish(String destination, String body);
+
+    /** Registers a receiver for messages published by other nodes; own messages are never delivered back. */
+    void subscribe(Consumer<ClusterMessage> receiver);
+
+    /** Random per-process id stamped on everything this node publishes. */
+    String getNodeId();
+}
@@ -0,0 +1,19 @@
+package com.twentythree.messenger.cluster;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Wire format of one bus message. Short property names keep NOTIFY payloads small.
+ * A body too large for one transport payload is split into {@code parts} chunks sharing origin and seq.
+ */
+public record ClusterMessage(@JsonProperty("o") String origin,
+                             @JsonProperty("s") long seq,
+                             @JsonProperty("d") String destination,
+                             @JsonProperty("b") String body,
+                             @JsonProperty("p") int part,
+                             @JsonProperty("n") int parts) {
+
+    public ClusterMessage withBody(String body) {
+        return new ClusterMessage(origin, seq, destination, body, 0, 1);
+    }
+}
@@ -0,0 +1,57 @@
+package com.twentythree.messenger.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Loopback transport: every bus in this JVM shares one static hub, so tests can start several
+ * application contexts ("nodes") in one process and see cross-node fan-out.
+ * With a single context it is effectively a no-op, which makes it the default.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.bus", havingValue = "in-memory", matchIfMissing = true)
+public class InMemoryClusterBus extends AbstractClusterBus {
+
+    private static final List<InMemoryClusterBus> HUB = new CopyOnWriteArrayList<>();
+
+    public InMemoryClusterBus(ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.cluster.flush-interval-ms:5}") long flushIntervalMs) {
+        super(objectMapper, meterRegistry, flushIntervalMs);
+    }
+
+    @Override
+    protected void start() {
+        super.start();
+        HUB.add(this);
+    }
+
+    @Override
+    protected void stop() {
+        HUB.remove(this);
+        super.stop();
+    }
+
+    @Override
+    protected void send(String payload) {
+        for (InMemoryClusterBus bus : HUB) {
+            bus.receive(payload);
+        }
+    }
+
+    @Override
+    protected int maxPayloadBytes() {
+        return PostgresClusterBus.MAX_NOTIFY_PAYLOAD_BYTES; // Same packing as production
+    }
+
+    @Override
+    protected String transportName() {
+        return "in-memory";
+    }
+}
@@ -0,0 +1,244 @@
+package com.twentythree.messenger.cluster;
+
+import com.twentythree.messenger.entity.JobLease;
+import com.twentythree.messenger.exception.LeaseLostException;
+import com.twentythree.messenger.repository.JobLeaseRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Leader election per background job, so a {@code @Scheduled} job does its work on one node only however many
+ * instances run. Backed by the {@code job_leases} table (see {@link JobLeaseRepository}), so it works on any
+ * database the app runs on.
+ * <p>
+ * A node that takes a job's lease holds it for {@code lease-ms} and renews it in the background every third of that.
+ * If the node dies, the lease lapses and the next node whose job fires takes it over: the job fails over within
+ * {@code lease-ms} plus one retry ({@code lease-ms / 4}). Followers only go to the database when their job fires,
+ * and at most once per retry interval.
+ * <p>
+ * Each takeover increments the job's fencing token. A job that writes calls {@link #checkFence} in its transaction:
+ * it fails with {@link LeaseLostException} if the lease has moved on (e.g. this node stalled past its lease), and
+ * otherwise keeps the lease row locked, so no takeover can complete until that transaction has ended.
+ * Leases compare node clocks, which must agree to well within {@code lease-ms}.
+ * <p>
+ * Metrics: {@code jobs.lease.attempts{job,result}} with result acquired, renewed, held_elsewhere or lost,
+ * {@code jobs.lease.acquire.time{job}}, {@code jobs.lease.fenced{job}} and {@code jobs.lease.held{job}} (1 on the leader).
+ */
+@Component
+public class JobLeases {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobLeases.class);
+
+    /** What a job's work runs under; pass it to {@link #checkFence}. */
+    public record Lease(String job, long fencingToken) {
+    }
+
+    private record Held(long fencingToken, long leaseUntilMillis) {
+    }
+
+    private final JobLeaseRepository jobLeaseRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final String owner;
+    private final long leaseMs;
+    private final long retryMs;
+    private final Map<String, Held> held = new ConcurrentHashMap<>();
+    private final Map<String, Long> nextAttemptMillis = new ConcurrentHashMap<>();
+    private final Set<String> knownJobs = ConcurrentHashMap.newKeySet(); // Jobs whose lease row is known to exist
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "job-lease-renewer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public JobLeases(JobLeaseRepository jobLeaseRepository, PlatformTransactionManager transactionManager,
+                     ClusterBus clusterBus, MeterRegistry meterRegistry,
+                     @Value("${app.jobs.lease.lease-ms:15000}") long leaseMs) {
+        this(jobLeaseRepository, transactionManager, meterRegistry, clusterBus.getNodeId(), leaseMs);
+    }
+
+    // The owner is the node id; tests stand up several "nodes" against one database
+    JobLeases(JobLeaseRepository jobLeaseRepository, PlatformTransactionManager transactionManager,
+              MeterRegistry meterRegistry, String owner, long leaseMs) {
+        this.jobLeaseRepository = jobLeaseRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+        this.owner = owner;
+        this.leaseMs = leaseMs;
+        this.retryMs = Math.max(1, leaseMs / 4);
+    }
+
+    @PostConstruct
+    void start() {
+        long renewEveryMs = Math.max(1, leaseMs / 3);
+        renewer.scheduleWithFixedDelay(this::renewAll, renewEveryMs, renewEveryMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        renewer.shutdownNow();
+        // Let the others take over now rather than after the lease runs out
+        held.forEach((job, lease) -> {
+            try {
+                transactionTemplate.executeWithoutResult(status ->
+                        jobLeaseRepository.release(job, owner, lease.fencingToken(), LocalDateTime.now()));
+            } catch (RuntimeException e) {
+                logger.warn("Could not release lease of job '{}': {}", job, e.getMessage());
+            }
+        });
+        held.clear();
+    }
+
+    /**
+     * Runs {@code work} if this node holds the job's lease or can take it over; returns whether it ran.
+     * A {@link LeaseLostException} from the work (see {@link #checkFence}) gives up the lease instead of propagating.
+     */
+    public boolean runIfLeader(String job, Consumer<Lease> work) {
+        Lease lease = acquire(job);
+        if (lease == null) {
+            return false;
+        }
+        try {
+            work.accept(lease);
+        } catch (LeaseLostException e) {
+            logger.warn("Job '{}' lost its lease while running: {}", job, e.getMessage());
+            held.remove(job);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Confirms, inside the caller's transaction, that {@code lease} is still the job's current lease, and locks it
+     * until that transaction ends. Throws {@link LeaseLostException} otherwise, rolling the work back.
+     */
+    public void checkFence(Lease lease) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("checkFence must run inside the transaction it protects");
+        }
+        if (jobLeaseRepository.fence(lease.job(), owner, lease.fencingToken(), LocalDateTime.now()) == 0) {
+            meterRegistry.counter("jobs.lease.fenced", "job", lease.job()).increment();
+            held.remove(lease.job());
+            throw new LeaseLostException("Lease of job '" + lease.job() + "' with fencing token "
+                    + lease.fencingToken() + " is no longer current");
+        }
+    }
+
+    /** Whether this node currently believes it is the job's leader. */
+    public boolean isLeader(String job) {
+        Held lease = held.get(job);
+        return lease != null && System.currentTimeMillis() < lease.leaseUntilMillis();
+    }
+
+    private Lease acquire(String job) {
+        long now = System.currentTimeMillis();
+        Held current = held.get(job);
+        if (current != null && now < current.leaseUntilMillis()) {
+            return new Lease(job, current.fencingToken()); // Kept fresh by the renewer, no query
+        }
+        if (now < nextAttemptMillis.getOrDefault(job, 0L)) {
+            return null;
+        }
+        registerGauge(job);
+        long startedAt = System.nanoTime();
+        try {
+            Held taken = transactionTemplate.execute(status -> takeOver(job, now));
+            knownJobs.add(job);
+            if (taken == null) {
+                held.remove(job);
+                nextAttemptMillis.put(job, now + retryMs);
+                attempt(job, "held_elsewhere");
+                return null;
+            }
+            held.put(job, taken);
+            nextAttemptMillis.remove(job);
+            attempt(job, "acquired");
+            logger.info("Node {} took the lease of job '{}' (fencing token {})", owner, job, taken.fencingToken());
+            return new Lease(job, taken.fencingToken());
+        } catch (DataIntegrityViolationException e) {
+            knownJobs.add(job); // Another node created the row at the same moment; take it next time
+            nextAttemptMillis.put(job, now + retryMs);
+            return null;
+        } finally {
+            meterRegistry.timer("jobs.lease.acquire.time", "job", job).record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Held takeOver(String job, long nowMillis) {
+        LocalDateTime now = toDateTime(nowMillis);
+        if (!knownJobs.contains(job) && !jobLeaseRepository.existsById(job)) {
+            JobLease lease = new JobLease();
+            lease.setJobName(job);
+            lease.setFencingToken(0);
+            lease.setLeaseUntil(now.minusSeconds(1)); // Created expired, then taken below like any other
+            jobLeaseRepository.saveAndFlush(lease);
+        }
+        long leaseUntilMillis = nowMillis + leaseMs;
+        if (jobLeaseRepository.takeOver(job, owner, now, toDateTime(leaseUntilMillis)) == 0) {
+            return null;
+        }
+        long fencingToken = jobLeaseRepository.findFencingToken(job, owner)
+                .orElseThrow(() -> new IllegalStateException("Lease of job '" + job + "' vanished"));
+        return new Held(fencingToken, leaseUntilMillis);
+    }
+
+    private void renewAll() {
+        held.forEach((job, lease) -> {
+            long now = System.currentTimeMillis();
+            long leaseUntilMillis = now + leaseMs;
+            try {
+                Integer renewed = transactionTemplate.execute(status -> jobLeaseRepository.renew(
+                        job, owner, lease.fencingToken(), toDateTime(now), toDateTime(leaseUntilMillis)));
+                if (renewed != null && renewed > 0) {
+                    held.replace(job, lease, new Held(lease.fencingToken(), leaseUntilMillis));
+                    attempt(job, "renewed");
+                } else {
+                    held.remove(job, lease);
+                    attempt(job, "lost");
+                    logger.warn("Node {} lost the lease of job '{}' (fencing token {})", owner, job, lease.fencingToken());
+                }
+            } catch (RuntimeException e) {
+                // Keep it until it runs out locally; the next round tries again
+                logger.warn("Could not renew lease of job '{}': {}", job, e.getMessage());
+            }
+        });
+    }
+
+    private void attempt(String job, String result) {
+        meterRegistry.counter("jobs.lease.attempts", "job", job, "result", result).increment();
+    }
+
+    private void registerGauge(String job) {
+        Gauge.builder("jobs.lease.held", this, leases -> leases.isLeader(job) ? 1 : 0)
+                .tag("job", job)
+                .description("1 while this node holds the job's lease")
+                .register(meterRegistry); // Idempotent per job
+    }
+
+    private static LocalDateTime toDateTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,127 @@
+package com.twentythree.messenger.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * Transport over PostgreSQL LISTEN/NOTIFY, so several instances can share the database as their bus.
+ * Publishing uses pooled connections ({@code SELECT pg_notify}); listening holds one dedicated connection
+ * outside the pool and reconnects with backoff. Notifications sent while it is reconnecting are lost.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.bus", havingValue = "postgres")
+public class PostgresClusterBus extends AbstractClusterBus {
+
+    // NOTIFY payloads must be shorter than 8000 bytes
+    static final int MAX_NOTIFY_PAYLOAD_BYTES = 7900;
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+    private static final long MAX_RECONNECT_BACKOFF_MS = 30000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String channel;
+    private final String url;
+    private final String username;
+    private final String password;
+
+    private volatile boolean listening;
+    private Thread listener;
+
+    public PostgresClusterBus(ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry,
+                              JdbcTemplate jdbcTemplate,
+                              @Value("${app.cluster.flush-interval-ms:5}") long flushIntervalMs,
+                              @Value("${app.cluster.postgres.channel:twentythree_fanout}") String channel,
+                              @Value("${spring.datasource.url}") String url,
+                              @Value("${spring.datasource.username}") String username,
+                              @Value("${spring.datasource.password}") String password) {
+        super(objectMapper, meterRegistry, flushIntervalMs);
+        if (!CHANNEL_NAME.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid app.cluster.postgres.channel: " + channel);
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.channel = channel;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    protected void start() {
+        super.start();
+        listening = true;
+        listener = new Thread(this::listenLoop, "cluster-bus-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @Override
+    protected void stop() {
+        listening = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+        super.stop();
+    }
+
+    @Override
+    protected void send(String payload) {
+        jdbcTemplate.query("SELECT pg_notify(?, ?)", rs -> null, channel, payload);
+    }
+
+    @Override
+    protected int maxPayloadBytes() {
+        return MAX_NOTIFY_PAYLOAD_BYTES;
+    }
+
+    @Override
+    protected String transportName() {
+        return "postgres";
+    }
+
+    private void listenLoop() {
+        long backoffMs = 500;
+        while (listening) {
+            try (Connection connection = DriverManager.getConnection(url, username, password)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                logger.info("Listening on PostgreSQL channel {}", channel);
+                backoffMs = 500;
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (listening) {
+                    PGNotification[] notifications = pgConnection.getNotifications(1000);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            receive(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!listening) {
+                    break;
+                }
+                logger.error("Cluster bus listener lost its connection, retrying in {} ms: {}", backoffMs, e.getMessage());
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoffMs = Math.min(backoffMs * 2, MAX_RECONNECT_BACKOFF_MS);
+            }
+        }
+    }
+}
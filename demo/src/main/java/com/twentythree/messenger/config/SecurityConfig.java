@@ -3,7 +3,9 @@ package com.twentythree.messenger.config;
 import com.twentythree.messenger.security.CustomUserDetailsService;
 import com.twentythree.messenger.security.JwtAuthenticationEntryPoint;
 import com.twentythree.messenger.security.JwtAuthenticationFilter;
+import jakarta.servlet.DispatcherType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -45,9 +47,17 @@ public class SecurityConfig {
     }
 
     @Bean
-    public PasswordEncoder passwordEncoder() {
+    public PasswordEncoder passwordEncoder(@Value("${app.security.bcrypt.strength:10}") int strength) {
         // Используем BCrypt для хеширования паролей
-        return new BCryptPasswordEncoder();
+        return new BCryptPasswordEncoder(strength) {
+            // Хеши с любой другой стоимостью пересчитываются при следующем успешном входе
+            // (CustomUserDetailsService.updatePassword), так что strength можно менять без сброса паролей
+            @Override
+            public boolean upgradeEncoding(String encodedPassword) {
+                return encodedPassword != null && encodedPassword.length() > 7 && encodedPassword.charAt(6) == '$'
+                        && !encodedPassword.substring(4, 6).equals(String.format("%02d", strength));
+            }
+        };
     }
 
     @Bean
@@ -68,6 +78,8 @@ public class SecurityConfig {
                 .sessionCreationPolicy(SessionCreationPolicy.STATELESS) // Сессии не создаются, каждый запрос аутентифицируется по токену
             )
             .authorizeHttpRequests(authorize -> authorize
+                // Асинхронные ответы (DeferredResult/CompletableFuture) уже прошли проверку в исходном запросе
+                .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                 // Публичные эндпоинты, доступные без аутентификации
                 .requestMatchers(HttpMethod.POST, "/api/auth/**").permitAll() // Регистрация и логин
                 .requestMatchers(HttpMethod.GET, "/api/interests").permitAll() // Получение списка интересов
@@ -0,0 +1,21 @@
+package com.twentythree.messenger.config;
+
+import com.twentythree.messenger.security.CurrentUserEntityArgumentResolver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private CurrentUserEntityArgumentResolver currentUserEntityArgumentResolver;
+
+    @Override
+    public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+        resolvers.add(currentUserEntityArgumentResolver); // @CurrentUserEntity User
+    }
+}
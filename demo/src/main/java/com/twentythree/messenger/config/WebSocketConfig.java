@@ -1,15 +1,23 @@
 package com.twentythree.messenger.config; // Укажите ваш корректный пакет
 
 import com.twentythree.messenger.security.JwtChannelInterceptor; // <--- ИМПОРТИРУЕМ НАШ ИНТЕРЦЕПТОР
+import com.twentythree.messenger.websocket.CompactPayloadMessageConverter;
+import com.twentythree.messenger.websocket.CompactPayloadSessions;
+import com.twentythree.messenger.websocket.OutboundBackpressure;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
+import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.config.ChannelRegistration; // <--- НУЖЕН ДЛЯ РЕГИСТРАЦИИ ИНТЕРЦЕПТОРА
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import java.util.List;
 
 @Configuration
 @EnableWebSocketMessageBroker
@@ -22,17 +30,27 @@ import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerCo
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
     private final JwtChannelInterceptor jwtChannelInterceptor; // Инжектируем наш интерцептор
+    private final OutboundBackpressure outboundBackpressure;
+    private final CompactPayloadSessions compactPayloadSessions;
+
+    @Value("${app.websocket.message-size-limit:65536}")
+    private int messageSizeLimit;
 
     @Autowired
-    public WebSocketConfig(JwtChannelInterceptor jwtChannelInterceptor) {
+    public WebSocketConfig(JwtChannelInterceptor jwtChannelInterceptor, OutboundBackpressure outboundBackpressure,
+                           CompactPayloadSessions compactPayloadSessions) {
         this.jwtChannelInterceptor = jwtChannelInterceptor;
+        this.outboundBackpressure = outboundBackpressure;
+        this.compactPayloadSessions = compactPayloadSessions;
     }
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         // Клиенты подписываются на топики, начинающиеся с /topic (для общих чатов)
-        // или /queue (для персональных сообщений, если используются)
-        config.enableSimpleBroker("/topic", "/queue");
+        // или /queue (для персональных сообщений, если используются).
+        // /topic обслуживает ShardedTopicBrokerHandler (порядок сообщений внутри чата, без глобальной блокировки),
+        // простой брокер остается для /queue и отвечает на CONNECT/DISCONNECT.
+        config.enableSimpleBroker("/queue");
         // Сообщения от клиентов к серверу направляются на эндпоинты с префиксом /app
         config.setApplicationDestinationPrefixes("/app");
         // Для использования @SendToUser и client.subscribe('/user/queue/errors')
@@ -47,6 +65,25 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .withSockJS(); // Включаем SockJS как fallback для браузеров без нативной поддержки WebSocket
     }
 
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Входящие фреймы больше лимита закрывают сессию
+        registration.setMessageSizeLimit(messageSizeLimit);
+        // Исходящая очередь каждой сессии с водяными знаками и политикой для медленных клиентов (OutboundBackpressure).
+        // Она заменяет ConcurrentWebSocketSessionDecorator Spring (см. BackpressureSubProtocolWebSocketHandler),
+        // поэтому sendTimeLimit/sendBufferSizeLimit Spring здесь не задаются - лимиты в app.websocket.outbound.*
+        // CompactPayloadSessions - ближе к сокету: переводит фреймы сессий в режиме CBOR в бинарные сообщения
+        registration.addDecoratorFactory(outboundBackpressure);
+        registration.addDecoratorFactory(compactPayloadSessions);
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // CBOR для сессий, выбравших компактную кодировку; остальные - стандартные конвертеры (JSON)
+        messageConverters.add(new CompactPayloadMessageConverter(compactPayloadSessions.getCborMapper(), compactPayloadSessions));
+        return true;
+    }
+
     // --- ВОТ ЗДЕСЬ ПРОИСХОДИТ ПОДКЛЮЧЕНИЕ ИНТЕРЦЕПТОРА ---
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
@@ -54,6 +91,8 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         // Он будет срабатывать для каждого сообщения (CONNECT, SEND, SUBSCRIBE и т.д.),
         // но наша логика в preSend сфокусирована на команде CONNECT.
         registration.interceptors(jwtChannelInterceptor);
+        // Согласование компактной кодировки (x-payload-encoding:cbor в CONNECT)
+        registration.interceptors(compactPayloadSessions);
     }
     // --- КОНЕЦ ПОДКЛЮЧЕНИЯ ---
 }
\ No newline at end of file
@@ -2,18 +2,24 @@ package com.twentythree.messenger.controller;
 
 import com.twentythree.messenger.dto.auth.JwtAuthResponse;
 import com.twentythree.messenger.dto.auth.LoginRequest;
+import com.twentythree.messenger.dto.auth.RefreshTokenRequest;
 import com.twentythree.messenger.dto.auth.RegistrationRequest;
+import com.twentythree.messenger.security.CurrentUser;
+import com.twentythree.messenger.security.UserPrincipal;
 import com.twentythree.messenger.service.AuthService;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.concurrent.CompletableFuture;
+
 @RestController
 @RequestMapping("/api/auth")
 public class AuthController {
@@ -21,17 +27,30 @@ public class AuthController {
     @Autowired
     private AuthService authService;
 
+    // Async: the request thread is released while the password is checked on the hashing pool
     @PostMapping("/login")
-    public ResponseEntity<JwtAuthResponse> authenticateUser(@Valid @RequestBody LoginRequest loginRequest) {
-        JwtAuthResponse jwtAuthResponse = authService.loginUser(loginRequest);
-        return ResponseEntity.ok(jwtAuthResponse);
+    public CompletableFuture<ResponseEntity<JwtAuthResponse>> authenticateUser(@Valid @RequestBody LoginRequest loginRequest) {
+        return authService.loginUser(loginRequest).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/register")
     // @ResponseStatus(HttpStatus.CREATED)
-    public ResponseEntity<?> registerUser(@Valid @RequestBody RegistrationRequest registrationRequest) {
-        String result = authService.registerUser(registrationRequest);
+    public CompletableFuture<ResponseEntity<?>> registerUser(@Valid @RequestBody RegistrationRequest registrationRequest) {
         // Could return a more structured response or just HTTP status
-        return new ResponseEntity<>(result, HttpStatus.CREATED);
+        return authService.registerUser(registrationRequest).thenApply(result -> new ResponseEntity<>(result, HttpStatus.CREATED));
+    }
+
+    // New access token (and the next refresh token) without a password check
+    @PostMapping("/refresh")
+    public ResponseEntity<JwtAuthResponse> refreshToken(@Valid @RequestBody RefreshTokenRequest refreshRequest) {
+        return ResponseEntity.ok(authService.refreshToken(refreshRequest.getRefreshToken()));
+    }
+
+    // Logs the user out everywhere: all previously issued tokens stop working
+    @PostMapping("/logout-all")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Void> logoutAll(@CurrentUser UserPrincipal currentUserPrincipal) {
+        authService.revokeAllTokens(currentUserPrincipal.getId());
+        return ResponseEntity.noContent().build();
     }
-}
\ No newline at end of file
+}
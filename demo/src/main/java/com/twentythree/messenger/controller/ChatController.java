@@ -2,18 +2,26 @@ package com.twentythree.messenger.controller;
 
 import com.twentythree.messenger.dto.chat.ChatCreateRequest;
 import com.twentythree.messenger.dto.chat.ChatDto;
-import com.twentythree.messenger.entity.User; // Assuming you have a way to get current user
+import com.twentythree.messenger.entity.User;
 import com.twentythree.messenger.exception.ResourceNotFoundException;
-import com.twentythree.messenger.repository.UserRepository;
-import com.twentythree.messenger.security.CurrentUser; // Custom annotation to inject UserPrincipal
-import com.twentythree.messenger.security.UserPrincipal; // Your UserDetails implementation
+import com.twentythree.messenger.matchmaking.MatchWaitQueue;
+import com.twentythree.messenger.security.CurrentUserEntity; // Injects the current User entity, loaded at most once per request
 import com.twentythree.messenger.service.ChatService;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 @RequestMapping("/api/chats")
@@ -22,36 +30,62 @@ public class ChatController {
 
     @Autowired
     private ChatService chatService;
+
     @Autowired
-    private UserRepository userRepository; // To fetch full User entity
+    private MatchWaitQueue matchWaitQueue;
 
-    // Helper to get User entity from UserPrincipal
-    private User getCurrentUserEntity(UserPrincipal currentUserPrincipal) {
-        return userRepository.findById(currentUserPrincipal.getId())
-                .orElseThrow(() -> new ResourceNotFoundException("User", "id", currentUserPrincipal.getId()));
-    }
+    @Value("${app.chats.wait-queue.request-timeout-ms:60000}")
+    private long waitRequestTimeoutMs;
+
+    private static final long SEATING_GRACE_MS = 5000; // Upper bound for the one transaction that seats a batch
 
     @PostMapping
     public ResponseEntity<ChatDto> createChat(@Valid @RequestBody ChatCreateRequest createRequest,
-                                              @CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
+                                              @CurrentUserEntity User user) { // Loaded: the DTO shows the creator's nickname
         ChatDto chatDto = chatService.createChat(createRequest, user);
         return new ResponseEntity<>(chatDto, HttpStatus.CREATED);
     }
 
     // "Join" button logic - user provides an interest, backend finds or creates a chat.
-    // For v1, let's assume user picks an interest and we try to find an existing chat for it.
+    // With no chat for the interest the request is held (not polled) until MatchWaitQueue seats the user in a new one.
     @PostMapping("/join/{interestId}")
-    public ResponseEntity<ChatDto> joinChatByInterest(@PathVariable Long interestId,
-                                                     @CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
-        ChatDto chatDto = chatService.joinChatByInterest(interestId, user);
-        return ResponseEntity.ok(chatDto);
+    public DeferredResult<ResponseEntity<ChatDto>> joinChatByInterest(@PathVariable Long interestId,
+                                                                     @CurrentUserEntity(fetch = false) User user) {
+        DeferredResult<ResponseEntity<ChatDto>> result = new DeferredResult<>(waitRequestTimeoutMs);
+        CompletableFuture<ChatDto> match = matchWaitQueue.joinOrWait(interestId, user, null);
+        match.whenComplete((chatDto, error) -> {
+            if (error == null) {
+                result.setResult(ResponseEntity.ok(chatDto));
+            } else if (!(error instanceof CancellationException)) {
+                result.setErrorResult(error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+        result.onTimeout(() -> {
+            if (matchWaitQueue.cancel(user.getId(), match)) {
+                result.setErrorResult(new ResourceNotFoundException("Chat", "interest", interestId + " (no chat formed in time)"));
+                return;
+            }
+            // Taken for seating just before the timeout: answer with the chat they now hold, not a 404
+            try {
+                result.setResult(ResponseEntity.ok(match.get(SEATING_GRACE_MS, TimeUnit.MILLISECONDS)));
+            } catch (ExecutionException e) {
+                result.setErrorResult(e.getCause());
+            } catch (InterruptedException | TimeoutException e) {
+                result.setErrorResult(e);
+            }
+        });
+        result.onError(error -> matchWaitQueue.cancel(user.getId(), match)); // Client went away
+        return result;
     }
     
+    // Joins the open chat (any interest) whose participants share the most of the user's profile interests
+    @PostMapping("/join/best-match")
+    public ResponseEntity<ChatDto> joinBestMatch(@CurrentUserEntity(fetch = false) User user) {
+        return ResponseEntity.ok(chatService.joinBestMatch(user));
+    }
+
     @GetMapping("/current")
-    public ResponseEntity<ChatDto> getCurrentActiveChat(@CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
+    public ResponseEntity<ChatDto> getCurrentActiveChat(@CurrentUserEntity(fetch = false) User user) {
         ChatDto chatDto = chatService.getCurrentChatForUser(user);
         if (chatDto == null) {
             return ResponseEntity.noContent().build(); // Or 404 if a chat is always expected
@@ -61,16 +95,14 @@ public class ChatController {
 
     @GetMapping("/{chatId}")
     public ResponseEntity<ChatDto> getChatDetails(@PathVariable Long chatId,
-                                                  @CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
+                                                  @CurrentUserEntity(fetch = false) User user) {
         ChatDto chatDto = chatService.getChatDetails(chatId, user);
         return ResponseEntity.ok(chatDto);
     }
 
     @PostMapping("/{chatId}/leave")
     public ResponseEntity<?> leaveChat(@PathVariable Long chatId,
-                                       @CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
+                                       @CurrentUserEntity(fetch = false) User user) {
         chatService.leaveChat(chatId, user);
         return ResponseEntity.ok("Successfully left the chat.");
     }
@@ -0,0 +1,62 @@
+package com.twentythree.messenger.controller;
+
+import com.twentythree.messenger.matchmaking.MatchWaitQueue;
+import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.security.UserPrincipal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Controller;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+@Controller
+public class MatchController {
+
+    @Autowired
+    private MatchWaitQueue matchWaitQueue;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    // Клиент шлет на /app/match/{interestId}; чат (сразу или когда MatchWaitQueue его создаст) приходит
+    // только в эту сессию на /user/queue/match, ошибка - на /user/queue/errors. Без опроса сервера.
+    @MessageMapping("/match/{interestId}")
+    public void match(@DestinationVariable Long interestId, SimpMessageHeaderAccessor headerAccessor) {
+        Authentication authentication = (Authentication) headerAccessor.getUser();
+        if (authentication == null || !(authentication.getPrincipal() instanceof UserPrincipal principal)) {
+            throw new AccessDeniedException("User not authenticated for WebSocket action.");
+        }
+        String sessionId = headerAccessor.getSessionId();
+        try {
+            matchWaitQueue.joinOrWait(interestId, userRepository.getReferenceById(principal.getId()), sessionId)
+                    .whenComplete((chatDto, error) -> {
+                        if (error == null) {
+                            sendToSession(sessionId, "/queue/match", chatDto);
+                        } else if (!(error instanceof CancellationException)) {
+                            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                            sendToSession(sessionId, "/queue/errors", "An error occurred: " + cause.getMessage());
+                        }
+                    });
+        } catch (RuntimeException e) {
+            sendToSession(sessionId, "/queue/errors", "An error occurred: " + e.getMessage());
+        }
+    }
+
+    // Как @SendToUser(broadcast = false): только в сессию, приславшую запрос
+    private void sendToSession(String sessionId, String destination, Object payload) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setLeaveMutable(true);
+        messagingTemplate.convertAndSendToUser(sessionId, destination, payload, headers.getMessageHeaders());
+    }
+}
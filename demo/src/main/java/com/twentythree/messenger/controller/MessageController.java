@@ -1,19 +1,27 @@
 package com.twentythree.messenger.controller;
 
+import com.twentythree.messenger.dto.message.MessageDeltaSync;
 import com.twentythree.messenger.dto.message.MessageDto;
+import com.twentythree.messenger.dto.message.MessageHistoryPage;
 import com.twentythree.messenger.dto.message.MessageSendRequest;
+import com.twentythree.messenger.dto.message.MessageSyncRequest;
 import com.twentythree.messenger.entity.User;
 import com.twentythree.messenger.exception.ResourceNotFoundException;
 import com.twentythree.messenger.repository.UserRepository;
-import com.twentythree.messenger.security.CurrentUser; // Используется для HTTP эндпоинта
+import com.twentythree.messenger.security.CurrentUserEntity; // User для HTTP эндпоинтов, не более одного запроса к БД
+import com.twentythree.messenger.security.SenderSnapshot;
 import com.twentythree.messenger.security.UserPrincipal;
 import com.twentythree.messenger.service.MessageService;
+import com.twentythree.messenger.util.AppConstants;
+import com.twentythree.messenger.websocket.SenderSnapshotSessions;
 
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageExceptionHandler; // Для обработки исключений в WebSocket
@@ -27,12 +35,17 @@ import org.springframework.security.access.AccessDeniedException; // Для яв
 import org.springframework.security.access.prepost.PreAuthorize; // Для HTTP эндпоинтов
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Controller; // Для WebSocket
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable; // Используйте это для HTTP
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController; // Для HTTP
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
 @Slf4j
 @Controller // Основная аннотация для WebSocket-хендлеров
 @RestController // Добавляем для HTTP эндпоинтов в этом же классе
@@ -47,44 +60,67 @@ public class MessageController {
     @Autowired
     private SimpMessagingTemplate messagingTemplate; // Для гибкой отправки сообщений
 
-    // Helper для получения User из UserPrincipal (для HTTP эндпоинтов)
-    private User getUserFromPrincipal(UserPrincipal principal) {
-        if (principal == null) {
-            throw new AccessDeniedException("User principal is null. Authentication required.");
-        }
-        return userRepository.findById(principal.getId())
-                .orElseThrow(() -> new ResourceNotFoundException("User", "id", principal.getId()));
-    }
-
-
-    // WebSocket endpoint for sending messages
-    // Клиент отправляет на /app/chat/{chatId}/send
-    // Сообщения будут разосланы сервисом через SimpMessagingTemplate на /topic/chat/{chatId}
-    @MessageMapping("/chat/{chatId}/send")
-    public void sendMessage(@DestinationVariable Long chatId, // @DestinationVariable для частей пути в @MessageMapping
-                            @Payload MessageSendRequest messageRequest,
-                            SimpMessageHeaderAccessor headerAccessor) { // SimpMessageHeaderAccessor для доступа к Principal
+    @Autowired
+    private SenderSnapshotSessions senderSnapshotSessions; // Отправитель WebSocket-сессии, снятый при CONNECT
 
+    // Helper для получения User из STOMP-сессии (Principal выставляется JwtChannelInterceptor при CONNECT)
+    private User getUserFromWebSocketSession(SimpMessageHeaderAccessor headerAccessor, Long chatId) {
         Authentication authentication = (Authentication) headerAccessor.getUser();
         if (authentication == null || !authentication.isAuthenticated() || !(authentication.getPrincipal() instanceof UserPrincipal)) {
-            log.warn("Attempt to send message from unauthenticated WebSocket session to chat {}", chatId);
+            log.warn("Attempt to access chat {} from unauthenticated WebSocket session", chatId);
             // Можно отправить ошибку обратно пользователю, если это настроено
             // messagingTemplate.convertAndSendToUser(headerAccessor.getSessionId(), "/queue/errors", "Authentication required", headerAccessor.getMessageHeaders());
             throw new AccessDeniedException("User not authenticated for WebSocket action."); // Это будет обработано @MessageExceptionHandler
         }
 
         UserPrincipal principal = (UserPrincipal) authentication.getPrincipal();
-        User sender = userRepository.findById(principal.getId())
+        return userRepository.findById(principal.getId())
                 .orElseThrow(() -> {
                     log.error("User with ID {} not found from principal in WebSocket context.", principal.getId());
                     return new ResourceNotFoundException("User", "id", principal.getId());
                 });
+    }
 
-        log.info("User {} sending message to chat {}", sender.getNickname(), chatId);
+    // WebSocket endpoint for sending messages
+    // Клиент отправляет на /app/chat/{chatId}/send
+    // Сообщения будут разосланы сервисом через SimpMessagingTemplate на /topic/chat/{chatId}
+    @MessageMapping("/chat/{chatId}/send")
+    public void sendMessage(@DestinationVariable Long chatId, // @DestinationVariable для частей пути в @MessageMapping
+                            @Payload MessageSendRequest messageRequest,
+                            SimpMessageHeaderAccessor headerAccessor) { // SimpMessageHeaderAccessor для доступа к Principal
+
+        // Снимок отправителя сохранен в сессии при CONNECT - без запроса к БД на каждое сообщение
+        SenderSnapshot sender = senderSnapshotSessions.get(headerAccessor);
+        if (sender == null) {
+            sender = SenderSnapshot.of(getUserFromWebSocketSession(headerAccessor, chatId));
+        }
+
+        log.info("User {} sending message to chat {}", sender.nickname(), chatId);
         // Сервис сохранит сообщение и сам вызовет messagingTemplate.convertAndSend("/topic/chat/" + chatId, messageDto);
         messageService.saveAndBroadcastMessage(chatId, sender, messageRequest);
     }
 
+    // WebSocket endpoint for catching up after a reconnect
+    // Клиент отправляет на /app/chat/{chatId}/sync id последнего полученного сообщения,
+    // ответ приходит только в запросившую сессию на /user/queue/sync (в ее кодировке, JSON или CBOR)
+    @MessageMapping("/chat/{chatId}/sync")
+    @SendToUser(destinations = "/queue/sync", broadcast = false)
+    public MessageDeltaSync syncMessages(@DestinationVariable Long chatId,
+                                         @Payload MessageSyncRequest syncRequest,
+                                         SimpMessageHeaderAccessor headerAccessor) {
+        User user = getUserFromWebSocketSession(headerAccessor, chatId);
+        return messageService.getMessagesSince(chatId, user, syncRequest.getLastSeenMessageId());
+    }
+
+    // Same catch-up over HTTP: messages after the given id, or tooFarBehind=true if the client should reload
+    @GetMapping("/api/chats/{chatId}/messages/since")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<MessageDeltaSync> getMessagesSince(@PathVariable Long chatId,
+                                                             @RequestParam("after") Long lastSeenMessageId,
+                                                             @CurrentUserEntity(fetch = false) User user) {
+        return ResponseEntity.ok(messageService.getMessagesSince(chatId, user, lastSeenMessageId));
+    }
+
     // HTTP endpoint for uploading images for chat messages
     // Клиент сначала загружает изображение сюда, получает URL,
     // затем отправляет WebSocket сообщение типа IMAGE с этим URL.
@@ -92,8 +128,7 @@ public class MessageController {
     @PreAuthorize("isAuthenticated()") // Эта аннотация должна работать для HTTP эндпоинтов
     public ResponseEntity<MessageDto> uploadChatMessageImage(@PathVariable Long chatId, // @PathVariable для HTTP
                                                              @RequestParam("file") MultipartFile file,
-                                                             @CurrentUser UserPrincipal currentUserPrincipal) { // @CurrentUser для HTTP
-        User sender = getUserFromPrincipal(currentUserPrincipal);
+                                                             @CurrentUserEntity User sender) { // Загружен: DTO содержит ник и аватар отправителя
         log.info("User {} uploading image to chat {}", sender.getNickname(), chatId);
 
         // Сервис сохранит файл, создаст сообщение в БД и вернет DTO с URL.
@@ -103,6 +138,50 @@ public class MessageController {
         return ResponseEntity.ok(imageMessageDto);
     }
 
+    // HTTP endpoint for chat history, newest first.
+    // Первая страница - без "before"; следующая - с "before" = nextCursor из предыдущего ответа.
+    @GetMapping("/api/chats/{chatId}/messages")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<MessageHistoryPage> getMessageHistory(@PathVariable Long chatId,
+                                                                @RequestParam(required = false) String before,
+                                                                @RequestParam(defaultValue = AppConstants.DEFAULT_PAGE_SIZE) int limit,
+                                                                @CurrentUserEntity(fetch = false) User user) {
+        return ResponseEntity.ok(messageService.getMessageHistory(chatId, user, before, limit));
+    }
+
+    // HTTP endpoint for exporting a chat's full history as NDJSON (one message per line, oldest first).
+    // Пишется прямо в ответ по мере чтения из БД, память не зависит от размера чата.
+    @GetMapping("/api/chats/{chatId}/messages/export")
+    @PreAuthorize("isAuthenticated()")
+    public void exportMessages(@PathVariable Long chatId,
+                               @RequestParam(defaultValue = "false") boolean gzip,
+                               @CurrentUserEntity(fetch = false) User user,
+                               HttpServletResponse response) throws IOException {
+        log.info("User {} exporting messages of chat {}", user.getId(), chatId);
+
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"chat-" + chatId + "-messages.ndjson\"");
+        try {
+            if (gzip) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                GZIPOutputStream out = new GZIPOutputStream(response.getOutputStream(), 8192);
+                messageService.exportMessagesAsNdjson(chatId, user, out);
+                out.finish();
+            } else {
+                OutputStream out = response.getOutputStream();
+                messageService.exportMessagesAsNdjson(chatId, user, out);
+            }
+        } catch (RuntimeException e) {
+            // Not found / not authorized: drop the export headers so the error handler can send its JSON body
+            if (!response.isCommitted()) {
+                response.reset();
+            }
+            throw e;
+        }
+        response.flushBuffer();
+    }
+
     // Обработчик исключений для WebSocket сообщений в этом контроллере
     @MessageExceptionHandler
     @SendToUser("/queue/errors") // Отправляет сообщение об ошибке обратно пользователю, который ее вызвал
@@ -0,0 +1,28 @@
+package com.twentythree.messenger.controller;
+
+import com.twentythree.messenger.dto.presence.TypingRequest;
+import com.twentythree.messenger.presence.PresenceRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Controller;
+
+@Controller
+public class PresenceController {
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    // Клиент шлет на /app/chat/{chatId}/typing при наборе текста (и {"typing": false}, когда перестал).
+    // Только память: без запросов к БД, права проверяются по подписке сессии на /topic/chat/{chatId}.
+    // Подписчики получают сводку на /topic/chat/{chatId}/presence (см. PresenceRegistry)
+    @MessageMapping("/chat/{chatId}/typing")
+    public void typing(@DestinationVariable Long chatId,
+                       @Payload(required = false) TypingRequest typingRequest,
+                       SimpMessageHeaderAccessor headerAccessor) {
+        boolean typing = typingRequest == null || typingRequest.isTyping();
+        presenceRegistry.typing(chatId, headerAccessor.getSessionId(), typing);
+    }
+}
@@ -2,9 +2,6 @@ package com.twentythree.messenger.controller;
 
 import com.twentythree.messenger.dto.user.UserProfileDto;
 import com.twentythree.messenger.dto.user.UserUpdateDto;
-import com.twentythree.messenger.entity.User;
-import com.twentythree.messenger.exception.ResourceNotFoundException;
-import com.twentythree.messenger.repository.UserRepository;
 import com.twentythree.messenger.security.CurrentUser;
 import com.twentythree.messenger.security.UserPrincipal;
 import com.twentythree.messenger.service.FileStorageService;
@@ -25,38 +22,27 @@ public class UserController {
     @Autowired
     private UserService userService;
 
-    @Autowired
-    private UserRepository userRepository; // For direct fetch if needed by controller
-
     @Autowired
     private FileStorageService fileStorageService;
 
-    // Helper to get User entity from UserPrincipal
-    private User getCurrentUserEntity(UserPrincipal currentUserPrincipal) {
-        return userRepository.findById(currentUserPrincipal.getId())
-                .orElseThrow(() -> new ResourceNotFoundException("User", "id", currentUserPrincipal.getId()));
-    }
-
     @GetMapping("/me")
     public ResponseEntity<UserProfileDto> getCurrentUserProfile(@CurrentUser UserPrincipal currentUserPrincipal) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
-        UserProfileDto userProfileDto = userService.getUserProfile(user.getId());
+        // The service loads the user itself; only the id is needed here
+        UserProfileDto userProfileDto = userService.getUserProfile(currentUserPrincipal.getId());
         return ResponseEntity.ok(userProfileDto);
     }
 
     @PutMapping("/me")
     public ResponseEntity<UserProfileDto> updateUserProfile(@CurrentUser UserPrincipal currentUserPrincipal,
                                                             @Valid @RequestBody UserUpdateDto userUpdateDto) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
-        UserProfileDto updatedProfile = userService.updateUserProfile(user.getId(), userUpdateDto);
+        UserProfileDto updatedProfile = userService.updateUserProfile(currentUserPrincipal.getId(), userUpdateDto);
         return ResponseEntity.ok(updatedProfile);
     }
 
     @PostMapping("/me/avatar")
     public ResponseEntity<UserProfileDto> updateUserAvatar(@CurrentUser UserPrincipal currentUserPrincipal,
                                                            @RequestParam("file") MultipartFile file) {
-        User user = getCurrentUserEntity(currentUserPrincipal);
-        UserProfileDto updatedProfile = userService.updateUserAvatar(user.getId(), file);
+        UserProfileDto updatedProfile = userService.updateUserAvatar(currentUserPrincipal.getId(), file);
         return ResponseEntity.ok(updatedProfile);
     }
 
@@ -10,6 +10,7 @@ import lombok.NoArgsConstructor;
 public class JwtAuthResponse {
     private String accessToken;
     private String tokenType = "Bearer";
+    private String refreshToken; // Single use: exchange at /api/auth/refresh for a new pair
 
     public JwtAuthResponse(String accessToken) {
         this.accessToken = accessToken;
@@ -1,5 +1,7 @@
 package com.twentythree.messenger.dto.chat;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import com.twentythree.messenger.dto.message.MessageDto;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -12,6 +14,7 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChatDto {
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long id;
     private String chatName;
     private Long primaryInterestId;
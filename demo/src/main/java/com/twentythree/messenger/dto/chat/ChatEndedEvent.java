@@ -0,0 +1,23 @@
+package com.twentythree.messenger.dto.chat;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// Sent on /topic/chat/{chatId} when the chat expires; told apart from MessageDto frames by "event"
+@Data
+@NoArgsConstructor
+public class ChatEndedEvent {
+    private String event = "CHAT_ENDED";
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long chatId;
+    private LocalDateTime endedAt;
+
+    public ChatEndedEvent(Long chatId, LocalDateTime endedAt) {
+        this.chatId = chatId;
+        this.endedAt = endedAt;
+    }
+}
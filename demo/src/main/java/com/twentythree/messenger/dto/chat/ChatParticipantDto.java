@@ -1,5 +1,7 @@
 package com.twentythree.messenger.dto.chat;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -8,6 +10,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChatParticipantDto {
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long userId;
     private String nickname;
     private String profilePictureUrl;
@@ -0,0 +1,35 @@
+package com.twentythree.messenger.dto.message;
+
+import com.twentythree.messenger.exception.BadRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Position in a chat's history: (sentAt, messageId) of the last message the client has seen.
+ * Clients treat the encoded form as opaque.
+ */
+public record MessageCursor(LocalDateTime sentAt, Long messageId) {
+
+    private static final char SEPARATOR = '|';
+
+    public static MessageCursor of(MessageDto message) {
+        return new MessageCursor(message.getSentAt(), message.getId());
+    }
+
+    public String encode() {
+        String raw = sentAt.toString() + SEPARATOR + messageId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static MessageCursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.lastIndexOf(SEPARATOR);
+            return new MessageCursor(LocalDateTime.parse(raw.substring(0, separator)), Long.parseLong(raw.substring(separator + 1)));
+        } catch (RuntimeException e) {
+            throw new BadRequestException("Invalid message cursor.", e);
+        }
+    }
+}
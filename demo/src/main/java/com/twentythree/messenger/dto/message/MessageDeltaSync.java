@@ -0,0 +1,23 @@
+package com.twentythree.messenger.dto.message;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageDeltaSync {
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long chatId;
+    private List<MessageDto> messages; // Sent after the last-seen message, oldest first
+    private boolean tooFarBehind;      // Client missed too much (or sent an unknown id) and should reload the chat instead
+
+    public static MessageDeltaSync tooFarBehind(Long chatId) {
+        return new MessageDeltaSync(chatId, List.of(), true);
+    }
+}
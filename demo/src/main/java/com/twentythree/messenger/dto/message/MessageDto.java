@@ -1,5 +1,7 @@
 package com.twentythree.messenger.dto.message;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import com.twentythree.messenger.entity.enums.MessageType;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -7,12 +9,16 @@ import lombok.NoArgsConstructor;
 
 import java.time.LocalDateTime;
 
+// Entity ids go out as JSON strings: time-ordered ids exceed 2^53, past what a JavaScript number holds exactly
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class MessageDto {
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long id;
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long chatId;
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long senderId;
     private String senderNickname;
     private String senderProfilePictureUrl;
@@ -0,0 +1,16 @@
+package com.twentythree.messenger.dto.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageHistoryPage {
+    private List<MessageDto> messages; // Newest first
+    private String nextCursor;         // Pass as "before" to get the next (older) page; null when there is none
+    private boolean hasMore;
+}
@@ -0,0 +1,10 @@
+package com.twentythree.messenger.dto.message;
+
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+
+@Data
+public class MessageSyncRequest {
+    @NotNull(message = "Last seen message id cannot be null")
+    private Long lastSeenMessageId; // Newest message the client already has
+}
@@ -0,0 +1,20 @@
+package com.twentythree.messenger.dto.presence;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatPresenceDto {
+    @JsonSerialize(using = ToStringSerializer.class)
+    private Long chatId;
+    private int online;               // Users with the chat open, on all nodes
+    @JsonSerialize(contentUsing = ToStringSerializer.class)
+    private List<Long> typingUserIds; // Users typing right now
+}
@@ -0,0 +1,8 @@
+package com.twentythree.messenger.dto.presence;
+
+import lombok.Data;
+
+@Data
+public class TypingRequest {
+    private boolean typing = true; // false = stopped typing (sent the message or cleared the input)
+}
@@ -1,5 +1,7 @@
 package com.twentythree.messenger.dto.user;
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import com.twentythree.messenger.dto.InterestDto;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -13,6 +15,7 @@ import java.util.Set;
 @NoArgsConstructor
 @AllArgsConstructor
 public class UserProfileDto {
+    @JsonSerialize(using = ToStringSerializer.class)
     private Long id;
     private String nickname;
     private BigDecimal reputation;
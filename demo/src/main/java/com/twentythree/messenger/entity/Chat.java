@@ -1,6 +1,7 @@
 package com.twentythree.messenger.entity;
 
 import com.twentythree.messenger.entity.enums.MessageType;
+import com.twentythree.messenger.entity.id.GeneratedEntityId;
 import jakarta.persistence.*;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -15,15 +16,18 @@ import java.util.List;
 import java.util.Set;
 
 @Entity
-@Table(name = "chats")
+@Table(name = "chats", indexes = {
+    // Serves the expiry sweep and the startup load of the expiry wheel / match index (see ChatRepository)
+    @Index(name = "idx_chats_active_expires_at", columnList = "is_active, expires_at")
+})
 @Data
 @NoArgsConstructor
 @EqualsAndHashCode(exclude = {"creator", "primaryInterest", "participants", "messages"})
 @EntityListeners(AuditingEntityListener.class)
 public class Chat {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "chat_id")
+    @GeneratedEntityId
+    @Column(name = "chat_id", columnDefinition = "BIGINT GENERATED BY DEFAULT AS IDENTITY")
     private Long id;
 
     // Unique constraint in DB schema for creator_user_id ensures one chat per creator
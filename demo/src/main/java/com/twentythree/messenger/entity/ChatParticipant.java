@@ -1,5 +1,6 @@
 package com.twentythree.messenger.entity;
 
+import com.twentythree.messenger.entity.id.GeneratedEntityId;
 import jakarta.persistence.*;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -18,8 +19,8 @@ import java.time.LocalDateTime;
 @EntityListeners(AuditingEntityListener.class)
 public class ChatParticipant {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "chat_participant_id")
+    @GeneratedEntityId
+    @Column(name = "chat_participant_id", columnDefinition = "BIGINT GENERATED BY DEFAULT AS IDENTITY")
     private Long id;
 
     // Unique constraint in DB schema for user_id
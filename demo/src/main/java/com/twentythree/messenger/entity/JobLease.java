@@ -0,0 +1,33 @@
+package com.twentythree.messenger.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Who runs a cluster-wide background job: one row per job, held by one node until {@code leaseUntil}.
+ * Every change of holder bumps {@code fencingToken}, so work done under an older lease can be told apart.
+ */
+@Entity
+@Table(name = "job_leases")
+@Data
+@NoArgsConstructor
+public class JobLease {
+    @Id
+    @Column(name = "job_name", length = 100)
+    private String jobName;
+
+    @Column(name = "owner_node", length = 36)
+    private String ownerNode; // ClusterBus node id of the holder; null until first taken
+
+    @Column(name = "fencing_token", nullable = false)
+    private long fencingToken;
+
+    @Column(name = "lease_until", nullable = false)
+    private LocalDateTime leaseUntil;
+
+    @Column(name = "acquired_at")
+    private LocalDateTime acquiredAt;
+}
@@ -1,6 +1,7 @@
 package com.twentythree.messenger.entity;
 
 import com.twentythree.messenger.entity.enums.MessageType;
+import com.twentythree.messenger.entity.id.GeneratedEntityId;
 import jakarta.persistence.*;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -10,14 +11,17 @@ import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "messages")
+@Table(name = "messages", indexes = {
+    // Serves keyset pagination of a chat's history (see MessageRepository)
+    @Index(name = "idx_messages_chat_sent_at_id", columnList = "chat_id, sent_at, message_id")
+})
 @Data
 @NoArgsConstructor
 @EntityListeners(AuditingEntityListener.class)
 public class Message {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "message_id")
+    @GeneratedEntityId
+    @Column(name = "message_id", columnDefinition = "BIGINT GENERATED BY DEFAULT AS IDENTITY")
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
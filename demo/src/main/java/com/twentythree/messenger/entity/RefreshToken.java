@@ -0,0 +1,53 @@
+package com.twentythree.messenger.entity;
+
+import com.twentythree.messenger.entity.id.GeneratedEntityId;
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.jpa.domain.support.AuditingEntityListener;
+
+import java.time.LocalDateTime;
+
+/**
+ * An issued refresh token, stored only as its SHA-256 hash. Each refresh marks the presented token used and issues
+ * the next one in the same family; presenting a used token again revokes the whole family.
+ */
+@Entity
+@Table(name = "refresh_tokens", uniqueConstraints = {
+    @UniqueConstraint(columnNames = "token_hash")
+}, indexes = {
+    @Index(name = "idx_refresh_tokens_family", columnList = "family_id")
+})
+@Data
+@NoArgsConstructor
+@EntityListeners(AuditingEntityListener.class)
+public class RefreshToken {
+    @Id
+    @GeneratedEntityId
+    @Column(name = "refresh_token_id", columnDefinition = "BIGINT GENERATED BY DEFAULT AS IDENTITY")
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id", nullable = false)
+    private User user;
+
+    @Column(name = "token_hash", nullable = false, length = 64)
+    private String tokenHash; // Hex SHA-256 of the token, never the token itself
+
+    @Column(name = "family_id", nullable = false, length = 36)
+    private String familyId; // Shared by all tokens rotated from one login
+
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(name = "used_at")
+    private LocalDateTime usedAt; // Set when rotated; a used token presented again means it leaked
+
+    @Column(nullable = false)
+    private boolean revoked = false;
+
+    @CreatedDate
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+}
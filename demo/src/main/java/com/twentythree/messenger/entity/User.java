@@ -1,5 +1,6 @@
 package com.twentythree.messenger.entity;
 
+import com.twentythree.messenger.entity.id.GeneratedEntityId;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.DecimalMax;
 import jakarta.validation.constraints.DecimalMin;
@@ -27,8 +28,8 @@ import java.util.Set;
 @EntityListeners(AuditingEntityListener.class)
 public class User {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "user_id")
+    @GeneratedEntityId
+    @Column(name = "user_id", columnDefinition = "BIGINT GENERATED BY DEFAULT AS IDENTITY")
     private Long id;
 
     @NotBlank
@@ -49,6 +50,10 @@ public class User {
     @Column(name = "profile_picture_url", length = 255)
     private String profilePictureUrl;
 
+    // Embedded in issued JWTs; bumping it revokes every token issued before (see UserAuthStateCache)
+    @Column(name = "token_version", nullable = false, columnDefinition = "INTEGER DEFAULT 0")
+    private int tokenVersion = 0;
+
     @CreatedDate
     @Column(name = "created_at", nullable = false, updatable = false)
     private LocalDateTime createdAt;
@@ -0,0 +1,5 @@
+package com.twentythree.messenger.entity.id;
+
+public interface EntityIdAllocator {
+    long nextId(IdBlockSource blockSource);
+}
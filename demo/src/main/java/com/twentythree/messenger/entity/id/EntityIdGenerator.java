@@ -0,0 +1,96 @@
+package com.twentythree.messenger.entity.id;
+
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.jdbc.spi.JdbcCoordinator;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.generator.EventTypeSets;
+import org.hibernate.id.factory.spi.CustomIdGeneratorCreationContext;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.mapping.PersistentClass;
+
+import java.lang.reflect.Member;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hibernate side of {@link GeneratedEntityId}. Settings (passed through {@code spring.jpa.properties}):
+ * <ul>
+ *     <li>{@code twentythree.id.strategy} - {@code sequence} (default; PostgreSQL only, it reserves through
+ *     {@code pg_get_serial_sequence}) or {@code time-ordered} (any database)</li>
+ *     <li>{@code twentythree.id.block-size} - ids reserved per sequence round trip (default 50)</li>
+ *     <li>{@code twentythree.id.node-id} - 0..1023, must be unique per running instance for time-ordered ids</li>
+ * </ul>
+ * Switching from time-ordered back to sequence is not supported: sequence values are far below existing ids.
+ */
+public class EntityIdGenerator implements BeforeExecutionGenerator {
+
+    public static final String STRATEGY_SETTING = "twentythree.id.strategy";
+    public static final String BLOCK_SIZE_SETTING = "twentythree.id.block-size";
+    public static final String NODE_ID_SETTING = "twentythree.id.node-id";
+
+    private final IdStrategy strategy;
+    private final transient EntityIdAllocator allocator;
+
+    public EntityIdGenerator(GeneratedEntityId config, Member member, CustomIdGeneratorCreationContext context) {
+        Map<String, Object> settings = context.getServiceRegistry().requireService(ConfigurationService.class).getSettings();
+        this.strategy = IdStrategy.fromSetting(settings.get(STRATEGY_SETTING));
+        if (strategy == IdStrategy.TIME_ORDERED) {
+            this.allocator = TimeOrderedIdAllocator.forNode(ConfigurationHelper.getInt(NODE_ID_SETTING, settings, 0));
+        } else {
+            PersistentClass entity = context.getPersistentClass();
+            this.allocator = new SequenceBlockIdAllocator(
+                    entity.getTable().getName(),
+                    entity.getIdentifier().getColumns().get(0).getName(),
+                    ConfigurationHelper.getInt(BLOCK_SIZE_SETTING, settings, 50));
+        }
+    }
+
+    public IdStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Lets code that writes rows without a Session (e.g. the message write-behind) draw from the same allocator.
+     */
+    public long nextId(IdBlockSource blockSource) {
+        return allocator.nextId(blockSource);
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue, EventType eventType) {
+        return allocator.nextId((sql, count) -> reserve(session, sql, count));
+    }
+
+    @Override
+    public EnumSet<EventType> getEventTypes() {
+        return EventTypeSets.INSERT_ONLY;
+    }
+
+    // Same statement handling as Hibernate's own sequence structures, so the session tracks and releases resources
+    private static List<Long> reserve(SharedSessionContractImplementor session, String sql, int count) {
+        JdbcCoordinator jdbcCoordinator = session.getJdbcCoordinator();
+        PreparedStatement statement = jdbcCoordinator.getStatementPreparer().prepareStatement(sql);
+        try {
+            statement.setInt(1, count);
+            ResultSet resultSet = jdbcCoordinator.getResultSetReturn().extract(statement, sql);
+            List<Long> ids = new ArrayList<>(count);
+            while (resultSet.next()) {
+                ids.add(resultSet.getLong(1));
+            }
+            jdbcCoordinator.getLogicalConnection().getResourceRegistry().release(resultSet, statement);
+            return ids;
+        } catch (SQLException e) {
+            throw session.getJdbcServices().getSqlExceptionHelper().convert(e, "Could not reserve entity ids", sql);
+        } finally {
+            jdbcCoordinator.getLogicalConnection().getResourceRegistry().release(statement);
+            jdbcCoordinator.afterStatementExecution();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.twentythree.messenger.entity.id;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity id as assigned by {@link EntityIdGenerator} before the INSERT is executed,
+ * which (unlike IDENTITY) lets Hibernate batch the inserts.
+ * The column keeps its {@code GENERATED BY DEFAULT AS IDENTITY} definition: existing rows keep their ids,
+ * and its sequence is what the sequence strategy reserves from.
+ * The strategy is picked globally with {@code spring.jpa.properties.twentythree.id.strategy}.
+ */
+@IdGeneratorType(EntityIdGenerator.class)
+@Target({ElementType.FIELD, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface GeneratedEntityId {
+}
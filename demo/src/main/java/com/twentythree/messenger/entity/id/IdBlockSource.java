@@ -0,0 +1,9 @@
+package com.twentythree.messenger.entity.id;
+
+import java.util.List;
+
+// Runs the "reserve N ids" query on whatever connection the caller has at hand (Hibernate session or JdbcTemplate)
+@FunctionalInterface
+public interface IdBlockSource {
+    List<Long> reserve(String sql, int count);
+}
@@ -0,0 +1,13 @@
+package com.twentythree.messenger.entity.id;
+
+public enum IdStrategy {
+    SEQUENCE,     // blocks of values reserved from the id column's database sequence
+    TIME_ORDERED; // in-process 64-bit ids: timestamp + node id + counter, no database round trip
+
+    public static IdStrategy fromSetting(Object value) {
+        if (value == null) {
+            return SEQUENCE;
+        }
+        return valueOf(value.toString().trim().toUpperCase().replace('-', '_'));
+    }
+}
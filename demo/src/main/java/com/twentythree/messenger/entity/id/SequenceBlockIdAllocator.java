@@ -0,0 +1,29 @@
+package com.twentythree.messenger.entity.id;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pooled allocation from the sequence behind the table's identity column.
+ * One round trip reserves {@code blockSize} values, so existing rows and ids keep their numbering
+ * and no extra sequence or migration is needed.
+ */
+public class SequenceBlockIdAllocator implements EntityIdAllocator {
+
+    private final String reserveSql;
+    private final int blockSize;
+    private final Deque<Long> reserved = new ArrayDeque<>();
+
+    public SequenceBlockIdAllocator(String table, String idColumn, int blockSize) {
+        this.reserveSql = "SELECT nextval(pg_get_serial_sequence('" + table + "', '" + idColumn + "')) FROM generate_series(1, ?)";
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public synchronized long nextId(IdBlockSource blockSource) {
+        if (reserved.isEmpty()) {
+            reserved.addAll(blockSource.reserve(reserveSql, blockSize));
+        }
+        return reserved.poll();
+    }
+}
@@ -0,0 +1,66 @@
+package com.twentythree.messenger.entity.id;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Time-ordered 64-bit ids: 41 bits of milliseconds since 2025-01-01, 10 bits of node id, 12 bits of counter.
+ * Ids from one node are strictly increasing; across nodes they sort by creation time (to the millisecond).
+ * If the clock steps back or more than 4096 ids are taken in a millisecond, the generator keeps counting
+ * on its own last timestamp instead of blocking.
+ *
+ * Note: values are above 2^53, so DTOs send them to clients as JSON strings (see MessageDto).
+ */
+public class TimeOrderedIdAllocator implements EntityIdAllocator {
+
+    private static final long EPOCH_MS = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli();
+    private static final int NODE_BITS = 10;
+    private static final int COUNTER_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    // One instance per node id, shared by every entity so they all draw from the same counter
+    private static final Map<Integer, TimeOrderedIdAllocator> INSTANCES = new ConcurrentHashMap<>();
+
+    private final long nodeBits;
+    private final LongSupplier clock;
+    // (timestamp << COUNTER_BITS) | counter of the last id handed out
+    private final AtomicLong lastState = new AtomicLong();
+
+    private TimeOrderedIdAllocator(int nodeId) {
+        this(nodeId, System::currentTimeMillis);
+    }
+
+    // Tests drive the clock
+    TimeOrderedIdAllocator(int nodeId, LongSupplier clock) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ", got " + nodeId);
+        }
+        this.nodeBits = (long) nodeId << COUNTER_BITS;
+        this.clock = clock;
+    }
+
+    public static TimeOrderedIdAllocator forNode(int nodeId) {
+        return INSTANCES.computeIfAbsent(nodeId, TimeOrderedIdAllocator::new);
+    }
+
+    @Override
+    public long nextId(IdBlockSource blockSource) {
+        return nextId();
+    }
+
+    public long nextId() {
+        long nowState = (clock.getAsLong() - EPOCH_MS) << COUNTER_BITS;
+        long state = lastState.updateAndGet(last -> Math.max(last + 1, nowState));
+        long timestamp = state >>> COUNTER_BITS;
+        long counter = state & COUNTER_MASK;
+        return (timestamp << (NODE_BITS + COUNTER_BITS)) | nodeBits | counter;
+    }
+
+    public static long timestampMillis(long id) {
+        return (id >>> (NODE_BITS + COUNTER_BITS)) + EPOCH_MS;
+    }
+}
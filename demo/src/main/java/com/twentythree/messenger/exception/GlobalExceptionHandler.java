@@ -51,6 +51,13 @@ public class GlobalExceptionHandler {
         ErrorDetails errorDetails = new ErrorDetails(new Date(), ex.getMessage(), request.getDescription(false));
         return new ResponseEntity<>(errorDetails, HttpStatus.INTERNAL_SERVER_ERROR); // Or BAD_REQUEST depending on context
     }
+
+    @ExceptionHandler(ServiceBusyException.class)
+    public ResponseEntity<ErrorDetails> handleServiceBusyException(ServiceBusyException ex, WebRequest request) {
+        logger.warn("ServiceBusyException: {}", ex.getMessage());
+        ErrorDetails errorDetails = new ErrorDetails(new Date(), ex.getMessage(), request.getDescription(false));
+        return new ResponseEntity<>(errorDetails, HttpStatus.SERVICE_UNAVAILABLE);
+    }
     
     @ExceptionHandler(MaxUploadSizeExceededException.class)
     public ResponseEntity<ErrorDetails> handleMaxSizeException(MaxUploadSizeExceededException exc, WebRequest request) {
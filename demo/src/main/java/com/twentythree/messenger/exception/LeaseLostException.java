@@ -0,0 +1,8 @@
+package com.twentythree.messenger.exception;
+
+// Background job work attempted under a job lease that another node has taken over meanwhile (see JobLeases)
+public class LeaseLostException extends RuntimeException {
+    public LeaseLostException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package com.twentythree.messenger.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// The interest exists but has no active chat to join; the join endpoints park the user in MatchWaitQueue instead
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class NoChatAvailableException extends ResourceNotFoundException {
+    private final Long interestId;
+
+    public NoChatAvailableException(Long interestId, String interestName) {
+        super("Chat", "interest", interestName + " (no suitable active chat found)");
+        this.interestId = interestId;
+    }
+
+    public Long getInterestId() {
+        return interestId;
+    }
+}
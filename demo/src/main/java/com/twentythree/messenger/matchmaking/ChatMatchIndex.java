@@ -0,0 +1,473 @@
+package com.twentythree.messenger.matchmaking;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.entity.Chat;
+import com.twentythree.messenger.repository.ChatParticipantRepository;
+import com.twentythree.messenger.repository.ChatRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The active chats that can be joined, per interest, with live participant counts - so joining a chat by interest
+ * is a pick from memory instead of a {@code NOT IN} query over every chat of that interest.
+ * <p>
+ * Rebuilt from the DB at startup, then kept up to date by the create, join, leave and expiry paths
+ * ({@code ...AfterCommit} methods apply once the surrounding transaction commits) and by the same changes
+ * made on other nodes, which arrive over the {@link ClusterBus}.
+ * <p>
+ * A join reserves its seat at pick time, so concurrent joins see each other's counts; the reservation is released
+ * if the transaction rolls back. The index is only a hint: callers still check the picked chat in the DB.
+ * <p>
+ * Which chat a join lands in is decided by {@code placement} among the chats below {@code capacity}, so no single
+ * chat's fan-out grows without bound. Each node enforces the capacity with its own counts; concurrent joins on
+ * different nodes can overshoot it by a seat or two until their changes cross.
+ * <p>
+ * Each chat also keeps its participants' interests as {@link InterestBits}, kept current on joins, leaves and
+ * profile edits, so "join best match" can rank every open chat by interest overlap with a few popcounts per chat.
+ */
+@Component
+public class ChatMatchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatMatchIndex.class);
+
+    static final String CLUSTER_DESTINATION = "chat-match-index";
+    private static final String OP_OPEN = "open";
+    private static final String OP_DELTA = "delta";
+    private static final String OP_CLOSE = "close";
+    private static final String OP_PROFILE = "profile";
+
+    public enum PlacementPolicy {
+        LEAST_POPULATED, // the chat with the fewest participants
+        FILL_TO_TARGET,  // the fullest chat still below fill-target; once all reach it, the least populated
+        RANDOM_OF_TWO    // the less populated of two random chats: near-even spread without scanning
+    }
+
+    private final ChatRepository chatRepository;
+    private final ChatParticipantRepository chatParticipantRepository;
+    private final ClusterBus clusterBus;
+    private final ObjectMapper objectMapper;
+    private final int capacity;
+    private final PlacementPolicy placement;
+    private final int fillTarget;
+
+    private final Map<Long, OpenChat> chats = new ConcurrentHashMap<>();
+    // Copy-on-write: chats open and close rarely compared to joins, which read (and sample) these lists
+    private final Map<Long, List<OpenChat>> chatsByInterest = new ConcurrentHashMap<>();
+    private final Map<Long, OpenChat> chatsByMember = new ConcurrentHashMap<>();
+    // interestId -> user opening the interest's next chat because all of its chats are full (see claimOverflow)
+    private final Map<Long, Long> overflowClaims = new ConcurrentHashMap<>();
+
+    public ChatMatchIndex(ChatRepository chatRepository, ChatParticipantRepository chatParticipantRepository,
+                          ClusterBus clusterBus, ObjectMapper objectMapper,
+                          @Value("${app.chats.capacity:50}") int capacity,
+                          @Value("${app.chats.placement:LEAST_POPULATED}") PlacementPolicy placement,
+                          @Value("${app.chats.fill-target:10}") int fillTarget) {
+        this.chatRepository = chatRepository;
+        this.chatParticipantRepository = chatParticipantRepository;
+        this.clusterBus = clusterBus;
+        this.objectMapper = objectMapper;
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        this.placement = placement;
+        this.fillTarget = fillTarget;
+    }
+
+    /** An indexed chat, its current participant count (the creator included) and its participants' interests. */
+    public static final class OpenChat {
+        private final Long chatId;
+        private final Long interestId;
+        private final long expiresAtMillis;
+        private final AtomicInteger participants;
+        private final Map<Long, long[]> memberInterests = new ConcurrentHashMap<>();
+        private volatile long[] interests = InterestBits.EMPTY; // Union over memberInterests, replaced on change
+
+        OpenChat(Long chatId, Long interestId, LocalDateTime expiresAt, int participants) {
+            this.chatId = chatId;
+            this.interestId = interestId;
+            this.expiresAtMillis = expiresAt != null ? toMillis(expiresAt) : Long.MAX_VALUE;
+            this.participants = new AtomicInteger(participants);
+        }
+
+        public Long getChatId() {
+            return chatId;
+        }
+
+        public Long getInterestId() {
+            return interestId;
+        }
+
+        public int getParticipants() {
+            return participants.get();
+        }
+
+        boolean isExpired(long nowMillis) {
+            return expiresAtMillis <= nowMillis;
+        }
+
+        synchronized void putMember(Long userId, long[] bits) {
+            memberInterests.put(userId, bits);
+            interests = InterestBits.union(memberInterests.values());
+        }
+
+        synchronized void removeMember(Long userId) {
+            if (memberInterests.remove(userId) != null) {
+                interests = InterestBits.union(memberInterests.values());
+            }
+        }
+    }
+
+    /** Node-to-node notice of an index change. */
+    record Change(@JsonProperty("o") String op,
+                  @JsonProperty("c") Long chatId,
+                  @JsonProperty("i") Long interestId,
+                  @JsonProperty("e") LocalDateTime expiresAt,
+                  @JsonProperty("n") int count,
+                  @JsonProperty("u") Long userId,
+                  @JsonProperty("b") List<Long> interestIds) {
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        clusterBus.subscribe(this::receiveFromCluster);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        List<OpenChatRow> rows = chatRepository.findOpenChatCounts();
+        List<MemberInterestRow> memberRows = chatParticipantRepository.findActiveChatMemberInterests();
+        chats.clear();
+        chatsByInterest.clear();
+        chatsByMember.clear();
+        rows.forEach(row -> add(new OpenChat(row.chatId(), row.interestId(), row.expiresAt(), row.participants().intValue())));
+        Map<Long, Map<Long, List<Long>>> interestsByMemberByChat = new HashMap<>();
+        for (MemberInterestRow row : memberRows) {
+            List<Long> interestIds = interestsByMemberByChat.computeIfAbsent(row.chatId(), id -> new HashMap<>())
+                    .computeIfAbsent(row.userId(), id -> new ArrayList<>());
+            if (row.interestId() != null) {
+                interestIds.add(row.interestId());
+            }
+        }
+        interestsByMemberByChat.forEach((chatId, members) -> members.forEach((userId, interestIds) -> addMember(chatId, userId, interestIds)));
+        logger.info("Chat match index rebuilt with {} active chats", rows.size());
+    }
+
+    /**
+     * Picks a chat of the interest with a free seat (per {@code placement}) and reserves the seat (released again
+     * if the surrounding transaction rolls back), or returns null if there is none. Chats found expired on the way
+     * are dropped from the index.
+     */
+    public OpenChat reserveSeat(Long interestId, Long userId, List<Long> userInterestIds) {
+        List<OpenChat> candidates = chatsByInterest.get(interestId);
+        if (candidates == null) {
+            return null;
+        }
+        OpenChat chat;
+        do {
+            chat = choose(candidates, System.currentTimeMillis());
+        } while (chat != null && !tryReserve(chat)); // Lost the last seat to a concurrent join: choose again
+        return chat != null ? reserved(chat, userId, userInterestIds) : null;
+    }
+
+    /**
+     * Reserves a seat in the open chat whose participants share the most interests with {@code userInterestIds}
+     * (fewer participants first among equals), or returns null if no chat with a free seat shares any.
+     * Scores every open chat: one bitset AND + popcount each.
+     */
+    public OpenChat reserveBestMatch(Long userId, List<Long> userInterestIds) {
+        long[] wanted = InterestBits.of(userInterestIds);
+        OpenChat chat;
+        do {
+            long now = System.currentTimeMillis();
+            chat = null;
+            int bestScore = 0;
+            for (OpenChat candidate : chats.values()) {
+                if (!isJoinable(candidate, now)) {
+                    continue;
+                }
+                int score = InterestBits.overlap(wanted, candidate.interests);
+                if (score > bestScore || (score == bestScore && chat != null && candidate.getParticipants() < chat.getParticipants())) {
+                    chat = candidate;
+                    bestScore = score;
+                }
+            }
+        } while (chat != null && !tryReserve(chat));
+        return chat != null ? reserved(chat, userId, userInterestIds) : null;
+    }
+
+    // The seat in chat is taken: release it on rollback, record the member and tell the other nodes on commit
+    private OpenChat reserved(OpenChat chat, Long userId, List<Long> userInterestIds) {
+        onCompletion(committed -> {
+            if (committed) {
+                addMember(chat.getChatId(), userId, userInterestIds);
+                publish(new Change(OP_DELTA, chat.getChatId(), null, null, 1, userId, userInterestIds));
+            } else {
+                chat.participants.decrementAndGet();
+            }
+        });
+        return chat;
+    }
+
+    /**
+     * Claims the opening of the interest's next chat for a join that found every chat of it full, so concurrent joins
+     * on this node don't each open a one-person chat. Returns false if another join holds the claim. Released once
+     * that join's chat is indexed on commit (see {@link #openedAfterCommit}), or on rollback.
+     */
+    public boolean claimOverflow(Long interestId, Long userId) {
+        if (overflowClaims.putIfAbsent(interestId, userId) != null) {
+            return false;
+        }
+        onCompletion(committed -> {
+            if (!committed) {
+                overflowClaims.remove(interestId, userId);
+            }
+        });
+        return true;
+    }
+
+    /** True if the interest has active chats, whether or not any seat is free. */
+    public boolean hasOpenChats(Long interestId) {
+        return chatsByInterest.containsKey(interestId);
+    }
+
+    private OpenChat choose(List<OpenChat> candidates, long now) {
+        if (placement == PlacementPolicy.RANDOM_OF_TWO && candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                OpenChat a = candidates.get(random.nextInt(candidates.size()));
+                OpenChat b = candidates.get(random.nextInt(candidates.size()));
+                OpenChat better = a.getParticipants() <= b.getParticipants() ? a : b;
+                if (isJoinable(better, now)) {
+                    return better;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // The list shrank between size() and get(); fall through to the scan
+            }
+        }
+        OpenChat leastPopulated = null;
+        OpenChat fullestBelowTarget = null;
+        for (OpenChat chat : candidates) {
+            if (chat.isExpired(now)) {
+                remove(chat.getChatId());
+                continue;
+            }
+            int participants = chat.getParticipants();
+            if (participants >= capacity) {
+                continue;
+            }
+            if (leastPopulated == null || participants < leastPopulated.getParticipants()) {
+                leastPopulated = chat;
+            }
+            if (participants < fillTarget
+                    && (fullestBelowTarget == null || participants > fullestBelowTarget.getParticipants())) {
+                fullestBelowTarget = chat;
+            }
+        }
+        if (placement == PlacementPolicy.FILL_TO_TARGET && fullestBelowTarget != null) {
+            return fullestBelowTarget;
+        }
+        return leastPopulated;
+    }
+
+    private boolean isJoinable(OpenChat chat, long now) {
+        return !chat.isExpired(now) && chat.getParticipants() < capacity;
+    }
+
+    private boolean tryReserve(OpenChat chat) {
+        int current;
+        do {
+            current = chat.participants.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!chat.participants.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /** Drops a chat that turned out not to be joinable (the DB says inactive or gone) from this node's index. */
+    public void forget(Long chatId) {
+        remove(chatId);
+    }
+
+    /** Indexes a new chat, with its creator as the first participant, once the transaction commits. */
+    public void openedAfterCommit(Chat chat, List<Long> creatorInterestIds) {
+        Change change = new Change(OP_OPEN, chat.getId(), chat.getPrimaryInterest().getId(), chat.getExpiresAt(), 1,
+                chat.getCreator().getId(), creatorInterestIds);
+        onCompletion(committed -> {
+            if (committed) {
+                apply(change);
+                publish(change);
+            }
+        });
+    }
+
+    /** Counts a participant seated without {@link #reserveSeat} (e.g. a batch from the wait queue) once the transaction commits. */
+    public void joinedAfterCommit(Long chatId, Long userId, List<Long> interestIds) {
+        Change change = new Change(OP_DELTA, chatId, null, null, 1, userId, interestIds);
+        onCompletion(committed -> {
+            if (committed) {
+                apply(change);
+                publish(change);
+            }
+        });
+    }
+
+    /** Counts a participant out of the chat once the transaction commits. */
+    public void leftAfterCommit(Long chatId, Long userId) {
+        Change change = new Change(OP_DELTA, chatId, null, null, -1, userId, null);
+        onCompletion(committed -> {
+            if (committed) {
+                apply(change);
+                publish(change);
+            }
+        });
+    }
+
+    /** Removes a deactivated chat once the transaction commits. */
+    public void closedAfterCommit(Long chatId) {
+        Change change = new Change(OP_CLOSE, chatId, null, null, 0, null, null);
+        onCompletion(committed -> {
+            if (committed) {
+                apply(change);
+                publish(change);
+            }
+        });
+    }
+
+    /** Replaces the user's interests in the chat they are in (if any) once the transaction commits. */
+    public void interestsChangedAfterCommit(Long userId, List<Long> interestIds) {
+        Change change = new Change(OP_PROFILE, null, null, null, 0, userId, interestIds);
+        onCompletion(committed -> {
+            if (committed) {
+                apply(change);
+                publish(change);
+            }
+        });
+    }
+
+    private void apply(Change change) {
+        switch (change.op()) {
+            case OP_OPEN -> {
+                add(new OpenChat(change.chatId(), change.interestId(), change.expiresAt(), change.count()));
+                addMember(change.chatId(), change.userId(), change.interestIds());
+                overflowClaims.remove(change.interestId(), change.userId()); // Joins now see the new chat's seats
+            }
+            case OP_DELTA -> {
+                OpenChat chat = chats.get(change.chatId());
+                if (chat != null) {
+                    chat.participants.addAndGet(change.count());
+                }
+                if (change.count() > 0) {
+                    addMember(change.chatId(), change.userId(), change.interestIds());
+                } else {
+                    removeMember(change.chatId(), change.userId());
+                }
+            }
+            case OP_PROFILE -> {
+                OpenChat chat = chatsByMember.get(change.userId());
+                if (chat != null) {
+                    chat.putMember(change.userId(), InterestBits.of(change.interestIds()));
+                }
+            }
+            case OP_CLOSE -> remove(change.chatId());
+            default -> logger.warn("Ignoring unknown chat match index change: {}", change.op());
+        }
+    }
+
+    private void add(OpenChat chat) {
+        OpenChat previous = chats.put(chat.getChatId(), chat);
+        if (previous != null) {
+            removeFromInterest(previous);
+        }
+        chatsByInterest.computeIfAbsent(chat.getInterestId(), id -> new CopyOnWriteArrayList<>()).add(chat);
+    }
+
+    private void remove(Long chatId) {
+        OpenChat chat = chats.remove(chatId);
+        if (chat != null) {
+            removeFromInterest(chat);
+            chat.memberInterests.keySet().forEach(userId -> chatsByMember.remove(userId, chat));
+        }
+    }
+
+    private void addMember(Long chatId, Long userId, List<Long> interestIds) {
+        OpenChat chat = chats.get(chatId);
+        if (chat != null && userId != null) {
+            chat.putMember(userId, InterestBits.of(interestIds));
+            chatsByMember.put(userId, chat);
+        }
+    }
+
+    private void removeMember(Long chatId, Long userId) {
+        OpenChat chat = chats.get(chatId);
+        if (chat != null && userId != null) {
+            chat.removeMember(userId);
+            chatsByMember.remove(userId, chat);
+        }
+    }
+
+    private void removeFromInterest(OpenChat chat) {
+        chatsByInterest.computeIfPresent(chat.getInterestId(), (id, list) -> {
+            list.remove(chat);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private void publish(Change change) {
+        try {
+            clusterBus.publish(CLUSTER_DESTINATION, objectMapper.writeValueAsString(change));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize chat match index change", e);
+        }
+    }
+
+    private void receiveFromCluster(ClusterMessage message) {
+        if (!CLUSTER_DESTINATION.equals(message.destination())) {
+            return;
+        }
+        try {
+            apply(objectMapper.readValue(message.body(), Change.class));
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed chat match index change: {}", e.getMessage());
+        }
+    }
+
+    // Runs the action with the transaction's outcome; without a transaction, right away as committed
+    private static void onCompletion(Consumer<Boolean> action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    action.accept(status == STATUS_COMMITTED);
+                }
+            });
+        } else {
+            action.accept(true);
+        }
+    }
+
+    private static long toMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,48 @@
+package com.twentythree.messenger.matchmaking;
+
+import java.util.Collection;
+
+/**
+ * Sets of interests as bitsets indexed by interest id. Interest ids are small identity values, so a set of them
+ * is a few longs and the overlap of two sets is a handful of AND + popcount operations.
+ */
+final class InterestBits {
+
+    static final long[] EMPTY = new long[0];
+
+    private InterestBits() {
+    }
+
+    static long[] of(Collection<Long> interestIds) {
+        if (interestIds == null || interestIds.isEmpty()) {
+            return EMPTY;
+        }
+        long max = interestIds.stream().mapToLong(Long::longValue).max().orElse(0);
+        long[] bits = new long[(int) (max >>> 6) + 1];
+        for (Long id : interestIds) {
+            bits[(int) (id >>> 6)] |= 1L << id;
+        }
+        return bits;
+    }
+
+    static long[] union(Collection<long[]> sets) {
+        int words = sets.stream().mapToInt(set -> set.length).max().orElse(0);
+        long[] union = new long[words];
+        for (long[] set : sets) {
+            for (int i = 0; i < set.length; i++) {
+                union[i] |= set[i];
+            }
+        }
+        return union;
+    }
+
+    /** Number of interests in both sets. */
+    static int overlap(long[] a, long[] b) {
+        int words = Math.min(a.length, b.length);
+        int count = 0;
+        for (int i = 0; i < words; i++) {
+            count += Long.bitCount(a[i] & b[i]);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,227 @@
+package com.twentythree.messenger.matchmaking;
+
+import com.twentythree.messenger.dto.chat.ChatDto;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.exception.NoChatAvailableException;
+import com.twentythree.messenger.exception.UserAlreadyInChatException;
+import com.twentythree.messenger.service.ChatService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users who asked to join a chat by interest when there was none, parked until one can be made for them,
+ * so clients wait on one request (or a STOMP reply) instead of polling the join endpoint.
+ * <p>
+ * Waiters queue per interest. As soon as {@code batch-size} users wait for an interest, or the longest waiting one
+ * has waited {@code max-wait-ms}, a new chat is created and everyone taken from the queue is seated in one
+ * transaction (the longest waiting becomes the creator). Each waiter's future then completes with the chat.
+ * <p>
+ * Queues are per node: users parked on different nodes are batched separately.
+ * <p>
+ * Metrics: {@code chats.wait.queue.size} (users waiting) and {@code chats.wait.time} (time until seated).
+ */
+@Component
+public class MatchWaitQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(MatchWaitQueue.class);
+    private static final long TICK_MS = 1000;
+
+    private final ChatService chatService;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long maxWaitMs;
+
+    // interestId -> waiters, longest waiting first; each deque guarded by itself
+    private final Map<Long, Deque<Waiter>> queues = new ConcurrentHashMap<>();
+    // Removing a waiter from here claims it: for seating, or for cancelling - never both
+    private final Map<Long, Waiter> waitersByUser = new ConcurrentHashMap<>();
+    private final Map<String, Waiter> waitersBySession = new ConcurrentHashMap<>(); // STOMP waiters only
+    private final ScheduledExecutorService seater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "match-wait-queue");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MatchWaitQueue(ChatService chatService, MeterRegistry meterRegistry,
+                          @Value("${app.chats.wait-queue.enabled:true}") boolean enabled,
+                          @Value("${app.chats.wait-queue.batch-size:4}") int batchSize,
+                          @Value("${app.chats.wait-queue.max-wait-ms:15000}") long maxWaitMs,
+                          @Value("${app.chats.capacity:50}") int capacity) {
+        this.chatService = chatService;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, capacity > 0 ? Math.min(batchSize, capacity) : batchSize);
+        this.maxWaitMs = maxWaitMs;
+        Gauge.builder("chats.wait.queue.size", waitersByUser, Map::size)
+                .description("Users waiting for a chat to be created for their interest")
+                .register(meterRegistry);
+    }
+
+    private record Waiter(Long userId, Long interestId, String sessionId, long enqueuedAtMillis,
+                          CompletableFuture<ChatDto> result) {
+    }
+
+    @PostConstruct
+    void start() {
+        seater.scheduleWithFixedDelay(this::seatOverdue, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        seater.shutdownNow();
+    }
+
+    /**
+     * Joins a chat of the interest right away if there is one; otherwise parks the user and returns a future that
+     * completes once a chat has been created for them. {@code sessionId} ties a STOMP waiter to its session
+     * (null for HTTP). Other failures (unknown interest, user already in a chat) are thrown as before.
+     */
+    public CompletableFuture<ChatDto> joinOrWait(Long interestId, User user, String sessionId) {
+        try {
+            return CompletableFuture.completedFuture(chatService.joinChatByInterest(interestId, user));
+        } catch (NoChatAvailableException e) {
+            if (!enabled) {
+                throw e;
+            }
+            return park(interestId, user.getId(), sessionId);
+        }
+    }
+
+    /**
+     * Stops waiting, e.g. when the HTTP request timed out. Returns false if the user was already taken for seating:
+     * {@code result} then completes with their chat (or has already).
+     */
+    public boolean cancel(Long userId, CompletableFuture<ChatDto> result) {
+        Waiter waiter = waitersByUser.get(userId);
+        if (waiter != null && waiter.result() == result && waitersByUser.remove(userId, waiter)) {
+            Deque<Waiter> queue = queues.get(waiter.interestId());
+            if (queue != null) {
+                synchronized (queue) {
+                    queue.remove(waiter);
+                }
+            }
+            forgetSession(waiter);
+            waiter.result().cancel(false);
+            return true;
+        }
+        return result.isCancelled();
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Waiter waiter = waitersBySession.get(event.getSessionId());
+        if (waiter != null) {
+            cancel(waiter.userId(), waiter.result());
+        }
+    }
+
+    private CompletableFuture<ChatDto> park(Long interestId, Long userId, String sessionId) {
+        Waiter existing = waitersByUser.get(userId);
+        if (existing != null) {
+            if (existing.interestId().equals(interestId)) {
+                return existing.result(); // Asked again (e.g. a second tab): wait for the same seat
+            }
+            cancel(userId, existing.result()); // Changed their mind: wait for the new interest only
+        }
+        Waiter waiter = new Waiter(userId, interestId, sessionId, System.currentTimeMillis(), new CompletableFuture<>());
+        waitersByUser.put(userId, waiter);
+        if (sessionId != null) {
+            waitersBySession.put(sessionId, waiter);
+        }
+        Deque<Waiter> queue = queues.computeIfAbsent(interestId, id -> new ArrayDeque<>());
+        boolean full;
+        synchronized (queue) {
+            queue.addLast(waiter);
+            full = queue.size() >= batchSize;
+        }
+        logger.info("User {} waiting for a chat on interest {}", userId, interestId);
+        if (full) {
+            seater.execute(() -> seat(interestId));
+        }
+        return waiter.result();
+    }
+
+    private void forgetSession(Waiter waiter) {
+        if (waiter.sessionId() != null) {
+            waitersBySession.remove(waiter.sessionId(), waiter);
+        }
+    }
+
+    private void seatOverdue() {
+        long overdueBefore = System.currentTimeMillis() - maxWaitMs;
+        queues.forEach((interestId, queue) -> {
+            boolean overdue;
+            synchronized (queue) {
+                Waiter first = queue.peekFirst();
+                overdue = first != null && first.enqueuedAtMillis() <= overdueBefore;
+            }
+            if (overdue) {
+                seat(interestId);
+            }
+        });
+    }
+
+    // Runs on the seater thread only, so two batches for one interest never race
+    private void seat(Long interestId) {
+        Deque<Waiter> queue = queues.get(interestId);
+        if (queue == null) {
+            return;
+        }
+        List<Waiter> batch = new ArrayList<>();
+        synchronized (queue) {
+            while (batch.size() < batchSize && !queue.isEmpty()) {
+                batch.add(queue.pollFirst());
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch.removeIf(waiter -> !waitersByUser.remove(waiter.userId(), waiter)); // Cancelled meanwhile
+        batch.forEach(this::forgetSession);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            ChatDto chat = chatService.openChatForWaiters(interestId, batch.stream().map(Waiter::userId).toList());
+            long now = System.currentTimeMillis();
+            for (Waiter waiter : batch) {
+                boolean seated = chat != null && chat.getParticipants().stream()
+                        .anyMatch(participant -> participant.getUserId().equals(waiter.userId()));
+                if (seated) {
+                    meterRegistry.timer("chats.wait.time").record(now - waiter.enqueuedAtMillis(), TimeUnit.MILLISECONDS);
+                    waiter.result().complete(chat);
+                } else {
+                    waiter.result().completeExceptionally(
+                            new UserAlreadyInChatException("User is already participating in another chat."));
+                }
+            }
+            if (chat != null) {
+                logger.info("Seated {} waiting users in new chat {} for interest {}", chat.getParticipants().size(), chat.getId(), interestId);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not create a chat for {} users waiting on interest {}", batch.size(), interestId, e);
+            batch.forEach(waiter -> waiter.result().completeExceptionally(e));
+        }
+    }
+}
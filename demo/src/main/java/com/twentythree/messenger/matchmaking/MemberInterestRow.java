@@ -0,0 +1,5 @@
+package com.twentythree.messenger.matchmaking;
+
+/** One interest of one participant of an active chat (null for a participant without interests). */
+public record MemberInterestRow(Long chatId, Long userId, Long interestId) {
+}
@@ -0,0 +1,7 @@
+package com.twentythree.messenger.matchmaking;
+
+import java.time.LocalDateTime;
+
+/** An active chat with its participant count, as read from the DB when {@link ChatMatchIndex} is rebuilt. */
+public record OpenChatRow(Long chatId, Long interestId, LocalDateTime expiresAt, Long participants) {
+}
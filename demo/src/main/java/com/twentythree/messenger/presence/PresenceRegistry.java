@@ -0,0 +1,436 @@
+package com.twentythree.messenger.presence;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.dto.presence.ChatPresenceDto;
+import com.twentythree.messenger.security.UserPrincipal;
+import com.twentythree.messenger.websocket.ChatTopicPublisher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Who has which chat open and who is typing, kept in memory only - nothing here touches the database.
+ * <p>
+ * A user is online in a chat while one of their WebSocket sessions is subscribed to {@code /topic/chat/{chatId}}
+ * (fed by the STOMP subscribe/unsubscribe/disconnect events). Typing comes from {@code /app/chat/{chatId}/typing}
+ * and is only accepted from a session subscribed to that chat, at most once per {@code typing.min-interval-ms}
+ * per user and chat; it expires after {@code typing.ttl-ms} without a refresh.
+ * <p>
+ * Changes only mark the chat dirty. Every {@code flush-interval-ms} one {@link ChatPresenceDto} per changed chat
+ * goes to {@code /topic/chat/{chatId}/presence}, so a typing storm costs at most one frame per chat per interval.
+ * <p>
+ * State is split over shards by chatId, each behind its own lock. Across nodes, each node shares its local online
+ * counts (on change and every {@code heartbeat-ms}) and accepted typing events over the {@link ClusterBus},
+ * and publishes the combined state to its own subscribers. A user connected to two nodes counts twice.
+ */
+@Component
+public class PresenceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceRegistry.class);
+
+    static final String CLUSTER_DESTINATION = "presence";
+    private static final String CHAT_TOPIC_PREFIX = "/topic/chat/";
+    private static final String PRESENCE_SUFFIX = "/presence";
+
+    private final ChatTopicPublisher chatTopicPublisher;
+    private final ClusterBus clusterBus;
+    private final ObjectMapper objectMapper;
+    private final long flushIntervalMs;
+    private final long typingMinIntervalMs;
+    private final long typingTtlMs;
+    private final long heartbeatMs;
+
+    private final Shard[] shards;
+    private final Map<String, SessionPresence> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long lastHeartbeatMillis;
+
+    private final Counter typingAccepted;
+    private final Counter typingLimited;
+    private final Counter typingRejected;
+    private final Counter published;
+
+    public PresenceRegistry(ChatTopicPublisher chatTopicPublisher, ClusterBus clusterBus, ObjectMapper objectMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${app.presence.shards:16}") int shardCount,
+                            @Value("${app.presence.flush-interval-ms:250}") long flushIntervalMs,
+                            @Value("${app.presence.typing.min-interval-ms:1000}") long typingMinIntervalMs,
+                            @Value("${app.presence.typing.ttl-ms:5000}") long typingTtlMs,
+                            @Value("${app.presence.heartbeat-ms:10000}") long heartbeatMs) {
+        this.chatTopicPublisher = chatTopicPublisher;
+        this.clusterBus = clusterBus;
+        this.objectMapper = objectMapper;
+        this.flushIntervalMs = flushIntervalMs;
+        this.typingMinIntervalMs = typingMinIntervalMs;
+        this.typingTtlMs = typingTtlMs;
+        this.heartbeatMs = heartbeatMs;
+        this.shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+
+        this.typingAccepted = typingCounter(meterRegistry, "accepted");
+        this.typingLimited = typingCounter(meterRegistry, "rate_limited");
+        this.typingRejected = typingCounter(meterRegistry, "not_subscribed");
+        this.published = Counter.builder("presence.published")
+                .description("Presence updates broadcast to chat subscribers")
+                .register(meterRegistry);
+        Gauge.builder("presence.chats", this, PresenceRegistry::trackedChats)
+                .description("Chats with presence state on this node")
+                .register(meterRegistry);
+    }
+
+    private static Counter typingCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("presence.typing.events")
+                .tag("result", result)
+                .description("Typing indicators received from clients")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        clusterBus.subscribe(this::receiveFromCluster);
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        flusher.shutdownNow();
+    }
+
+    // --- Session events ---
+
+    @EventListener
+    public void onSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String destination = accessor.getDestination();
+        if (destination != null && destination.endsWith(PRESENCE_SUFFIX)) {
+            // New presence subscriber: send the current state on the next flush instead of waiting for a change
+            Long presenceChatId = chatIdOf(destination.substring(0, destination.length() - PRESENCE_SUFFIX.length()));
+            if (presenceChatId != null) {
+                withChat(presenceChatId, false, ChatPresence::republish);
+            }
+            return;
+        }
+        Long chatId = chatIdOf(destination);
+        Long userId = userIdOf(event.getUser());
+        if (chatId == null || userId == null || accessor.getSessionId() == null || accessor.getSubscriptionId() == null) {
+            return;
+        }
+        SessionPresence session = sessions.computeIfAbsent(accessor.getSessionId(), id -> new SessionPresence(userId));
+        if (session.subscriptions.putIfAbsent(accessor.getSubscriptionId(), chatId) == null) {
+            withChat(chatId, true, chat -> chat.addLocal(userId));
+        }
+    }
+
+    @EventListener
+    public void onUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        SessionPresence session = accessor.getSessionId() != null ? sessions.get(accessor.getSessionId()) : null;
+        Long chatId = session != null && accessor.getSubscriptionId() != null
+                ? session.subscriptions.remove(accessor.getSubscriptionId()) : null;
+        if (chatId != null) {
+            withChat(chatId, false, chat -> chat.removeLocal(session.userId));
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        SessionPresence session = sessions.remove(event.getSessionId());
+        if (session != null) {
+            session.subscriptions.values().forEach(chatId -> withChat(chatId, false, chat -> chat.removeLocal(session.userId)));
+        }
+    }
+
+    // --- Typing ---
+
+    /**
+     * Typing indicator from a client. Returns false if it was dropped: the session isn't subscribed to the chat,
+     * or the user already reported typing within {@code typing.min-interval-ms}.
+     */
+    public boolean typing(Long chatId, String sessionId, boolean typing) {
+        SessionPresence session = sessionId != null ? sessions.get(sessionId) : null;
+        if (session == null || !session.subscriptions.containsValue(chatId)) {
+            typingRejected.increment();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        boolean[] accepted = new boolean[1];
+        withChat(chatId, false, chat -> accepted[0] = chat.localTyping(session.userId, typing, now));
+        if (!accepted[0]) {
+            typingLimited.increment();
+            return false;
+        }
+        typingAccepted.increment();
+        sendToCluster(new PresenceSignal(chatId, null, session.userId, typing));
+        return true;
+    }
+
+    // --- Cluster ---
+
+    private void receiveFromCluster(ClusterMessage message) {
+        if (!CLUSTER_DESTINATION.equals(message.destination())) {
+            return;
+        }
+        PresenceSignal signal;
+        try {
+            signal = objectMapper.readValue(message.body(), PresenceSignal.class);
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed presence signal: {}", e.getMessage());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (signal.online() != null) {
+            withChat(signal.chatId(), signal.online() > 0,
+                    chat -> chat.remoteOnline(message.origin(), signal.online(), now + 3 * heartbeatMs));
+        }
+        if (signal.userId() != null) {
+            withChat(signal.chatId(), signal.typing(), chat -> chat.remoteTyping(signal.userId(), signal.typing(), now));
+        }
+    }
+
+    private void sendToCluster(PresenceSignal signal) {
+        try {
+            clusterBus.publish(CLUSTER_DESTINATION, objectMapper.writeValueAsString(signal));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize presence signal", e);
+        }
+    }
+
+    // --- Flush ---
+
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            boolean heartbeat = now - lastHeartbeatMillis >= heartbeatMs;
+            if (heartbeat) {
+                lastHeartbeatMillis = now;
+            }
+            List<ChatPresenceDto> updates = new ArrayList<>();
+            List<PresenceSignal> signals = new ArrayList<>();
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    Iterator<Map.Entry<Long, ChatPresence>> it = shard.chats.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Long, ChatPresence> entry = it.next();
+                        ChatPresence chat = entry.getValue();
+                        chat.expire(now);
+                        if (chat.localCountChanged || (heartbeat && !chat.localUsers.isEmpty())) {
+                            signals.add(new PresenceSignal(entry.getKey(), chat.localUsers.size(), null, false));
+                            chat.localCountChanged = false;
+                        }
+                        ChatPresenceDto update = chat.snapshotIfChanged(entry.getKey());
+                        if (update != null) {
+                            updates.add(update);
+                        }
+                        if (chat.isEmpty()) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            signals.forEach(this::sendToCluster);
+            for (ChatPresenceDto update : updates) {
+                chatTopicPublisher.publishLocally(ChatTopicPublisher.presenceTopic(update.getChatId()), update);
+                published.increment();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Presence flush failed", e);
+        }
+    }
+
+    // --- Helpers ---
+
+    private void withChat(Long chatId, boolean create, Consumer<ChatPresence> action) {
+        Shard shard = shards[Math.floorMod(Long.hashCode(chatId * 0x9E3779B97F4A7C15L), shards.length)];
+        synchronized (shard) {
+            ChatPresence chat = create ? shard.chats.computeIfAbsent(chatId, id -> new ChatPresence()) : shard.chats.get(chatId);
+            if (chat != null) {
+                action.accept(chat);
+            }
+        }
+    }
+
+    // chatId of exactly /topic/chat/{chatId}, the messages topic
+    private static Long chatIdOf(String destination) {
+        if (destination == null || !destination.startsWith(CHAT_TOPIC_PREFIX)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(destination.substring(CHAT_TOPIC_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Long userIdOf(Principal user) {
+        if (user instanceof Authentication authentication && authentication.getPrincipal() instanceof UserPrincipal principal) {
+            return principal.getId();
+        }
+        return null;
+    }
+
+    private int trackedChats() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.chats.size();
+            }
+        }
+        return count;
+    }
+
+    /** Node-to-node presence change: a node's online count for a chat, or one user's typing state. */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record PresenceSignal(@JsonProperty("c") Long chatId,
+                          @JsonProperty("o") Integer online,
+                          @JsonProperty("u") Long userId,
+                          @JsonProperty("t") boolean typing) {
+    }
+
+    private static final class SessionPresence {
+        private final Long userId;
+        private final Map<String, Long> subscriptions = new ConcurrentHashMap<>(); // subscriptionId -> chatId
+
+        SessionPresence(Long userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static final class Shard {
+        private final Map<Long, ChatPresence> chats = new HashMap<>(); // guarded by the shard
+    }
+
+    // Guarded by its shard
+    private final class ChatPresence {
+        private final Map<Long, Integer> localUsers = new HashMap<>();    // userId -> subscribed sessions on this node
+        private final Map<Long, Long> typingUntil = new HashMap<>();      // userId -> expiry (epoch ms), any node
+        private final Map<Long, Long> lastLocalTyping = new HashMap<>();  // userId -> last accepted event, rate limit
+        private final Map<String, long[]> remoteOnline = new HashMap<>(); // nodeId -> {count, expiry}
+        private boolean changed;
+        private boolean localCountChanged;
+        private ChatPresenceDto lastPublished;
+
+        void addLocal(Long userId) {
+            if (localUsers.merge(userId, 1, Integer::sum) == 1) {
+                changed = true;
+                localCountChanged = true;
+            }
+        }
+
+        void removeLocal(Long userId) {
+            Integer sessions = localUsers.computeIfPresent(userId, (id, count) -> count > 1 ? count - 1 : null);
+            if (sessions == null) {
+                changed = true;
+                localCountChanged = true;
+                typingUntil.remove(userId);
+                lastLocalTyping.remove(userId);
+            }
+        }
+
+        boolean localTyping(Long userId, boolean typing, long now) {
+            if (typing) {
+                Long last = lastLocalTyping.get(userId);
+                if (last != null && now - last < typingMinIntervalMs && typingUntil.containsKey(userId)) {
+                    return false;
+                }
+                lastLocalTyping.put(userId, now);
+            } else {
+                lastLocalTyping.remove(userId);
+                if (!typingUntil.containsKey(userId)) {
+                    return false; // Nothing to stop
+                }
+            }
+            remoteTyping(userId, typing, now);
+            return true;
+        }
+
+        void remoteTyping(Long userId, boolean typing, long now) {
+            // Refreshing an existing entry only moves its expiry, nothing to publish
+            boolean unchanged = typing
+                    ? typingUntil.put(userId, now + typingTtlMs) != null
+                    : typingUntil.remove(userId) == null;
+            if (!unchanged) {
+                changed = true;
+            }
+        }
+
+        void remoteOnline(String nodeId, int count, long expiresAt) {
+            long[] previous = count > 0 ? remoteOnline.put(nodeId, new long[]{count, expiresAt}) : remoteOnline.remove(nodeId);
+            if (previous == null ? count > 0 : previous[0] != count) {
+                changed = true;
+            }
+        }
+
+        void expire(long now) {
+            if (typingUntil.values().removeIf(until -> until <= now)) {
+                changed = true;
+            }
+            if (remoteOnline.values().removeIf(entry -> entry[1] <= now)) {
+                changed = true;
+            }
+        }
+
+        ChatPresenceDto snapshotIfChanged(Long chatId) {
+            if (!changed) {
+                return null;
+            }
+            changed = false;
+            int online = localUsers.size();
+            for (long[] entry : remoteOnline.values()) {
+                online += (int) entry[0];
+            }
+            ChatPresenceDto snapshot = new ChatPresenceDto(chatId, online, List.copyOf(typingUntil.keySet()));
+            if (lastPublished != null && lastPublished.getOnline() == snapshot.getOnline()
+                    && Objects.equals(new HashSet<>(lastPublished.getTypingUserIds()), typingUntil.keySet())) {
+                return null;
+            }
+            lastPublished = snapshot;
+            return snapshot;
+        }
+
+        void republish() {
+            lastPublished = null;
+            changed = true;
+        }
+
+        boolean isEmpty() {
+            return localUsers.isEmpty() && typingUntil.isEmpty() && remoteOnline.isEmpty() && !changed;
+        }
+    }
+}
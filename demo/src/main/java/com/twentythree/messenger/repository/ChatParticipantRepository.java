@@ -3,9 +3,14 @@ package com.twentythree.messenger.repository;
 import com.twentythree.messenger.entity.Chat;
 import com.twentythree.messenger.entity.ChatParticipant;
 import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.matchmaking.MemberInterestRow;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -14,4 +19,12 @@ public interface ChatParticipantRepository extends JpaRepository<ChatParticipant
     boolean existsByUser(User user);
     Optional<ChatParticipant> findByUserAndChat(User user, Chat chat);
     void deleteByUserAndChat(User user, Chat chat);
+
+    @Query("SELECT cp.user.id FROM ChatParticipant cp WHERE cp.user.id IN :userIds")
+    List<Long> findUserIdsByUserIdIn(@Param("userIds") Collection<Long> userIds);
+
+    // Startup load of ChatMatchIndex: who is in which active chat, with their interests
+    @Query("SELECT new com.twentythree.messenger.matchmaking.MemberInterestRow(c.id, u.id, i.id) " +
+           "FROM ChatParticipant cp JOIN cp.chat c JOIN cp.user u LEFT JOIN u.interests i WHERE c.active = true")
+    List<MemberInterestRow> findActiveChatMemberInterests();
 }
\ No newline at end of file
@@ -2,12 +2,15 @@ package com.twentythree.messenger.repository;
 import com.twentythree.messenger.entity.Chat;
 import com.twentythree.messenger.entity.Interest;
 import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.matchmaking.OpenChatRow;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -17,15 +20,30 @@ public interface ChatRepository extends JpaRepository<Chat, Long> {
     Optional<Chat> findByCreator(User creator);
     boolean existsByCreator(User creator);
 
-    @Query("SELECT c FROM Chat c WHERE c.active = true AND c.primaryInterest = :interest AND c.id NOT IN (SELECT cp.chat.id FROM ChatParticipant cp WHERE cp.user = :user)")
-    List<Chat> findActiveChatsByInterestNotParticipatedByUser(@Param("interest") Interest interest, @Param("user") User user);
-    
+    // Startup load of ChatMatchIndex: every active chat with its participant count, no entities
+    @Query("SELECT new com.twentythree.messenger.matchmaking.OpenChatRow(c.id, c.primaryInterest.id, c.expiresAt, COUNT(p)) " +
+           "FROM Chat c LEFT JOIN c.participants p WHERE c.active = true GROUP BY c.id, c.primaryInterest.id, c.expiresAt")
+    List<OpenChatRow> findOpenChatCounts();
+
     @Query("SELECT c FROM Chat c JOIN c.participants p WHERE p.user = :user AND c.active = true")
     Optional<Chat> findActiveChatByParticipant(@Param("user") User user);
 
     Optional<Chat> findByCreatorAndActiveTrue(User creator);
 
+    @Query("SELECT c.creator.id FROM Chat c WHERE c.creator.id IN :userIds")
+    List<Long> findCreatorIdsByCreatorIdIn(@Param("userIds") Collection<Long> userIds);
+
     List<Chat> findByActiveTrueAndPrimaryInterestIn(Set<Interest> interests);
 
-    List<Chat> findAllByExpiresAtBeforeAndActiveTrue(LocalDateTime now);
+    // Ids only: the expiry sweep never needs the chats themselves
+    @Query("SELECT c.id FROM Chat c WHERE c.active = true AND c.expiresAt < :now")
+    List<Long> findExpiredActiveIds(@Param("now") LocalDateTime now);
+
+    @Query("SELECT c.id FROM Chat c WHERE c.id IN :ids AND c.active = true")
+    List<Long> findActiveIdsByIdIn(@Param("ids") Collection<Long> ids);
+
+    // One statement for a whole batch of expired chats (ChatExpiryWheel)
+    @Modifying
+    @Query("UPDATE Chat c SET c.active = false WHERE c.id IN :ids AND c.active = true")
+    int deactivateAll(@Param("ids") Collection<Long> ids);
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package com.twentythree.messenger.repository;
+
+import com.twentythree.messenger.entity.JobLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+// All lease transitions are conditional UPDATEs, so two nodes can never both win (see JobLeases)
+@Repository
+public interface JobLeaseRepository extends JpaRepository<JobLease, String> {
+
+    // Only an expired lease can be taken; the new holder gets the next fencing token
+    @Modifying
+    @Query("UPDATE JobLease l SET l.ownerNode = :owner, l.fencingToken = l.fencingToken + 1, l.leaseUntil = :until, " +
+           "l.acquiredAt = :now WHERE l.jobName = :job AND l.leaseUntil < :now")
+    int takeOver(@Param("job") String job, @Param("owner") String owner,
+                 @Param("now") LocalDateTime now, @Param("until") LocalDateTime until);
+
+    @Modifying
+    @Query("UPDATE JobLease l SET l.leaseUntil = :until WHERE l.jobName = :job AND l.ownerNode = :owner " +
+           "AND l.fencingToken = :token AND l.leaseUntil >= :now")
+    int renew(@Param("job") String job, @Param("owner") String owner, @Param("token") long token,
+              @Param("now") LocalDateTime now, @Param("until") LocalDateTime until);
+
+    // No-op write: succeeds only under the current lease and keeps the row locked until the caller's transaction ends
+    @Modifying
+    @Query("UPDATE JobLease l SET l.leaseUntil = l.leaseUntil WHERE l.jobName = :job AND l.ownerNode = :owner " +
+           "AND l.fencingToken = :token AND l.leaseUntil >= :now")
+    int fence(@Param("job") String job, @Param("owner") String owner, @Param("token") long token,
+              @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("UPDATE JobLease l SET l.leaseUntil = :now WHERE l.jobName = :job AND l.ownerNode = :owner AND l.fencingToken = :token")
+    int release(@Param("job") String job, @Param("owner") String owner, @Param("token") long token,
+                @Param("now") LocalDateTime now);
+
+    @Query("SELECT l.fencingToken FROM JobLease l WHERE l.jobName = :job AND l.ownerNode = :owner")
+    Optional<Long> findFencingToken(@Param("job") String job, @Param("owner") String owner);
+}
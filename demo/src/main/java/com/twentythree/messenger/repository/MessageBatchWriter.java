@@ -0,0 +1,115 @@
+package com.twentythree.messenger.repository;
+
+import com.twentythree.messenger.entity.Message;
+import com.twentythree.messenger.entity.enums.MessageType;
+import com.twentythree.messenger.entity.id.EntityIdGenerator;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.rowset.serial.SerialClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plain JDBC access to the {@code messages} table for the write-behind path.
+ * Bypasses the persistence context so that a whole batch goes out as one JDBC batch
+ * (rewritten into multi-row INSERTs by the driver, see {@code reWriteBatchedInserts}) and one commit.
+ */
+@Repository
+public class MessageBatchWriter {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO messages (message_id, chat_id, sender_user_id, message_type, content_text, content_image_url, sent_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EntityManagerFactory entityManagerFactory;
+    private volatile EntityIdGenerator messageIdGenerator;
+
+    public MessageBatchWriter(JdbcTemplate jdbcTemplate,
+                              PlatformTransactionManager transactionManager,
+                              EntityManagerFactory entityManagerFactory) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    /**
+     * Next Message id from the same allocator Hibernate uses for the entity, so queued rows and
+     * regular saves never collide. Ids are assigned up front so a message can be broadcast before its row exists.
+     */
+    public long nextId() {
+        return messageIdGenerator().nextId((sql, count) -> jdbcTemplate.queryForList(sql, Long.class, count));
+    }
+
+    private EntityIdGenerator messageIdGenerator() {
+        if (messageIdGenerator == null) {
+            messageIdGenerator = (EntityIdGenerator) entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                    .getMappingMetamodel()
+                    .getEntityDescriptor(Message.class)
+                    .getGenerator();
+        }
+        return messageIdGenerator;
+    }
+
+    public void insertBatch(List<Row> rows) {
+        // content_text is a @Lob, which Hibernate maps to an oid column on PostgreSQL:
+        // the large objects have to be written inside the same transaction as the rows.
+        transactionTemplate.executeWithoutResult(status ->
+                jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        Row row = rows.get(i);
+                        ps.setLong(1, row.id());
+                        ps.setLong(2, row.chatId());
+                        ps.setLong(3, row.senderId());
+                        ps.setString(4, row.messageType().name());
+                        if (row.contentText() != null) {
+                            ps.setClob(5, new SerialClob(row.contentText().toCharArray()));
+                        } else {
+                            ps.setNull(5, Types.CLOB);
+                        }
+                        ps.setString(6, row.contentImageUrl());
+                        ps.setTimestamp(7, Timestamp.valueOf(row.sentAt()));
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return rows.size();
+                    }
+                }));
+    }
+
+    /** Which of {@code ids} already have a row; tells a duplicate (written before) from a row that can't be stored. */
+    public Set<Long> existingIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Set.of();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        return new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT message_id FROM messages WHERE message_id IN (" + placeholders + ")", Long.class, ids.toArray()));
+    }
+
+    // Flat snapshot of a Message, so queued rows don't keep entity graphs alive
+    public record Row(Long id,
+                      Long chatId,
+                      Long senderId,
+                      MessageType messageType,
+                      String contentText,
+                      String contentImageUrl,
+                      LocalDateTime sentAt) {
+    }
+}
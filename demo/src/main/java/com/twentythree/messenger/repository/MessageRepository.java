@@ -2,12 +2,21 @@ package com.twentythree.messenger.repository;
 
 import com.twentythree.messenger.entity.Chat;
 import com.twentythree.messenger.entity.Message;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface MessageRepository extends JpaRepository<Message, Long> {
@@ -17,5 +26,40 @@ public interface MessageRepository extends JpaRepository<Message, Long> {
     // Найти сообщения для конкретного чата с пагинацией (если сообщений много)
     Page<Message> findByChatOrderBySentAtDesc(Chat chat, Pageable pageable); // Desc for latest first
 
+    long countByChat_Id(Long chatId);
+
+    // Keyset-пагинация по индексу (chat_id, sent_at, message_id): без OFFSET и без COUNT,
+    // поэтому страница 500 стоит столько же, сколько первая. Самые новые сообщения первыми.
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.chat.id = :chatId ORDER BY m.sentAt DESC, m.id DESC")
+    List<Message> findLatestByChatId(@Param("chatId") Long chatId, Limit limit);
+
+    // "sentAt <= :sentAt" задает границу диапазона в индексе, OR отсекает только строки с тем же sentAt
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.chat.id = :chatId AND m.sentAt <= :sentAt " +
+           "AND (m.sentAt < :sentAt OR m.id < :messageId) ORDER BY m.sentAt DESC, m.id DESC")
+    List<Message> findByChatIdBefore(@Param("chatId") Long chatId,
+                                     @Param("sentAt") LocalDateTime sentAt,
+                                     @Param("messageId") Long messageId,
+                                     Limit limit);
+
+    // Дельта-синхронизация: сообщения после (sentAt, id) последнего увиденного клиентом, по тому же индексу
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.chat.id = :chatId AND m.sentAt >= :sentAt " +
+           "AND (m.sentAt > :sentAt OR m.id > :messageId) ORDER BY m.sentAt ASC, m.id ASC")
+    List<Message> findByChatIdAfter(@Param("chatId") Long chatId,
+                                    @Param("sentAt") LocalDateTime sentAt,
+                                    @Param("messageId") Long messageId,
+                                    Limit limit);
+
+    @Query("SELECT m.sentAt FROM Message m WHERE m.id = :messageId AND m.chat.id = :chatId")
+    Optional<LocalDateTime> findSentAtByIdAndChatId(@Param("messageId") Long messageId, @Param("chatId") Long chatId);
+
+    // Полная история чата для экспорта: строки читаются курсором по fetch size, а не целиком в память.
+    // Должен вызываться внутри транзакции, поток нужно закрыть (try-with-resources).
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT m FROM Message m JOIN FETCH m.sender WHERE m.chat.id = :chatId ORDER BY m.sentAt ASC, m.id ASC")
+    Stream<Message> streamByChatId(@Param("chatId") Long chatId);
+
     // Можно добавить методы для поиска сообщений по отправителю, типу и т.д., если потребуется
 }
\ No newline at end of file
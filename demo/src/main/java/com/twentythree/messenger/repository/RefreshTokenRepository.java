@@ -0,0 +1,38 @@
+package com.twentythree.messenger.repository;
+
+import com.twentythree.messenger.entity.RefreshToken;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface RefreshTokenRepository extends JpaRepository<RefreshToken, Long> {
+    Optional<RefreshToken> findByTokenHash(String tokenHash);
+    boolean existsByFamilyIdAndRevokedTrue(String familyId);
+
+    // Rotation: succeeds (1) only for a token that is neither used nor revoked, so concurrent refreshes can't both win
+    @Modifying
+    @Query("UPDATE RefreshToken t SET t.usedAt = :now WHERE t.tokenHash = :tokenHash AND t.usedAt IS NULL AND t.revoked = false")
+    int markUsed(@Param("tokenHash") String tokenHash, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("UPDATE RefreshToken t SET t.revoked = true WHERE t.familyId = :familyId")
+    int revokeFamily(@Param("familyId") String familyId);
+
+    // Used or revoked tokens that haven't expired yet: what the revocation filter has to know after a restart
+    @Query("SELECT t.tokenHash FROM RefreshToken t WHERE (t.usedAt IS NOT NULL OR t.revoked = true) AND t.expiresAt > :now")
+    List<String> findSpentTokenHashes(@Param("now") LocalDateTime now);
+
+    @Query("SELECT DISTINCT t.familyId FROM RefreshToken t WHERE t.revoked = true AND t.expiresAt > :now")
+    List<String> findRevokedFamilies(@Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("DELETE FROM RefreshToken t WHERE t.expiresAt <= :now")
+    int deleteExpired(@Param("now") LocalDateTime now);
+}
@@ -1,8 +1,13 @@
 package com.twentythree.messenger.repository;
 
 import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.security.UserAuthState;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -13,4 +18,17 @@ public interface UserRepository extends JpaRepository<User, Long> {
     // or if they have created a chat.
     Optional<User> findByCreatedChatId(Long chatId);
     Optional<User> findByParticipatingChatChatId(Long chatId);
+
+    // Only what stateless JWT authentication needs to check a token against (see UserAuthStateCache)
+    @Query("SELECT new com.twentythree.messenger.security.UserAuthState(u.tokenVersion, u.nickname, u.profilePictureUrl) FROM User u WHERE u.id = :id")
+    Optional<UserAuthState> findAuthStateById(@Param("id") Long id);
+
+    // Ids only, for matchmaking; the user itself isn't needed
+    @Query("SELECT i.id FROM User u JOIN u.interests i WHERE u.id = :id")
+    List<Long> findInterestIdsById(@Param("id") Long id);
+
+    // Rehash on login after a BCrypt cost change, without loading the user again
+    @Modifying
+    @Query("UPDATE User u SET u.password = :passwordHash WHERE u.id = :id")
+    int updatePasswordHash(@Param("id") Long id, @Param("passwordHash") String passwordHash);
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package com.twentythree.messenger.security;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Injects the authenticated user's {@link com.twentythree.messenger.entity.User} into an HTTP handler method,
+ * loaded at most once per request (see CurrentUserEntityArgumentResolver).
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface CurrentUserEntity {
+
+    /**
+     * false: an unloaded reference, no query at all. Only {@code getId()} may be called on it,
+     * which is enough for passing the user to repository queries and as an association.
+     */
+    boolean fetch() default true;
+}
@@ -0,0 +1,57 @@
+package com.twentythree.messenger.security;
+
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.exception.ResourceNotFoundException;
+import com.twentythree.messenger.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+/**
+ * Resolves {@link CurrentUserEntity} parameters. The loaded user is kept as a request attribute,
+ * so all parameters asking for it within one request share a single query.
+ */
+@Component
+public class CurrentUserEntityArgumentResolver implements HandlerMethodArgumentResolver {
+
+    private static final String USER_ATTRIBUTE = CurrentUserEntityArgumentResolver.class.getName() + ".USER";
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return parameter.hasParameterAnnotation(CurrentUserEntity.class)
+                && parameter.getParameterType().isAssignableFrom(User.class);
+    }
+
+    @Override
+    public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+                                  NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !(authentication.getPrincipal() instanceof UserPrincipal principal)) {
+            throw new AccessDeniedException("User principal is null. Authentication required.");
+        }
+
+        User user = (User) webRequest.getAttribute(USER_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (user != null) {
+            return user;
+        }
+        if (!parameter.getParameterAnnotation(CurrentUserEntity.class).fetch()) {
+            // Not cached: a later fetch=true parameter must still get a loaded entity
+            return userRepository.getReferenceById(principal.getId());
+        }
+        user = userRepository.findById(principal.getId())
+                .orElseThrow(() -> new ResourceNotFoundException("User", "id", principal.getId()));
+        webRequest.setAttribute(USER_ATTRIBUTE, user, RequestAttributes.SCOPE_REQUEST);
+        return user;
+    }
+}
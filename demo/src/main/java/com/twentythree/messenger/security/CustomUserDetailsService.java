@@ -2,19 +2,30 @@ package com.twentythree.messenger.security;
 
 import com.twentythree.messenger.entity.User;
 import com.twentythree.messenger.repository.UserRepository;
+import io.jsonwebtoken.Claims;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.CredentialsExpiredException;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 @Service
-public class CustomUserDetailsService implements UserDetailsService {
+public class CustomUserDetailsService implements UserDetailsService, UserDetailsPasswordService {
 
     @Autowired
     UserRepository userRepository;
 
+    @Autowired
+    UserAuthStateCache userAuthStateCache;
+
+    // true: principal comes from the token claims, checked against UserAuthStateCache (no query per request)
+    @Value("${app.jwt.stateless:true}")
+    private boolean stateless;
+
     @Override
     @Transactional(readOnly = true)
     public UserDetails loadUserByUsername(String nickname) throws UsernameNotFoundException {
@@ -34,4 +45,41 @@ public class CustomUserDetailsService implements UserDetailsService {
         );
         return UserPrincipal.create(user);
     }
+
+    // Called by Spring Security after a successful login whose stored hash has a different BCrypt cost than configured
+    @Override
+    @Transactional
+    public UserDetails updatePassword(UserDetails user, String newPassword) {
+        UserPrincipal principal = (UserPrincipal) user;
+        userRepository.updatePasswordHash(principal.getId(), newPassword);
+        return new UserPrincipal(principal.getId(), principal.getUsername(), newPassword, principal.getAuthorities(),
+                principal.getTokenVersion());
+    }
+
+    // Used by JwtAuthenticationFilter and JwtChannelInterceptor for an already verified token
+    public UserDetails loadUserByClaims(Claims claims) {
+        UserPrincipal fromClaims = JwtTokenProvider.getPrincipal(claims);
+        if (fromClaims == null) {
+            // Token issued before principal fields were embedded: a missing "ver" counts as version 0,
+            // so "log out everywhere" revokes these too
+            UserPrincipal principal = (UserPrincipal) loadUserById(JwtTokenProvider.getUserId(claims));
+            if (principal.getTokenVersion() != JwtTokenProvider.getTokenVersion(claims)) {
+                throw new CredentialsExpiredException("Token revoked: " + principal.getId());
+            }
+            return principal;
+        }
+        UserPrincipal principal;
+        if (stateless) {
+            principal = userAuthStateCache.resolve(fromClaims);
+        } else {
+            principal = (UserPrincipal) loadUserById(fromClaims.getId());
+            if (principal.getTokenVersion() != fromClaims.getTokenVersion()) {
+                principal = null;
+            }
+        }
+        if (principal == null) {
+            throw new CredentialsExpiredException("Token revoked or user no longer exists: " + fromClaims.getId());
+        }
+        return principal;
+    }
 }
\ No newline at end of file
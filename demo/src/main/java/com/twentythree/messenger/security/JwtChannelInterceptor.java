@@ -2,8 +2,10 @@ package com.twentythree.messenger.security; // Укажите ваш корре
 
 import com.twentythree.messenger.security.JwtTokenProvider; // Ваш провайдер JWT токенов
 import com.twentythree.messenger.security.CustomUserDetailsService; // Ваш сервис для загрузки UserDetails
+import io.jsonwebtoken.Claims;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.twentythree.messenger.websocket.SenderSnapshotSessions;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy; // Используем Lazy, чтобы избежать циклической зависимости при инициализации SecurityConfig и WebSocketConfig
 import org.springframework.messaging.Message;
@@ -31,12 +33,15 @@ public class JwtChannelInterceptor implements ChannelInterceptor {
     // В большинстве случаев это не требуется, но это безопасная практика.
     private final JwtTokenProvider tokenProvider;
     private final CustomUserDetailsService customUserDetailsService;
+    private final SenderSnapshotSessions senderSnapshotSessions;
 
     @Autowired
     public JwtChannelInterceptor(@Lazy JwtTokenProvider tokenProvider,
-                                 @Lazy CustomUserDetailsService customUserDetailsService) {
+                                 @Lazy CustomUserDetailsService customUserDetailsService,
+                                 @Lazy SenderSnapshotSessions senderSnapshotSessions) {
         this.tokenProvider = tokenProvider;
         this.customUserDetailsService = customUserDetailsService;
+        this.senderSnapshotSessions = senderSnapshotSessions;
     }
 
     @Override
@@ -64,10 +69,10 @@ public class JwtChannelInterceptor implements ChannelInterceptor {
             }
 
             if (jwt != null) {
-                if (tokenProvider.validateToken(jwt)) { // Валидируем токен
+                Claims claims = tokenProvider.parse(jwt); // Валидируем токен (один разбор, проверенные токены кэшируются)
+                if (claims != null) {
                     try {
-                        Long userId = tokenProvider.getUserIdFromJWT(jwt); // Получаем ID пользователя из токена
-                        UserDetails userDetails = customUserDetailsService.loadUserById(userId); // Загружаем UserDetails
+                        UserDetails userDetails = customUserDetailsService.loadUserByClaims(claims); // UserDetails из claims токена (без запроса к БД)
 
                         // Создаем объект аутентификации
                         UsernamePasswordAuthenticationToken authentication =
@@ -77,6 +82,8 @@ public class JwtChannelInterceptor implements ChannelInterceptor {
                         // Spring Security для WebSocket затем будет использовать этого пользователя для авторизации
                         // и для заполнения Principal в ваших @MessageMapping методах.
                         accessor.setUser(authentication);
+                        // Снимок отправителя (id, ник, аватар) в атрибутах сессии: SEND не загружает пользователя
+                        senderSnapshotSessions.capture(accessor.getSessionId(), accessor.getSessionAttributes(), (UserPrincipal) userDetails);
                         // SecurityContextHolder.getContext().setAuthentication(authentication); // Это обычно не нужно для WebSocket, accessor.setUser важнее
 
                         logger.info("WebSocket CONNECT: User '{}' authenticated successfully via JWT.", userDetails.getUsername());
@@ -7,10 +7,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class JwtTokenProvider {
@@ -18,56 +30,216 @@ public class JwtTokenProvider {
     private static final Logger logger = LoggerFactory.getLogger(JwtTokenProvider.class);
 
     private final SecretKey jwtSecretKey; // Use SecretKey for type safety
+    private final JwtParser jwtParser; // Thread-safe, built once
+
+    // Recently verified tokens: SHA-256 of the token -> its claims. A hit skips decoding and the HMAC check.
+    private final Map<ByteBuffer, VerifiedToken> verifiedTokens = new ConcurrentHashMap<>();
+    private final int verifiedCacheMaxSize;
 
     @Value("${app.jwt.expiration-ms}")
     private int jwtExpirationInMs;
 
-    public JwtTokenProvider(@Value("${app.jwt.secret}") String jwtSecretString) {
+    @Value("${app.jwt.refresh-token.expiration-ms}")
+    private long refreshExpirationInMs;
+
+    public JwtTokenProvider(@Value("${app.jwt.secret}") String jwtSecretString,
+                            @Value("${app.jwt.verified-cache.max-size:10000}") int verifiedCacheMaxSize) {
         // Ensure the secret key is strong enough for the chosen algorithm (HS256, HS384, HS512)
         // For HS256, the key should be at least 256 bits (32 bytes).
         // If your jwtSecretString is shorter, this might lead to weak keys or errors.
         // Consider generating a secure key or ensuring your configured secret meets requirements.
         this.jwtSecretKey = Keys.hmacShaKeyFor(jwtSecretString.getBytes());
+        this.jwtParser = Jwts.parserBuilder().setSigningKey(jwtSecretKey).build();
+        this.verifiedCacheMaxSize = verifiedCacheMaxSize;
+    }
+
+    // Principal fields carried in the token, so requests can be authenticated without loading the user
+    static final String CLAIM_NICKNAME = "nick";
+    static final String CLAIM_ROLES = "roles";
+    static final String CLAIM_TOKEN_VERSION = "ver";
+    // Refresh tokens: marked so they are never accepted as access tokens, and tied to their rotation family
+    static final String CLAIM_TYPE = "typ";
+    static final String CLAIM_FAMILY = "fam";
+    private static final String TYPE_REFRESH = "refresh";
+
+    private record VerifiedToken(Claims claims, long expiresAtMillis) {
     }
 
     public String generateToken(Authentication authentication) {
-        UserPrincipal userPrincipal = (UserPrincipal) authentication.getPrincipal();
+        return generateToken((UserPrincipal) authentication.getPrincipal());
+    }
+
+    public String generateToken(UserPrincipal userPrincipal) {
         Date now = new Date();
         Date expiryDate = new Date(now.getTime() + jwtExpirationInMs);
 
         return Jwts.builder()
                 .setSubject(Long.toString(userPrincipal.getId()))
+                .claim(CLAIM_NICKNAME, userPrincipal.getUsername())
+                .claim(CLAIM_ROLES, userPrincipal.getAuthorities().stream().map(GrantedAuthority::getAuthority).toList())
+                .claim(CLAIM_TOKEN_VERSION, userPrincipal.getTokenVersion())
                 .setIssuedAt(new Date())
                 .setExpiration(expiryDate)
                 .signWith(jwtSecretKey, SignatureAlgorithm.HS512) // Or HS256, HS384
                 .compact();
     }
 
-    public Long getUserIdFromJWT(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(jwtSecretKey)
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
+    /**
+     * A refresh token for the user in rotation family {@code familyId}. Carries the token version, so
+     * "log out everywhere" also ends refresh; the random id makes every token (and its hash) unique.
+     */
+    public String generateRefreshToken(Long userId, int tokenVersion, String familyId) {
+        Date now = new Date();
+        return Jwts.builder()
+                .setSubject(Long.toString(userId))
+                .setId(UUID.randomUUID().toString())
+                .claim(CLAIM_TYPE, TYPE_REFRESH)
+                .claim(CLAIM_FAMILY, familyId)
+                .claim(CLAIM_TOKEN_VERSION, tokenVersion)
+                .setIssuedAt(now)
+                .setExpiration(new Date(now.getTime() + refreshExpirationInMs))
+                .signWith(jwtSecretKey, SignatureAlgorithm.HS512)
+                .compact();
+    }
+
+    public long getRefreshExpirationInMs() {
+        return refreshExpirationInMs;
+    }
+
+    /** Verified claims of a refresh token, or null if it is invalid, expired or not a refresh token. Never cached. */
+    public Claims parseRefreshToken(String token) {
+        if (token == null || token.isEmpty()) {
+            logger.error("Refresh token is empty.");
+            return null;
+        }
+        Claims claims = verify(token);
+        if (claims != null && !TYPE_REFRESH.equals(claims.get(CLAIM_TYPE, String.class))) {
+            logger.error("Access token presented as a refresh token");
+            return null;
+        }
+        return claims;
+    }
+
+    public static String getRefreshFamily(Claims claims) {
+        return claims.get(CLAIM_FAMILY, String.class);
+    }
+
+    public static int getTokenVersion(Claims claims) {
+        Integer tokenVersion = claims.get(CLAIM_TOKEN_VERSION, Integer.class);
+        return tokenVersion != null ? tokenVersion : 0;
+    }
+
+    /** Hex SHA-256 of a token: how refresh tokens are stored and looked up. */
+    public static String hashToken(String token) {
+        return HexFormat.of().formatHex(digest(token));
+    }
 
+    /**
+     * Verified claims of the token, or null if it is invalid or expired (the reason is logged).
+     * Tokens verified before are answered from a bounded cache until they expire.
+     */
+    public Claims parse(String token) {
+        if (token == null || token.isEmpty()) {
+            logger.error("JWT claims string is empty.");
+            return null;
+        }
+        ByteBuffer key = verifiedCacheMaxSize > 0 ? cacheKey(token) : null;
+        if (key != null) {
+            VerifiedToken cached = verifiedTokens.get(key);
+            if (cached != null) {
+                if (System.currentTimeMillis() < cached.expiresAtMillis()) {
+                    return cached.claims();
+                }
+                verifiedTokens.remove(key, cached);
+                logger.error("Expired JWT token");
+                return null;
+            }
+        }
+
+        Claims claims = verify(token);
+        if (claims == null) {
+            return null;
+        }
+        if (TYPE_REFRESH.equals(claims.get(CLAIM_TYPE, String.class))) {
+            logger.error("Refresh token presented as an access token");
+            return null;
+        }
+
+        // Only tokens that expire are cached, so an entry never outlives its token
+        if (key != null && claims.getExpiration() != null) {
+            if (verifiedTokens.size() >= verifiedCacheMaxSize) {
+                evictVerifiedTokens();
+            }
+            verifiedTokens.put(key, new VerifiedToken(claims, claims.getExpiration().getTime()));
+        }
+        return claims;
+    }
+
+    public static Long getUserId(Claims claims) {
         return Long.parseLong(claims.getSubject());
     }
 
-    public boolean validateToken(String authToken) {
+    /**
+     * Principal rebuilt from the token alone (no password), or null for tokens issued before
+     * the principal fields were embedded. Still has to be checked against {@link UserAuthStateCache}.
+     */
+    public static UserPrincipal getPrincipal(Claims claims) {
+        String nickname = claims.get(CLAIM_NICKNAME, String.class);
+        Integer tokenVersion = claims.get(CLAIM_TOKEN_VERSION, Integer.class);
+        List<?> roles = claims.get(CLAIM_ROLES, List.class);
+        if (nickname == null || tokenVersion == null || roles == null) {
+            return null;
+        }
+        List<GrantedAuthority> authorities = roles.stream()
+                .map(role -> (GrantedAuthority) new SimpleGrantedAuthority(role.toString()))
+                .toList();
+        return new UserPrincipal(getUserId(claims), nickname, null, authorities, tokenVersion);
+    }
+
+    // Signature and expiry check; null (with the reason logged) if the token doesn't pass
+    private Claims verify(String token) {
         try {
-            Jwts.parserBuilder().setSigningKey(jwtSecretKey).build().parseClaimsJws(authToken);
-            return true;
+            return jwtParser.parseClaimsJws(token).getBody();
         } catch (SignatureException ex) {
             logger.error("Invalid JWT signature");
+            return null;
         } catch (MalformedJwtException ex) {
             logger.error("Invalid JWT token");
+            return null;
         } catch (ExpiredJwtException ex) {
             logger.error("Expired JWT token");
+            return null;
         } catch (UnsupportedJwtException ex) {
             logger.error("Unsupported JWT token");
+            return null;
         } catch (IllegalArgumentException ex) {
             logger.error("JWT claims string is empty.");
+            return null;
+        }
+    }
+
+    // Drops expired entries; if that frees too little, roughly a tenth of the rest (in no particular order)
+    private void evictVerifiedTokens() {
+        long now = System.currentTimeMillis();
+        verifiedTokens.values().removeIf(token -> token.expiresAtMillis() <= now);
+        int excess = verifiedTokens.size() - verifiedCacheMaxSize * 9 / 10;
+        Iterator<ByteBuffer> it = verifiedTokens.keySet().iterator();
+        while (excess-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    // Hash rather than the token itself: no bearer tokens kept in memory, fixed-size keys
+    private static ByteBuffer cacheKey(String token) {
+        return ByteBuffer.wrap(digest(token));
+    }
+
+    private static byte[] digest(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
         }
-        return false;
     }
-}
\ No newline at end of file
+}
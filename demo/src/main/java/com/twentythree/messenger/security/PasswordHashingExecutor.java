@@ -0,0 +1,116 @@
+package com.twentythree.messenger.security;
+
+import com.twentythree.messenger.exception.ServiceBusyException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs BCrypt-heavy work (login, registration) on its own small pool, so a login storm queues here
+ * instead of occupying the Tomcat threads that serve chats and history.
+ * <p>
+ * Admission control: at most {@code queue-capacity} tasks wait; beyond that, and for any task that waited longer
+ * than {@code max-queue-wait-ms} (its client has likely given up), the future fails with {@link ServiceBusyException}.
+ * <p>
+ * Database work that follows the hashing (the registration insert, login's token rows) goes to
+ * {@link #databaseExecutor()}, a second small pool of {@code db-threads}, so hashing threads never wait for a connection.
+ * <p>
+ * Metrics: {@code auth.hashing.queue.time{operation}}, {@code auth.hashing.execution.time{operation}},
+ * {@code auth.hashing.rejected{reason}}, {@code auth.hashing.queue.size} and {@code auth.hashing.active}.
+ */
+@Component
+public class PasswordHashingExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor databaseExecutor;
+    private final long maxQueueWaitNanos;
+    private final MeterRegistry meterRegistry;
+
+    public PasswordHashingExecutor(@Value("${app.security.hashing.threads:0}") int threads,
+                                   @Value("${app.security.hashing.queue-capacity:64}") int queueCapacity,
+                                   @Value("${app.security.hashing.max-queue-wait-ms:5000}") long maxQueueWaitMs,
+                                   @Value("${app.security.hashing.db-threads:4}") int databaseThreads,
+                                   MeterRegistry meterRegistry) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "password-hashing-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        // Unbounded queue: only tasks already admitted to the hashing pool get here
+        AtomicInteger databaseThreadNumber = new AtomicInteger();
+        this.databaseExecutor = new ThreadPoolExecutor(databaseThreads, databaseThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "password-hashing-db-" + databaseThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMs);
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("auth.hashing.queue.size", executor, e -> e.getQueue().size())
+                .description("Login/registration tasks waiting for a hashing thread")
+                .register(meterRegistry);
+        Gauge.builder("auth.hashing.active", executor, ThreadPoolExecutor::getActiveCount)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+        databaseExecutor.shutdownNow();
+    }
+
+    /** Where to continue with database work after {@link #submit}, e.g. {@code thenApplyAsync(..., databaseExecutor())}. */
+    public Executor databaseExecutor() {
+        return databaseExecutor;
+    }
+
+    /** Runs {@code task} on the hashing pool; {@code operation} tags the metrics. */
+    public <T> CompletableFuture<T> submit(String operation, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long waited = System.nanoTime() - enqueuedAt;
+                meterRegistry.timer("auth.hashing.queue.time", "operation", operation).record(waited, TimeUnit.NANOSECONDS);
+                if (waited > maxQueueWaitNanos) {
+                    rejected("queue_timeout");
+                    result.completeExceptionally(new ServiceBusyException("Too many sign-ins in progress, please retry."));
+                    return;
+                }
+                long startedAt = System.nanoTime();
+                try {
+                    result.complete(task.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    meterRegistry.timer("auth.hashing.execution.time", "operation", operation)
+                            .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected("queue_full");
+            result.completeExceptionally(new ServiceBusyException("Too many sign-ins in progress, please retry.", e));
+        }
+        return result;
+    }
+
+    private void rejected(String reason) {
+        meterRegistry.counter("auth.hashing.rejected", "reason", reason).increment();
+    }
+}
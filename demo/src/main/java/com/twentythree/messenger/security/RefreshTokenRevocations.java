@@ -0,0 +1,204 @@
+package com.twentythree.messenger.security;
+
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.repository.RefreshTokenRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Which refresh tokens may no longer be used: the spent ones (already rotated) and every token of a revoked family.
+ * <p>
+ * The database stays the source of truth (rotation is a conditional UPDATE there), but the question "is this token
+ * revoked?" is answered in memory: a {@link BloomFilter} over the hashes of spent tokens and the ids of revoked
+ * families says "no" for almost every valid token without touching the database. Only a filter hit goes to a small
+ * exact cache and, failing that, to one indexed query. Additions reach the other nodes over the {@link ClusterBus}.
+ * <p>
+ * The filter can't forget, so it is rebuilt from the database (after deleting expired rows) at startup and whenever
+ * it has taken more keys than it was sized for.
+ * <p>
+ * Metrics: {@code auth.refresh.revocation.lookups{source}} with source filter, cache or db.
+ */
+@Component
+public class RefreshTokenRevocations {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshTokenRevocations.class);
+
+    static final String CLUSTER_DESTINATION = "refresh-token-revocations";
+    private static final String TOKEN_PREFIX = "t:";
+    private static final String FAMILY_PREFIX = "f:";
+
+    private final RefreshTokenRepository refreshTokenRepository;
+    private final ClusterBus clusterBus;
+    private final MeterRegistry meterRegistry;
+    private final TransactionTemplate transactionTemplate;
+    private final int expectedInsertions;
+    private final double falsePositiveRate;
+    private final int exactCacheSize;
+
+    private volatile BloomFilter filter;
+    private int capacity; // Keys the current filter was sized for; guarded by this
+    private int insertions; // Guarded by this
+    // "t:<token hash>" / "f:<family id>" -> revoked?; access-ordered, so the least recently asked is dropped
+    private final Map<String, Boolean> exact;
+
+    public RefreshTokenRevocations(RefreshTokenRepository refreshTokenRepository, ClusterBus clusterBus,
+                                   MeterRegistry meterRegistry, PlatformTransactionManager transactionManager,
+                                   @Value("${app.jwt.refresh-token.revocation-filter.expected-insertions:100000}") int expectedInsertions,
+                                   @Value("${app.jwt.refresh-token.revocation-filter.fpp:0.01}") double falsePositiveRate,
+                                   @Value("${app.jwt.refresh-token.revocation-filter.exact-cache-size:10000}") int exactCacheSize) {
+        this.refreshTokenRepository = refreshTokenRepository;
+        this.clusterBus = clusterBus;
+        this.meterRegistry = meterRegistry;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.exactCacheSize = exactCacheSize;
+        this.capacity = expectedInsertions;
+        this.filter = new BloomFilter(expectedInsertions, falsePositiveRate);
+        this.exact = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > RefreshTokenRevocations.this.exactCacheSize;
+            }
+        };
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        clusterBus.subscribe(this::receiveFromCluster);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadFromDatabase() {
+        rebuild();
+    }
+
+    public boolean isFamilyRevoked(String familyId) {
+        return check(FAMILY_PREFIX + familyId, digest(FAMILY_PREFIX + familyId),
+                () -> refreshTokenRepository.existsByFamilyIdAndRevokedTrue(familyId));
+    }
+
+    /** True if the token (by {@link JwtTokenProvider#hashToken hash}) was already rotated or revoked. */
+    public boolean isSpent(String tokenHash) {
+        // A signed, unexpired token without a row was never stored or is gone: not usable either way
+        return check(TOKEN_PREFIX + tokenHash, HexFormat.of().parseHex(tokenHash),
+                () -> refreshTokenRepository.findByTokenHash(tokenHash)
+                        .map(token -> token.getUsedAt() != null || token.isRevoked())
+                        .orElse(true));
+    }
+
+    /** Records a token rotated in a committed transaction, here and on the other nodes. */
+    public void markSpent(String tokenHash) {
+        add(TOKEN_PREFIX + tokenHash);
+        clusterBus.publish(CLUSTER_DESTINATION, TOKEN_PREFIX + tokenHash);
+    }
+
+    /** Records a family revoked in a committed transaction, here and on the other nodes. */
+    public void markFamilyRevoked(String familyId) {
+        add(FAMILY_PREFIX + familyId);
+        clusterBus.publish(CLUSTER_DESTINATION, FAMILY_PREFIX + familyId);
+    }
+
+    private boolean check(String key, byte[] filterKey, BooleanSupplier database) {
+        if (!filter.mightContain(filterKey)) {
+            lookup("filter");
+            return false;
+        }
+        Boolean cached;
+        synchronized (exact) {
+            cached = exact.get(key);
+        }
+        if (cached != null) {
+            lookup("cache");
+            return cached;
+        }
+        lookup("db");
+        boolean revoked = database.getAsBoolean();
+        synchronized (exact) {
+            // Don't overwrite a "revoked" recorded while the query ran
+            exact.merge(key, revoked, (current, loaded) -> current || loaded);
+        }
+        return revoked;
+    }
+
+    private synchronized void add(String key) {
+        filter.put(filterKey(key));
+        synchronized (exact) {
+            exact.put(key, Boolean.TRUE);
+        }
+        if (++insertions > capacity) {
+            rebuild();
+        }
+    }
+
+    // Synchronized with add(), so nothing added while the rows are read can miss the new filter
+    private synchronized void rebuild() {
+        LocalDateTime now = LocalDateTime.now();
+        List<String> keys = transactionTemplate.execute(status -> {
+            refreshTokenRepository.deleteExpired(now);
+            List<String> result = new ArrayList<>();
+            refreshTokenRepository.findSpentTokenHashes(now).forEach(hash -> result.add(TOKEN_PREFIX + hash));
+            refreshTokenRepository.findRevokedFamilies(now).forEach(family -> result.add(FAMILY_PREFIX + family));
+            return result;
+        });
+        // Leave headroom, so a large live set doesn't trigger a rebuild on the next few additions
+        int newCapacity = Math.max(expectedInsertions, keys.size() * 2);
+        BloomFilter rebuilt = new BloomFilter(newCapacity, falsePositiveRate);
+        keys.forEach(key -> rebuilt.put(filterKey(key)));
+        filter = rebuilt;
+        capacity = newCapacity;
+        insertions = keys.size();
+        logger.info("Refresh token revocation filter rebuilt with {} entries (capacity {})", keys.size(), newCapacity);
+    }
+
+    private void receiveFromCluster(ClusterMessage message) {
+        if (!CLUSTER_DESTINATION.equals(message.destination())) {
+            return;
+        }
+        String key = message.body();
+        if (key.startsWith(TOKEN_PREFIX) || key.startsWith(FAMILY_PREFIX)) {
+            add(key);
+        } else {
+            logger.warn("Ignoring malformed refresh token revocation: {}", key);
+        }
+    }
+
+    private void lookup(String source) {
+        meterRegistry.counter("auth.refresh.revocation.lookups", "source", source).increment();
+    }
+
+    // Token hashes are SHA-256 already; family ids get hashed so their bits are just as uniform
+    private static byte[] filterKey(String key) {
+        return key.startsWith(TOKEN_PREFIX)
+                ? HexFormat.of().parseHex(key.substring(TOKEN_PREFIX.length()))
+                : digest(key);
+    }
+
+    private static byte[] digest(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.twentythree.messenger.security;
+
+import com.twentythree.messenger.entity.User;
+
+/**
+ * What a message needs to know about its sender. Captured once per WebSocket session
+ * (see SenderSnapshotSessions) so sending a message doesn't load the user.
+ */
+public record SenderSnapshot(Long id, String nickname, String profilePictureUrl) {
+
+    public static SenderSnapshot of(User user) {
+        return new SenderSnapshot(user.getId(), user.getNickname(), user.getProfilePictureUrl());
+    }
+
+    public static SenderSnapshot of(Long userId, UserAuthState state) {
+        return new SenderSnapshot(userId, state.nickname(), state.profilePictureUrl());
+    }
+}
@@ -0,0 +1,8 @@
+package com.twentythree.messenger.security;
+
+/**
+ * The parts of a user that decide whether a token's claims still hold (its version and the nickname it names),
+ * plus the avatar URL, so a message sender can be shown without loading the user.
+ */
+public record UserAuthState(int tokenVersion, String nickname, String profilePictureUrl) {
+}
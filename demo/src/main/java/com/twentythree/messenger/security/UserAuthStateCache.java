@@ -0,0 +1,193 @@
+package com.twentythree.messenger.security;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Current token version, nickname and avatar per user, so a principal rebuilt from JWT claims can be checked
+ * (and a message sender described) without a query per request.
+ * <p>
+ * A user's state is loaded once (one narrow query) and then kept for {@code ttl-ms}. Changes made through
+ * {@link #updateAfterCommit} apply here at once and reach the other nodes over the {@link ClusterBus};
+ * the TTL only bounds how long a node that missed such a message can lag behind.
+ */
+@Component
+public class UserAuthStateCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserAuthStateCache.class);
+
+    static final String CLUSTER_DESTINATION = "user-auth-state";
+
+    private final UserRepository userRepository;
+    private final ClusterBus clusterBus;
+    private final ObjectMapper objectMapper;
+    private final long ttlMs;
+    private final int maxSize;
+    private final Map<Long, Entry> states = new ConcurrentHashMap<>();
+    private final List<BiConsumer<Long, UserAuthState>> changeListeners = new CopyOnWriteArrayList<>();
+
+    public UserAuthStateCache(UserRepository userRepository, ClusterBus clusterBus, ObjectMapper objectMapper,
+                              @Value("${app.jwt.user-state-cache.ttl-ms:300000}") long ttlMs,
+                              @Value("${app.jwt.user-state-cache.max-size:100000}") int maxSize) {
+        this.userRepository = userRepository;
+        this.clusterBus = clusterBus;
+        this.objectMapper = objectMapper;
+        this.ttlMs = ttlMs;
+        this.maxSize = maxSize;
+    }
+
+    private record Entry(UserAuthState state, long loadedAtMillis) {
+    }
+
+    /** Node-to-node notice that a user's auth state changed. */
+    record StateChange(@JsonProperty("u") Long userId,
+                       @JsonProperty("v") int tokenVersion,
+                       @JsonProperty("n") String nickname,
+                       @JsonProperty("p") String profilePictureUrl) {
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        clusterBus.subscribe(this::receiveFromCluster);
+    }
+
+    /** Called with the new state whenever a user's state is seen to change, by a local update or from another node. */
+    public void addChangeListener(BiConsumer<Long, UserAuthState> listener) {
+        changeListeners.add(listener);
+    }
+
+    /** Current state of the user (from the cache while fresh), or null if the user doesn't exist. */
+    public UserAuthState get(Long userId) {
+        Entry entry = states.get(userId);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.loadedAtMillis() < ttlMs) {
+            return entry.state();
+        }
+        UserAuthState state = userRepository.findAuthStateById(userId).orElse(null);
+        if (state == null) {
+            states.remove(userId);
+            return null;
+        }
+        UserAuthState current = merge(userId, state, now);
+        if (entry != null && !entry.state().equals(current)) {
+            notifyChanged(userId, current); // Changed while this node missed the notice
+        }
+        return current;
+    }
+
+    /**
+     * The principal to authenticate with for a token whose claims produced {@code fromClaims}: null if the user
+     * no longer exists or the token's version was revoked, otherwise the principal with the current nickname.
+     */
+    public UserPrincipal resolve(UserPrincipal fromClaims) {
+        UserAuthState state = get(fromClaims.getId());
+        if (state == null) {
+            logger.warn("JWT for unknown user {}", fromClaims.getId());
+            return null;
+        }
+        if (fromClaims.getTokenVersion() != state.tokenVersion()) {
+            logger.warn("Revoked JWT for user {} (token version {}, current {})",
+                    fromClaims.getId(), fromClaims.getTokenVersion(), state.tokenVersion());
+            return null;
+        }
+        if (!state.nickname().equals(fromClaims.getUsername())) {
+            return new UserPrincipal(fromClaims.getId(), state.nickname(), null, fromClaims.getAuthorities(), state.tokenVersion());
+        }
+        return fromClaims;
+    }
+
+    /**
+     * Records the user's version and nickname once the surrounding transaction commits (immediately if there is none),
+     * here and on the other nodes. Call after changing either.
+     */
+    public void updateAfterCommit(User user) {
+        StateChange change = new StateChange(user.getId(), user.getTokenVersion(), user.getNickname(), user.getProfilePictureUrl());
+        Runnable action = () -> {
+            apply(change);
+            try {
+                clusterBus.publish(CLUSTER_DESTINATION, objectMapper.writeValueAsString(change));
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Could not serialize user auth state", e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void receiveFromCluster(ClusterMessage message) {
+        if (!CLUSTER_DESTINATION.equals(message.destination())) {
+            return;
+        }
+        try {
+            apply(objectMapper.readValue(message.body(), StateChange.class));
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed user auth state change: {}", e.getMessage());
+        }
+    }
+
+    private void apply(StateChange change) {
+        UserAuthState state = new UserAuthState(change.tokenVersion(), change.nickname(), change.profilePictureUrl());
+        if (merge(change.userId(), state, System.currentTimeMillis()) == state) {
+            notifyChanged(change.userId(), state);
+        }
+    }
+
+    private void notifyChanged(Long userId, UserAuthState state) {
+        for (BiConsumer<Long, UserAuthState> listener : changeListeners) {
+            try {
+                listener.accept(userId, state);
+            } catch (RuntimeException e) {
+                logger.warn("User auth state listener failed for user {}", userId, e);
+            }
+        }
+    }
+
+    /**
+     * Stores {@code state} unless the cached one has a higher token version (versions only grow), and returns
+     * whichever is kept. A reload that read the row before a revocation committed, or a notice that arrives late,
+     * must not bring a revoked version back.
+     */
+    private UserAuthState merge(Long userId, UserAuthState state, long now) {
+        makeRoom(userId);
+        return states.compute(userId, (id, current) ->
+                current != null && current.state().tokenVersion() > state.tokenVersion()
+                        ? current
+                        : new Entry(state, now)).state();
+    }
+
+    private void makeRoom(Long userId) {
+        if (states.size() >= maxSize && !states.containsKey(userId)) {
+            long now = System.currentTimeMillis();
+            states.values().removeIf(e -> now - e.loadedAtMillis() >= ttlMs);
+            if (states.size() >= maxSize) {
+                states.clear(); // Everything is reloadable; just start over
+            }
+        }
+    }
+}
@@ -20,11 +20,19 @@ public class UserPrincipal implements UserDetails {
 
     private Collection<? extends GrantedAuthority> authorities;
 
+    private int tokenVersion; // User.tokenVersion at load time, goes into issued tokens
+
     public UserPrincipal(Long id, String nickname, String password, Collection<? extends GrantedAuthority> authorities) {
+        this(id, nickname, password, authorities, 0);
+    }
+
+    public UserPrincipal(Long id, String nickname, String password, Collection<? extends GrantedAuthority> authorities,
+                         int tokenVersion) {
         this.id = id;
         this.nickname = nickname;
         this.password = password;
         this.authorities = authorities;
+        this.tokenVersion = tokenVersion;
     }
 
     public static UserPrincipal create(User user) {
@@ -40,14 +48,25 @@ public class UserPrincipal implements UserDetails {
                 user.getId(),
                 user.getNickname(),
                 user.getPassword(), // Hashed password from User entity
-                authorities
+                authorities,
+                user.getTokenVersion()
         );
     }
 
+    // For issuing tokens from cached state (refresh), without loading the user; no password
+    public static UserPrincipal create(Long id, UserAuthState state) {
+        List<GrantedAuthority> authorities = List.of(new SimpleGrantedAuthority("ROLE_USER"));
+        return new UserPrincipal(id, state.nickname(), null, authorities, state.tokenVersion());
+    }
+
     public Long getId() {
         return id;
     }
 
+    public int getTokenVersion() {
+        return tokenVersion;
+    }
+
     @Override
     public String getUsername() {
         // Spring Security's UserDetailsService expects a "username".
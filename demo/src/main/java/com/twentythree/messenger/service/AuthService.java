@@ -3,7 +3,11 @@ import com.twentythree.messenger.dto.auth.JwtAuthResponse;
 import com.twentythree.messenger.dto.auth.LoginRequest;
 import com.twentythree.messenger.dto.auth.RegistrationRequest;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface AuthService {
-    JwtAuthResponse loginUser(LoginRequest loginRequest);
-    String registerUser(RegistrationRequest registrationRequest);
+    CompletableFuture<JwtAuthResponse> loginUser(LoginRequest loginRequest); // Completes on the password hashing pool
+    CompletableFuture<String> registerUser(RegistrationRequest registrationRequest);
+    JwtAuthResponse refreshToken(String refreshToken); // Rotates: the presented token is spent, a new one is returned
+    void revokeAllTokens(Long userId); // Invalidates every token issued to the user so far
 }
\ No newline at end of file
@@ -4,9 +4,13 @@ import com.twentythree.messenger.dto.chat.ChatDto;
 import com.twentythree.messenger.dto.chat.JoinChatRequestDto; // Or just interest ID
 import com.twentythree.messenger.entity.User;
 
+import java.util.List;
+
 public interface ChatService {
     ChatDto createChat(ChatCreateRequest createRequest, User currentUser);
     ChatDto joinChatByInterest(Long interestId, User currentUser); // Or JoinChatRequestDto
+    ChatDto joinBestMatch(User currentUser); // Chat whose participants share the most of the user's interests
+    ChatDto openChatForWaiters(Long interestId, List<Long> userIds); // New chat seating every user still free, or null
     ChatDto getCurrentChatForUser(User currentUser);
     ChatDto getChatDetails(Long chatId, User currentUser); // To ensure user is part of it or for admin
     void leaveChat(Long chatId, User currentUser);
@@ -1,17 +1,25 @@
 package com.twentythree.messenger.service;
 
+import com.twentythree.messenger.dto.message.MessageDeltaSync;
 import com.twentythree.messenger.dto.message.MessageDto;
+import com.twentythree.messenger.dto.message.MessageHistoryPage;
 import com.twentythree.messenger.dto.message.MessageSendRequest;
 import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.security.SenderSnapshot;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public interface MessageService {
-    MessageDto saveAndBroadcastMessage(Long chatId, User sender, MessageSendRequest messageRequest);
+    MessageDto saveAndBroadcastMessage(Long chatId, SenderSnapshot sender, MessageSendRequest messageRequest); // Doesn't load the sender
     MessageDto storeAndCreateImageMessage(Long chatId, User sender, MultipartFile file); // For HTTP upload
     List<MessageDto> getMessagesForChat(Long chatId, User currentUser); // For initial load or history
     Page<MessageDto> getMessagesForChatPaginated(Long chatId, User currentUser, Pageable pageable);
+    MessageHistoryPage getMessageHistory(Long chatId, User currentUser, String beforeCursor, int limit); // Keyset (cursor) pagination
+    MessageDeltaSync getMessagesSince(Long chatId, User currentUser, Long lastSeenMessageId); // Catch-up after a reconnect
+    void exportMessagesAsNdjson(Long chatId, User currentUser, OutputStream out) throws IOException; // One JSON object per line, oldest first
 }
\ No newline at end of file
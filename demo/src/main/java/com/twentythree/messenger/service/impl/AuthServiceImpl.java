@@ -3,62 +3,209 @@ package com.twentythree.messenger.service.impl;
 import com.twentythree.messenger.dto.auth.JwtAuthResponse;
 import com.twentythree.messenger.dto.auth.LoginRequest;
 import com.twentythree.messenger.dto.auth.RegistrationRequest;
+import com.twentythree.messenger.entity.RefreshToken;
 import com.twentythree.messenger.entity.User;
 import com.twentythree.messenger.exception.BadRequestException;
+import com.twentythree.messenger.repository.RefreshTokenRepository;
 import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.exception.ResourceNotFoundException;
+import com.twentythree.messenger.security.CustomUserDetailsService;
 import com.twentythree.messenger.security.JwtTokenProvider;
+import com.twentythree.messenger.security.PasswordHashingExecutor;
+import com.twentythree.messenger.security.RefreshTokenRevocations;
+import com.twentythree.messenger.security.UserAuthState;
+import com.twentythree.messenger.security.UserAuthStateCache;
+import com.twentythree.messenger.security.UserPrincipal;
 import com.twentythree.messenger.service.AuthService;
+import io.jsonwebtoken.Claims;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.authentication.AuthenticationManager;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 
 @Service
 public class AuthServiceImpl implements AuthService {
+    private static final Logger logger = LoggerFactory.getLogger(AuthServiceImpl.class);
+
     @Autowired
-    private AuthenticationManager authenticationManager;
+    private CustomUserDetailsService customUserDetailsService;
     @Autowired
     private UserRepository userRepository;
     @Autowired
     private PasswordEncoder passwordEncoder;
     @Autowired
     private JwtTokenProvider tokenProvider;
+    @Autowired
+    private UserAuthStateCache userAuthStateCache;
+    @Autowired
+    private PasswordHashingExecutor passwordHashingExecutor; // Bounded pool for BCrypt work, see app.security.hashing.*
+    @Autowired
+    private RefreshTokenRepository refreshTokenRepository;
+    @Autowired
+    private RefreshTokenRevocations refreshTokenRevocations; // In-memory "already used?" check, see app.jwt.refresh-token.*
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Checked when the nickname is unknown, so that case costs the same BCrypt time as a wrong password
+    private volatile String unknownUserPasswordHash;
+
+    private record PasswordCheck(UserPrincipal principal, String upgradedHash) {
+    }
 
     @Override
-    public JwtAuthResponse loginUser(LoginRequest loginRequest) {
-        Authentication authentication = authenticationManager.authenticate(
-                new UsernamePasswordAuthenticationToken(
-                        loginRequest.getNickname(),
-                        loginRequest.getPassword()
-                )
-        );
-        SecurityContextHolder.getContext().setAuthentication(authentication);
-        String jwt = tokenProvider.generateToken(authentication);
-        // User user = userRepository.findByNickname(loginRequest.getNickname())
-        //         .orElseThrow(() -> new UsernameNotFoundException("User not found with nickname: " + loginRequest.getNickname()));
-        // Here you could also generate a refresh token if needed
-        return new JwtAuthResponse(jwt);
+    public CompletableFuture<JwtAuthResponse> loginUser(LoginRequest loginRequest) {
+        // Only the BCrypt work runs on the hashing pool: the user lookup (one indexed query, like registration's
+        // nickname check) stays on the request thread, and the token rows are written on the pool's database executor.
+        // No SecurityContextHolder here: it would stick to the pool thread, and the token is all the client needs.
+        UserPrincipal found = findPrincipal(loginRequest.getNickname());
+        return passwordHashingExecutor.submit("login", () -> checkPassword(found, loginRequest.getPassword()))
+                .thenApplyAsync(check -> {
+                    UserPrincipal principal = check.upgradedHash() == null ? check.principal()
+                            : (UserPrincipal) customUserDetailsService.updatePassword(check.principal(), check.upgradedHash());
+                    String jwt = tokenProvider.generateToken(principal);
+                    // Every login starts a new rotation family
+                    String refreshToken = issueRefreshToken(principal.getId(), principal.getTokenVersion(), UUID.randomUUID().toString());
+                    return new JwtAuthResponse(jwt, "Bearer", refreshToken);
+                }, passwordHashingExecutor.databaseExecutor());
     }
 
     @Override
-    @Transactional
-    public String registerUser(RegistrationRequest registrationRequest) {
+    public JwtAuthResponse refreshToken(String refreshToken) {
+        Claims claims = tokenProvider.parseRefreshToken(refreshToken);
+        if (claims == null) {
+            throw new BadCredentialsException("Invalid refresh token");
+        }
+        Long userId = JwtTokenProvider.getUserId(claims);
+        String familyId = JwtTokenProvider.getRefreshFamily(claims);
+        String tokenHash = JwtTokenProvider.hashToken(refreshToken);
+
+        // Answered in memory for almost every valid token
+        if (refreshTokenRevocations.isFamilyRevoked(familyId)) {
+            throw new BadCredentialsException("Refresh token revoked");
+        }
+        if (refreshTokenRevocations.isSpent(tokenHash)) {
+            revokeFamily(userId, familyId);
+            throw new BadCredentialsException("Refresh token reused");
+        }
+        // "Log out everywhere" bumps the version, which ends refresh as well
+        UserAuthState state = userAuthStateCache.get(userId);
+        if (state == null || state.tokenVersion() != JwtTokenProvider.getTokenVersion(claims)) {
+            throw new BadCredentialsException("Refresh token revoked");
+        }
+
+        // The conditional UPDATE decides: of two concurrent refreshes with one token only one rotates
+        String next = new TransactionTemplate(transactionManager).execute(status -> {
+            if (refreshTokenRepository.markUsed(tokenHash, LocalDateTime.now()) == 0) {
+                return null;
+            }
+            return issueRefreshToken(userId, state.tokenVersion(), familyId);
+        });
+        if (next == null) {
+            revokeFamily(userId, familyId);
+            throw new BadCredentialsException("Refresh token reused");
+        }
+        refreshTokenRevocations.markSpent(tokenHash);
+
+        String jwt = tokenProvider.generateToken(UserPrincipal.create(userId, state));
+        return new JwtAuthResponse(jwt, "Bearer", next);
+    }
+
+    @Override
+    public CompletableFuture<String> registerUser(RegistrationRequest registrationRequest) {
+        // Cheap check first, so a taken nickname doesn't cost a hashing slot
         if (userRepository.existsByNickname(registrationRequest.getNickname())) {
             throw new BadRequestException("Nickname is already taken!");
         }
 
-        User user = new User();
-        user.setNickname(registrationRequest.getNickname());
-        user.setPassword(passwordEncoder.encode(registrationRequest.getPassword()));
-        // Set default reputation in entity or here
-        // user.setReputation(BigDecimal.valueOf(5.0));
+        return passwordHashingExecutor.submit("register", () -> passwordEncoder.encode(registrationRequest.getPassword()))
+                // The insert may wait for a connection, which the few hashing threads must not do
+                .thenApplyAsync(passwordHash -> {
+                    User user = new User();
+                    user.setNickname(registrationRequest.getNickname());
+                    user.setPassword(passwordHash);
+                    // Set default reputation in entity or here
+                    // user.setReputation(BigDecimal.valueOf(5.0));
+
+                    try {
+                        userRepository.save(user);
+                    } catch (DataIntegrityViolationException e) {
+                        // Unique nickname constraint: a concurrent registration got there first
+                        throw new BadRequestException("Nickname is already taken!");
+                    }
+                    return "User registered successfully!";
+                }, passwordHashingExecutor.databaseExecutor());
+    }
+
+    @Override
+    @Transactional
+    public void revokeAllTokens(Long userId) {
+        User user = userRepository.findById(userId)
+                .orElseThrow(() -> new ResourceNotFoundException("User", "id", userId));
+        // Tokens carry the version they were issued with; anything below the new one is rejected
+        user.setTokenVersion(user.getTokenVersion() + 1);
+        userAuthStateCache.updateAfterCommit(user);
+    }
+
+    private UserPrincipal findPrincipal(String nickname) {
+        try {
+            return (UserPrincipal) customUserDetailsService.loadUserByUsername(nickname);
+        } catch (UsernameNotFoundException e) {
+            return null; // Answered like a wrong password, after the same BCrypt work
+        }
+    }
+
+    // Runs on the hashing pool; what DaoAuthenticationProvider did, minus its database calls
+    private PasswordCheck checkPassword(UserPrincipal principal, String password) {
+        if (principal == null) {
+            passwordEncoder.matches(password, unknownUserPasswordHash());
+            throw new BadCredentialsException("Bad credentials");
+        }
+        if (!passwordEncoder.matches(password, principal.getPassword())) {
+            throw new BadCredentialsException("Bad credentials");
+        }
+        // A hash with another cost than configured is redone now, while the password is at hand
+        String upgradedHash = passwordEncoder.upgradeEncoding(principal.getPassword()) ? passwordEncoder.encode(password) : null;
+        return new PasswordCheck(principal, upgradedHash);
+    }
+
+    private String unknownUserPasswordHash() {
+        String hash = unknownUserPasswordHash;
+        if (hash == null) {
+            hash = passwordEncoder.encode("userNotFoundPassword");
+            unknownUserPasswordHash = hash;
+        }
+        return hash;
+    }
+
+    // Stores only the hash; the token itself goes to the client and nowhere else
+    private String issueRefreshToken(Long userId, int tokenVersion, String familyId) {
+        String token = tokenProvider.generateRefreshToken(userId, tokenVersion, familyId);
+        RefreshToken row = new RefreshToken();
+        row.setUser(userRepository.getReferenceById(userId));
+        row.setTokenHash(JwtTokenProvider.hashToken(token));
+        row.setFamilyId(familyId);
+        row.setExpiresAt(LocalDateTime.now().plus(Duration.ofMillis(tokenProvider.getRefreshExpirationInMs())));
+        refreshTokenRepository.save(row);
+        return token;
+    }
 
-        userRepository.save(user);
-        return "User registered successfully!";
+    // A used token came back: someone holds a copy, so every token of that login stops working
+    private void revokeFamily(Long userId, String familyId) {
+        logger.warn("Refresh token reuse for user {}, revoking family {}", userId, familyId);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> refreshTokenRepository.revokeFamily(familyId));
+        refreshTokenRevocations.markFamilyRevoked(familyId);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,287 @@
+package com.twentythree.messenger.service.impl;
+
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.cluster.JobLeases;
+import com.twentythree.messenger.dto.chat.ChatEndedEvent;
+import com.twentythree.messenger.matchmaking.ChatMatchIndex;
+import com.twentythree.messenger.matchmaking.OpenChatRow;
+import com.twentythree.messenger.repository.ChatRepository;
+import com.twentythree.messenger.websocket.ChatTopicPublisher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deadlines of all active chats in a hashed timer wheel, so chats end within about one {@code tick-ms} of their
+ * {@code expiresAt} and each tick only looks at the chats due in it - no scan over the chats table.
+ * <p>
+ * The wheel has {@code wheel-size} slots of one tick each; a chat sits in the slot of its deadline tick. Sized to
+ * cover the chat lifetime, a slot holds (almost) only chats that are due when it comes round, so a tick costs
+ * O(expired). Seeded from the DB at startup, then fed by create (schedule) and creator leave (cancel), here and,
+ * over the {@link ClusterBus}, on the other nodes.
+ * <p>
+ * Due chats are ended with set-based UPDATEs of at most {@value #MAX_IDS_PER_STATEMENT} ids each; after commit they
+ * leave the match index and the message cache, and subscribers of {@code /topic/chat/{chatId}} get a
+ * {@link ChatEndedEvent}.
+ * <p>
+ * Every node keeps the whole wheel and turns it every tick, moving chats that come due into an overdue set. Only
+ * the holder of the {@value #TICK_JOB} job lease ({@link JobLeases}) ends them; a chat leaves the overdue set once
+ * it is known to have ended (here, or by a notice from the leader), so one that failed to end is retried on the next
+ * tick and a node taking over picks up whatever the previous leader had not got to.
+ */
+@Component
+public class ChatExpiryWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatExpiryWheel.class);
+
+    static final String CLUSTER_DESTINATION = "chat-expiry";
+    static final String TICK_JOB = "chat-expiry-wheel";
+    private static final String SCHEDULE_PREFIX = "s:";
+    private static final String CANCEL_PREFIX = "c:";
+    // Keeps each IN list far below PostgreSQL's limit of 32767 bind parameters, e.g. on the first tick after a deploy
+    static final int MAX_IDS_PER_STATEMENT = 1000;
+
+    private final ChatRepository chatRepository;
+    private final ChatMatchIndex chatMatchIndex;
+    private final RecentMessageCache recentMessageCache;
+    private final ChatTopicPublisher chatTopicPublisher;
+    private final ClusterBus clusterBus;
+    private final JobLeases jobLeases;
+    private final TransactionTemplate transactionTemplate;
+    private final long tickMs;
+    private final Counter expiredChats;
+
+    // All guarded by this
+    private final List<Set<Long>> slots;
+    private final Map<Long, Long> deadlineTicks = new HashMap<>(); // chatId -> tick it is due in
+    private final Set<Long> overdue = new LinkedHashSet<>();         // Due, not yet known to have ended
+    private long currentTick;
+
+    public ChatExpiryWheel(ChatRepository chatRepository, ChatMatchIndex chatMatchIndex,
+                           RecentMessageCache recentMessageCache, ChatTopicPublisher chatTopicPublisher,
+                           ClusterBus clusterBus, JobLeases jobLeases, PlatformTransactionManager transactionManager,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.chats.expiry.tick-ms:1000}") long tickMs,
+                           @Value("${app.chats.expiry.wheel-size:4096}") int wheelSize) {
+        this.chatRepository = chatRepository;
+        this.chatMatchIndex = chatMatchIndex;
+        this.recentMessageCache = recentMessageCache;
+        this.chatTopicPublisher = chatTopicPublisher;
+        this.clusterBus = clusterBus;
+        this.jobLeases = jobLeases;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.tickMs = tickMs;
+        this.slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new HashSet<>());
+        }
+        this.currentTick = System.currentTimeMillis() / tickMs;
+        this.expiredChats = Counter.builder("chats.expired")
+                .description("Chats ended by the expiry wheel")
+                .register(meterRegistry);
+        Gauge.builder("chats.expiry.scheduled", this, wheel -> wheel.size())
+                .description("Active chats waiting for their expiry")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        clusterBus.subscribe(this::receiveFromCluster);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadFromDatabase() {
+        List<OpenChatRow> chats = chatRepository.findOpenChatCounts();
+        chats.forEach(chat -> schedule(chat.chatId(), chat.expiresAt())); // Already overdue ones go on the next tick
+        logger.info("Chat expiry wheel seeded with {} active chats", size());
+    }
+
+    /** Schedules the chat's end once the surrounding transaction commits, here and on the other nodes. */
+    public void scheduleAfterCommit(Long chatId, LocalDateTime expiresAt) {
+        if (expiresAt == null) {
+            return;
+        }
+        afterCommit(() -> {
+            schedule(chatId, expiresAt);
+            clusterBus.publish(CLUSTER_DESTINATION, SCHEDULE_PREFIX + chatId + ":" + toMillis(expiresAt));
+        });
+    }
+
+    /** Drops the chat's deadline (it was ended some other way) once the surrounding transaction commits. */
+    public void cancelAfterCommit(Long chatId) {
+        afterCommit(() -> {
+            cancel(chatId);
+            clusterBus.publish(CLUSTER_DESTINATION, CANCEL_PREFIX + chatId);
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${app.chats.expiry.tick-ms:1000}")
+    public void tick() {
+        if (advance(System.currentTimeMillis()).isEmpty()) {
+            return; // Nothing to do, so no need to be the leader either
+        }
+        jobLeases.runIfLeader(TICK_JOB, lease -> expire(overdue(), lease));
+    }
+
+    /**
+     * Ends those of the chats that are still active, {@value #MAX_IDS_PER_STATEMENT} per transaction: an UPDATE, then
+     * (after commit) match index, message cache, the wheels here and on the other nodes, and a {@link ChatEndedEvent}
+     * to subscribers. Returns the number ended. Runs under {@code lease}: if that job lease has moved to another node
+     * meanwhile, the current batch is rolled back and {@link com.twentythree.messenger.exception.LeaseLostException}
+     * is thrown; chats not ended stay in the wheel's overdue set either way.
+     */
+    public int expire(Collection<Long> chatIds, JobLeases.Lease lease) {
+        List<Long> ids = List.copyOf(chatIds);
+        int ended = 0;
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_STATEMENT) {
+            ended += expireBatch(ids.subList(from, Math.min(from + MAX_IDS_PER_STATEMENT, ids.size())), lease);
+        }
+        return ended;
+    }
+
+    private int expireBatch(List<Long> chatIds, JobLeases.Lease lease) {
+        LocalDateTime now = LocalDateTime.now();
+        Integer ended = transactionTemplate.execute(status -> {
+            jobLeases.checkFence(lease);
+            List<Long> active = chatRepository.findActiveIdsByIdIn(chatIds);
+            chatIds.forEach(ChatExpiryWheel.this::cancelLocallyAfterCommit); // Ended before, or ended now
+            if (active.isEmpty()) {
+                return 0;
+            }
+            chatRepository.deactivateAll(active);
+            for (Long chatId : active) {
+                recentMessageCache.evictAfterCommit(chatId);
+                chatMatchIndex.closedAfterCommit(chatId);
+                cancelAfterCommit(chatId);
+                afterCommit(() -> chatTopicPublisher.publishToChat(chatId, new ChatEndedEvent(chatId, now)));
+            }
+            return active.size();
+        });
+        if (ended != null && ended > 0) {
+            expiredChats.increment(ended);
+            logger.info("Ended {} expired chats", ended);
+        }
+        return ended != null ? ended : 0;
+    }
+
+    synchronized int size() {
+        return deadlineTicks.size();
+    }
+
+    private synchronized void schedule(Long chatId, LocalDateTime expiresAt) {
+        long deadlineTick = Math.max(ceilDiv(toMillis(expiresAt), tickMs), currentTick + 1);
+        cancel(chatId);
+        deadlineTicks.put(chatId, deadlineTick);
+        slots.get(slotOf(deadlineTick)).add(chatId);
+    }
+
+    private synchronized void cancel(Long chatId) {
+        Long deadlineTick = deadlineTicks.remove(chatId);
+        if (deadlineTick != null) {
+            slots.get(slotOf(deadlineTick)).remove(chatId);
+            overdue.remove(chatId);
+        }
+    }
+
+    private void cancelLocallyAfterCommit(Long chatId) {
+        afterCommit(() -> cancel(chatId));
+    }
+
+    /**
+     * Turns the wheel to {@code nowMillis}: visits the slots of the ticks since the last call and moves their due chats
+     * to the overdue set (a chat whose deadline is a full turn or more away stays put). Returns a copy of the overdue
+     * set, oldest first. Every node does this, so a tick costs O(chats coming due) whether or not it leads.
+     */
+    synchronized List<Long> advance(long nowMillis) {
+        long nowTick = nowMillis / tickMs;
+        long from = Math.max(currentTick + 1, nowTick - slots.size() + 1); // After a long pause one turn covers all
+        for (long tick = from; tick <= nowTick; tick++) {
+            Iterator<Long> it = slots.get(slotOf(tick)).iterator();
+            while (it.hasNext()) {
+                Long chatId = it.next();
+                if (deadlineTicks.get(chatId) <= nowTick) {
+                    it.remove();
+                    overdue.add(chatId);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return overdue();
+    }
+
+    synchronized List<Long> overdue() {
+        return new ArrayList<>(overdue);
+    }
+
+    private void receiveFromCluster(ClusterMessage message) {
+        if (!CLUSTER_DESTINATION.equals(message.destination())) {
+            return;
+        }
+        String body = message.body();
+        try {
+            if (body.startsWith(SCHEDULE_PREFIX)) {
+                String[] parts = body.substring(SCHEDULE_PREFIX.length()).split(":");
+                long expiresAtMillis = Long.parseLong(parts[1]);
+                schedule(Long.parseLong(parts[0]),
+                        LocalDateTime.ofInstant(Instant.ofEpochMilli(expiresAtMillis), ZoneId.systemDefault()));
+            } else if (body.startsWith(CANCEL_PREFIX)) {
+                cancel(Long.parseLong(body.substring(CANCEL_PREFIX.length())));
+            } else {
+                logger.warn("Ignoring malformed chat expiry message: {}", body);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring malformed chat expiry message: {}", body);
+        }
+    }
+
+    private int slotOf(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    private static long toMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package com.twentythree.messenger.service.impl;
 // ... imports ...
+import com.twentythree.messenger.cluster.JobLeases;
 import com.twentythree.messenger.dto.chat.ChatCreateRequest;
 import com.twentythree.messenger.dto.chat.ChatDto;
 import com.twentythree.messenger.dto.chat.ChatParticipantDto;
 import com.twentythree.messenger.entity.*;
 import com.twentythree.messenger.exception.BadRequestException;
+import com.twentythree.messenger.exception.NoChatAvailableException;
 import com.twentythree.messenger.exception.ResourceNotFoundException;
 import com.twentythree.messenger.exception.UserAlreadyInChatException;
+import com.twentythree.messenger.matchmaking.ChatMatchIndex;
 import com.twentythree.messenger.repository.*;
 import com.twentythree.messenger.service.ChatService;
 import org.slf4j.Logger;
@@ -17,8 +20,12 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
@@ -29,9 +36,14 @@ public class ChatServiceImpl implements ChatService {
     @Autowired private UserRepository userRepository;
     @Autowired private InterestRepository interestRepository;
     @Autowired private ChatParticipantRepository chatParticipantRepository;
+    @Autowired private RecentMessageCache recentMessageCache;
+    @Autowired private ChatMatchIndex chatMatchIndex; // Open chats per interest with participant counts, in memory
+    @Autowired private ChatExpiryWheel chatExpiryWheel; // Ends chats at expiresAt
+    @Autowired private JobLeases jobLeases; // Scheduled jobs run on one node of the cluster
     // @Autowired private MessageRepository messageRepository; // If needed directly
 
     private static final long CHAT_DURATION_MINUTES = 60; // Example: 1 hour
+    private static final String EXPIRY_SWEEP_JOB = "chat-expiry-sweep"; // Job lease name (JobLeases)
 
     @Override
     @Transactional
@@ -48,24 +60,7 @@ public class ChatServiceImpl implements ChatService {
         Interest primaryInterest = interestRepository.findById(createRequest.getPrimaryInterestId())
                 .orElseThrow(() -> new ResourceNotFoundException("Interest", "id", createRequest.getPrimaryInterestId()));
 
-        Chat chat = new Chat();
-        chat.setCreator(currentUser);
-        chat.setChatName(createRequest.getChatName() != null ? createRequest.getChatName() : "Chat about " + primaryInterest.getName());
-        chat.setPrimaryInterest(primaryInterest);
-        chat.setActive(true);
-        chat.setExpiresAt(LocalDateTime.now().plusMinutes(CHAT_DURATION_MINUTES)); // Set expiration
-
-        Chat savedChat = chatRepository.save(chat);
-
-        // Creator automatically joins the chat they created
-        ChatParticipant participant = new ChatParticipant();
-        participant.setUser(currentUser);
-        participant.setChat(savedChat);
-        chatParticipantRepository.save(participant);
-        
-        savedChat.getParticipants().add(participant); // Add to in-memory set for DTO mapping
-
-        return mapChatToDto(savedChat);
+        return mapChatToDto(openChat(currentUser, primaryInterest, createRequest.getChatName()));
     }
 
     @Override
@@ -80,28 +75,94 @@ public class ChatServiceImpl implements ChatService {
             throw new UserAlreadyInChatException("User is already participating in another chat.");
         }
 
-        Interest targetInterest = interestRepository.findById(interestId)
-                .orElseThrow(() -> new ResourceNotFoundException("Interest", "id", interestId));
-        
-        // Find an active chat for this interest that the user is not already in (implicitly handled by above checks)
-        // and that is not full (add capacity logic if needed).
-        // For v1, just find any active chat with this interest.
-        List<Chat> availableChats = chatRepository.findActiveChatsByInterestNotParticipatedByUser(targetInterest, currentUser);
+        List<Long> interestIds = userRepository.findInterestIdsById(currentUser.getId());
 
-        if (availableChats.isEmpty()) {
-            throw new ResourceNotFoundException("Chat", "interest", targetInterest.getName() + " (no suitable active chat found)");
+        // Pick from the in-memory index (the user is in no chat, so any active chat of the interest will do, subject
+        // to capacity and the placement policy); the seat is reserved there at once, so concurrent joins see each other
+        Chat chatToJoin = null;
+        while (chatToJoin == null) {
+            ChatMatchIndex.OpenChat seat = chatMatchIndex.reserveSeat(interestId, currentUser.getId(), interestIds);
+            if (seat == null && chatMatchIndex.hasOpenChats(interestId)) {
+                // Every chat of the interest is at capacity: the joiner starts the next one. One join at a time does
+                // that; the others wait in MatchWaitQueue rather than each opening a chat of their own.
+                Interest targetInterest = interestRepository.findById(interestId)
+                        .orElseThrow(() -> new ResourceNotFoundException("Interest", "id", interestId));
+                if (!chatMatchIndex.claimOverflow(interestId, currentUser.getId())) {
+                    throw new NoChatAvailableException(interestId, targetInterest.getName());
+                }
+                User creator = userRepository.findById(currentUser.getId())
+                        .orElseThrow(() -> new ResourceNotFoundException("User", "id", currentUser.getId()));
+                return mapChatToDto(openChat(creator, targetInterest, null));
+            }
+            if (seat == null) {
+                Interest targetInterest = interestRepository.findById(interestId)
+                        .orElseThrow(() -> new ResourceNotFoundException("Interest", "id", interestId));
+                throw new NoChatAvailableException(interestId, targetInterest.getName());
+            }
+            chatToJoin = chatRepository.findById(seat.getChatId()).filter(Chat::isActive).orElse(null);
+            if (chatToJoin == null) {
+                chatMatchIndex.forget(seat.getChatId()); // Deactivated without this node hearing about it
+            }
         }
 
-        Chat chatToJoin = availableChats.get(0); // Simplistic: join the first one found. Add more logic if needed.
+        return mapChatToDto(seat(currentUser, chatToJoin)); // Return DTO of the joined chat
+    }
 
-        ChatParticipant participant = new ChatParticipant();
-        participant.setUser(currentUser);
-        participant.setChat(chatToJoin);
-        chatParticipantRepository.save(participant);
+    @Override
+    @Transactional
+    public ChatDto joinBestMatch(User currentUser) {
+        if (chatRepository.existsByCreator(currentUser)) {
+            throw new UserAlreadyInChatException("Cannot join a chat, user has already created one.");
+        }
+        if (chatParticipantRepository.existsByUser(currentUser)) {
+            throw new UserAlreadyInChatException("User is already participating in another chat.");
+        }
+        List<Long> interestIds = userRepository.findInterestIdsById(currentUser.getId());
+        if (interestIds.isEmpty()) {
+            throw new BadRequestException("Add interests to your profile to join a best match.");
+        }
 
-        return mapChatToDto(chatToJoin); // Return DTO of the joined chat
+        // Ranked in memory by interest overlap with each open chat's participants
+        Chat chatToJoin = null;
+        while (chatToJoin == null) {
+            ChatMatchIndex.OpenChat seat = chatMatchIndex.reserveBestMatch(currentUser.getId(), interestIds);
+            if (seat == null) {
+                throw new ResourceNotFoundException("Chat", "interests", "profile (no active chat shares your interests)");
+            }
+            chatToJoin = chatRepository.findById(seat.getChatId()).filter(Chat::isActive).orElse(null);
+            if (chatToJoin == null) {
+                chatMatchIndex.forget(seat.getChatId());
+            }
+        }
+        return mapChatToDto(seat(currentUser, chatToJoin));
     }
     
+    @Override
+    @Transactional
+    public ChatDto openChatForWaiters(Long interestId, List<Long> userIds) {
+        Interest interest = interestRepository.findById(interestId)
+                .orElseThrow(() -> new ResourceNotFoundException("Interest", "id", interestId));
+
+        // Anyone who got into a chat some other way while waiting is left out
+        Set<Long> busy = new HashSet<>(chatParticipantRepository.findUserIdsByUserIdIn(userIds));
+        busy.addAll(chatRepository.findCreatorIdsByCreatorIdIn(userIds));
+        Map<Long, User> usersById = userRepository.findAllById(userIds).stream()
+                .filter(user -> !busy.contains(user.getId()))
+                .collect(Collectors.toMap(User::getId, user -> user));
+        List<User> users = userIds.stream().map(usersById::get).filter(Objects::nonNull).toList(); // Longest waiting first
+        if (users.isEmpty()) {
+            return null;
+        }
+
+        // The longest waiting user becomes the creator; participant inserts go out as one JDBC batch
+        Chat chat = openChat(users.get(0), interest, null);
+        for (User user : users.subList(1, users.size())) {
+            seatParticipant(user, chat);
+            chatMatchIndex.joinedAfterCommit(chat.getId(), user.getId(), userRepository.findInterestIdsById(user.getId()));
+        }
+        return mapChatToDto(chat);
+    }
+
     @Override
     @Transactional(readOnly = true)
     public ChatDto getCurrentChatForUser(User currentUser) {
@@ -147,6 +208,8 @@ public class ChatServiceImpl implements ChatService {
             .orElseThrow(() -> new BadRequestException("User is not a participant of this chat."));
         
         chatParticipantRepository.delete(participant);
+        recentMessageCache.invalidateReadersAfterCommit(chatId);
+        chatMatchIndex.leftAfterCommit(chatId, currentUser.getId());
 
         // Optional: If chat becomes empty (except creator leaving their own chat), deactivate it?
         // Or handle this via scheduled task.
@@ -156,23 +219,64 @@ public class ChatServiceImpl implements ChatService {
             // Potentially remove all other participants
             // chat.getParticipants().clear(); // This would trigger orphanRemoval if set on ChatParticipant
             chatRepository.save(chat);
+            recentMessageCache.evictAfterCommit(chatId);
+            chatMatchIndex.closedAfterCommit(chatId);
+            chatExpiryWheel.cancelAfterCommit(chatId);
         }
     }
 
-    @Scheduled(fixedRate = 60000) // Run every minute
-    @Transactional
+    // Chats are ended on time by ChatExpiryWheel; this rare sweep only catches what it can't know about
+    // (chats created on a node whose notice was lost, clock jumps). Ids and one UPDATE, no entities loaded.
+    // Not run at startup: the wheel's own load already schedules every active chat, overdue ones first.
+    // Only the node holding the job's lease sweeps.
+    @Scheduled(initialDelayString = "${app.chats.expiry.sweep-interval-ms:600000}",
+               fixedDelayString = "${app.chats.expiry.sweep-interval-ms:600000}")
     public void processExpiredChats() {
-        logger.info("Running scheduled task to process expired chats at {}", LocalDateTime.now());
-        List<Chat> expiredChats = chatRepository.findAllByExpiresAtBeforeAndActiveTrue(LocalDateTime.now());
-        for (Chat chat : expiredChats) {
-            logger.info("Deactivating chat ID: {}", chat.getId());
-            chat.setActive(false);
-            // Optionally: Notify participants via WebSocket that chat has ended
-            // For simplicity, just deactivating. Frontend would then not show it / show as ended.
-        }
-        if (!expiredChats.isEmpty()) {
-            chatRepository.saveAll(expiredChats);
-        }
+        jobLeases.runIfLeader(EXPIRY_SWEEP_JOB, lease -> {
+            List<Long> expiredChatIds = chatRepository.findExpiredActiveIds(LocalDateTime.now());
+            if (!expiredChatIds.isEmpty()) {
+                logger.info("Expiry sweep found {} overdue chats", expiredChatIds.size());
+                chatExpiryWheel.expire(expiredChatIds, lease);
+            }
+        });
+    }
+
+    // New active chat with its creator as the first participant
+    private Chat openChat(User creator, Interest primaryInterest, String chatName) {
+        Chat chat = new Chat();
+        chat.setCreator(creator);
+        chat.setChatName(chatName != null ? chatName : "Chat about " + primaryInterest.getName());
+        chat.setPrimaryInterest(primaryInterest);
+        chat.setActive(true);
+        chat.setExpiresAt(LocalDateTime.now().plusMinutes(CHAT_DURATION_MINUTES)); // Set expiration
+
+        Chat savedChat = chatRepository.save(chat);
+
+        // Creator automatically joins the chat they created
+        ChatParticipant participant = new ChatParticipant();
+        participant.setUser(creator);
+        participant.setChat(savedChat);
+        chatParticipantRepository.save(participant);
+
+        savedChat.getParticipants().add(participant); // Add to in-memory set for DTO mapping
+        chatMatchIndex.openedAfterCommit(savedChat, userRepository.findInterestIdsById(creator.getId()));
+        chatExpiryWheel.scheduleAfterCommit(savedChat.getId(), savedChat.getExpiresAt());
+        return savedChat;
+    }
+
+    private Chat seat(User user, Chat chat) {
+        // The caller's user may be a reference from the request's auth state; the DTO needs one it can load here
+        seatParticipant(userRepository.getReferenceById(user.getId()), chat);
+        return chat;
+    }
+
+    private void seatParticipant(User user, Chat chat) {
+        ChatParticipant participant = new ChatParticipant();
+        participant.setUser(user);
+        participant.setChat(chat);
+        chatParticipantRepository.save(participant);
+        chat.getParticipants().add(participant); // Not inserted until flush, so the DTO can't read it back
+        recentMessageCache.invalidateReadersAfterCommit(chat.getId());
     }
 
     // Helper to map Entity to DTO
@@ -1,6 +1,13 @@
 package com.twentythree.messenger.service.impl;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.twentythree.messenger.dto.message.MessageCursor;
+import com.twentythree.messenger.dto.message.MessageDeltaSync;
 import com.twentythree.messenger.dto.message.MessageDto;
+import com.twentythree.messenger.dto.message.MessageHistoryPage;
 import com.twentythree.messenger.dto.message.MessageSendRequest;
 import com.twentythree.messenger.entity.Chat;
 import com.twentythree.messenger.entity.Message;
@@ -11,18 +18,32 @@ import com.twentythree.messenger.exception.ResourceNotFoundException;
 import com.twentythree.messenger.repository.ChatRepository;
 import com.twentythree.messenger.repository.MessageRepository;
 import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.security.SenderSnapshot;
 import com.twentythree.messenger.service.FileStorageService;
 import com.twentythree.messenger.service.MessageService;
+import com.twentythree.messenger.util.AppConstants;
+import com.twentythree.messenger.websocket.ChatTopicPublisher;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
-import org.springframework.messaging.simp.SimpMessagingTemplate; // For broadcasting
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class MessageServiceImpl implements MessageService {
@@ -34,17 +55,32 @@ public class MessageServiceImpl implements MessageService {
     private ChatRepository chatRepository;
 
     @Autowired
-    private UserRepository userRepository; // Not strictly needed if User object is passed
+    private UserRepository userRepository; // References for senders known only by id
 
     @Autowired
     private FileStorageService fileStorageService;
 
     @Autowired
-    private SimpMessagingTemplate messagingTemplate; // For broadcasting WebSocket messages
+    private ChatTopicPublisher chatTopicPublisher; // For broadcasting WebSocket messages (serialized once per broadcast)
+
+    @Autowired
+    private MessageWriteBehindQueue writeBehindQueue; // Batched persistence when app.messages.write-behind.enabled=true
+
+    @Value("${app.messages.sync.max-delta:500}")
+    private int maxSyncDelta; // Beyond this many missed messages a client is told to reload instead
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private RecentMessageCache recentMessageCache; // Latest messages of active chats, see app.messages.recent-cache.*
 
     @Override
     @Transactional
-    public MessageDto saveAndBroadcastMessage(Long chatId, User sender, MessageSendRequest messageRequest) {
+    public MessageDto saveAndBroadcastMessage(Long chatId, SenderSnapshot sender, MessageSendRequest messageRequest) {
         Chat chat = chatRepository.findById(chatId)
                 .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
 
@@ -62,7 +98,7 @@ public class MessageServiceImpl implements MessageService {
 
         Message message = new Message();
         message.setChat(chat);
-        message.setSender(sender);
+        message.setSender(userRepository.getReferenceById(sender.id())); // Only the id is needed for the insert
         message.setMessageType(messageRequest.getMessageType());
 
         if (messageRequest.getMessageType() == MessageType.TEXT) {
@@ -79,11 +115,12 @@ public class MessageServiceImpl implements MessageService {
             throw new BadRequestException("Unsupported message type.");
         }
 
-        Message savedMessage = messageRepository.save(message);
-        MessageDto messageDto = mapMessageToDto(savedMessage);
+        Message savedMessage = persist(message);
+        MessageDto messageDto = mapMessageToDto(savedMessage, sender); // Sender fields from the snapshot, not the unloaded reference
+        recentMessageCache.appendAfterCommit(messageDto);
 
         // Broadcast the message to all subscribers of this chat's topic
-        messagingTemplate.convertAndSend("/topic/chat/" + chatId, messageDto);
+        chatTopicPublisher.publishToChat(chatId, messageDto);
 
         return messageDto;
     }
@@ -111,11 +148,12 @@ public class MessageServiceImpl implements MessageService {
         message.setMessageType(MessageType.IMAGE);
         message.setContentImageUrl(fileAccessUrl);
 
-        Message savedMessage = messageRepository.save(message);
+        Message savedMessage = persist(message);
         MessageDto messageDto = mapMessageToDto(savedMessage);
+        recentMessageCache.appendAfterCommit(messageDto);
 
         // Broadcast after successful save and URL generation
-        messagingTemplate.convertAndSend("/topic/chat/" + chatId, messageDto);
+        chatTopicPublisher.publishToChat(chatId, messageDto);
 
         return messageDto; // Return DTO so client knows the URL and message ID
     }
@@ -124,6 +162,11 @@ public class MessageServiceImpl implements MessageService {
     @Override
     @Transactional(readOnly = true)
     public List<MessageDto> getMessagesForChat(Long chatId, User currentUser) {
+        RecentMessageCache.Snapshot cached = recentMessageCache.find(chatId, currentUser.getId());
+        if (cached != null && cached.complete()) {
+            return cached.messages();
+        }
+
         Chat chat = chatRepository.findById(chatId)
                 .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
 
@@ -133,6 +176,11 @@ public class MessageServiceImpl implements MessageService {
              throw new BadRequestException("User is not authorized to view messages for this chat.");
         }
 
+        cached = warmRecentMessages(chat);
+        if (cached != null && cached.complete()) {
+            return cached.messages();
+        }
+
         List<Message> messages = messageRepository.findByChatOrderBySentAtAsc(chat);
         return messages.stream().map(this::mapMessageToDto).collect(Collectors.toList());
     }
@@ -140,6 +188,11 @@ public class MessageServiceImpl implements MessageService {
     @Override
     @Transactional(readOnly = true)
     public Page<MessageDto> getMessagesForChatPaginated(Long chatId, User currentUser, Pageable pageable) {
+        Page<MessageDto> cachedPage = firstPageFromCache(chatId, recentMessageCache.find(chatId, currentUser.getId()), pageable);
+        if (cachedPage != null) {
+            return cachedPage;
+        }
+
         Chat chat = chatRepository.findById(chatId)
                 .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
 
@@ -149,18 +202,210 @@ public class MessageServiceImpl implements MessageService {
              throw new BadRequestException("User is not authorized to view messages for this chat.");
         }
 
+        if (pageable.getPageNumber() == 0) {
+            cachedPage = firstPageFromCache(chatId, warmRecentMessages(chat), pageable);
+            if (cachedPage != null) {
+                return cachedPage;
+            }
+        }
+
         Page<Message> messagesPage = messageRepository.findByChatOrderBySentAtDesc(chat, pageable); // Desc for recent
         return messagesPage.map(this::mapMessageToDto);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public MessageHistoryPage getMessageHistory(Long chatId, User currentUser, String beforeCursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, AppConstants.MAX_PAGE_SIZE));
+        MessageCursor cursor = beforeCursor == null || beforeCursor.isBlank() ? null : MessageCursor.decode(beforeCursor);
+
+        MessageHistoryPage cachedPage = historyPageFromCache(recentMessageCache.find(chatId, currentUser.getId()), cursor, pageSize);
+        if (cachedPage != null) {
+            return cachedPage;
+        }
+
+        Chat chat = chatRepository.findById(chatId)
+                .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
+
+        // Authorization (similar to above)
+        boolean isParticipant = chat.getParticipants().stream().anyMatch(p -> p.getUser().getId().equals(currentUser.getId()));
+        if (!isParticipant && !chat.getCreator().getId().equals(currentUser.getId())) {
+            throw new BadRequestException("User is not authorized to view messages for this chat.");
+        }
+
+        if (cursor == null) {
+            cachedPage = historyPageFromCache(warmRecentMessages(chat), null, pageSize);
+            if (cachedPage != null) {
+                return cachedPage;
+            }
+        }
+
+        // One extra row tells us whether an older page exists, without a COUNT query
+        Limit fetchLimit = Limit.of(pageSize + 1);
+        List<Message> rows;
+        if (cursor == null) {
+            rows = messageRepository.findLatestByChatId(chatId, fetchLimit);
+        } else {
+            rows = messageRepository.findByChatIdBefore(chatId, cursor.sentAt(), cursor.messageId(), fetchLimit);
+        }
+
+        boolean hasMore = rows.size() > pageSize;
+        List<MessageDto> messages = (hasMore ? rows.subList(0, pageSize) : rows).stream()
+                .map(this::mapMessageToDto)
+                .collect(Collectors.toList());
+        String nextCursor = hasMore ? MessageCursor.of(messages.get(messages.size() - 1)).encode() : null;
+        return new MessageHistoryPage(messages, nextCursor, hasMore);
+    }
+
+
+    @Override
+    @Transactional(readOnly = true)
+    public MessageDeltaSync getMessagesSince(Long chatId, User currentUser, Long lastSeenMessageId) {
+        if (lastSeenMessageId == null) {
+            return MessageDeltaSync.tooFarBehind(chatId);
+        }
+        MessageDeltaSync cachedSync = deltaFromCache(chatId, recentMessageCache.find(chatId, currentUser.getId()), lastSeenMessageId);
+        if (cachedSync != null) {
+            return cachedSync;
+        }
+
+        Chat chat = chatRepository.findById(chatId)
+                .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
+
+        // Authorization (similar to above)
+        boolean isParticipant = chat.getParticipants().stream().anyMatch(p -> p.getUser().getId().equals(currentUser.getId()));
+        if (!isParticipant && !chat.getCreator().getId().equals(currentUser.getId())) {
+            throw new BadRequestException("User is not authorized to view messages for this chat.");
+        }
+
+        cachedSync = deltaFromCache(chatId, warmRecentMessages(chat), lastSeenMessageId);
+        if (cachedSync != null) {
+            return cachedSync;
+        }
+
+        // Range query after the last-seen message's (sentAt, id); an id from another chat counts as unknown
+        Optional<LocalDateTime> lastSeenSentAt = messageRepository.findSentAtByIdAndChatId(lastSeenMessageId, chatId);
+        if (lastSeenSentAt.isEmpty()) {
+            return MessageDeltaSync.tooFarBehind(chatId);
+        }
+        List<Message> rows = messageRepository.findByChatIdAfter(chatId, lastSeenSentAt.get(), lastSeenMessageId, Limit.of(maxSyncDelta + 1));
+        if (rows.size() > maxSyncDelta) {
+            return MessageDeltaSync.tooFarBehind(chatId);
+        }
+        return new MessageDeltaSync(chatId, rows.stream().map(this::mapMessageToDto).collect(Collectors.toList()), false);
+    }
+
+    @Override
+    @Transactional(readOnly = true) // The PostgreSQL driver only streams by fetch size inside a transaction
+    public void exportMessagesAsNdjson(Long chatId, User currentUser, OutputStream out) throws IOException {
+        Chat chat = chatRepository.findById(chatId)
+                .orElseThrow(() -> new ResourceNotFoundException("Chat", "id", chatId));
+
+        // Authorization (similar to above), before anything is written to the response
+        boolean isParticipant = chat.getParticipants().stream().anyMatch(p -> p.getUser().getId().equals(currentUser.getId()));
+        if (!isParticipant && !chat.getCreator().getId().equals(currentUser.getId())) {
+            throw new BadRequestException("User is not authorized to view messages for this chat.");
+        }
+
+        // Flushing after every value would defeat gzip and the servlet buffer
+        ObjectWriter writer = objectMapper.writerFor(MessageDto.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+             Stream<Message> messages = messageRepository.streamByChatId(chatId)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET); // Caller owns the stream
+            generator.setRootValueSeparator(null);
+            for (Message message : (Iterable<Message>) messages::iterator) {
+                writer.writeValue(generator, mapMessageToDto(message));
+                generator.writeRaw('\n');
+                entityManager.detach(message); // Keep the persistence context from growing with the chat
+            }
+        }
+    }
+
+    // Only active chats are buffered: inactive ones no longer change and are rarely read
+    private RecentMessageCache.Snapshot warmRecentMessages(Chat chat) {
+        if (!chat.isActive()) {
+            return null;
+        }
+        Set<Long> readerIds = new HashSet<>();
+        readerIds.add(chat.getCreator().getId());
+        chat.getParticipants().forEach(p -> readerIds.add(p.getUser().getId()));
+        return recentMessageCache.warm(chat.getId(), readerIds, () ->
+                messageRepository.findLatestByChatId(chat.getId(), Limit.of(recentMessageCache.getMessagesPerChat())).stream()
+                        .map(this::mapMessageToDto)
+                        .collect(Collectors.toList()));
+    }
+
+    private Page<MessageDto> firstPageFromCache(Long chatId, RecentMessageCache.Snapshot cached, Pageable pageable) {
+        if (cached == null || pageable.getPageNumber() != 0 || pageable.getSort().isSorted()) {
+            return null;
+        }
+        List<MessageDto> content = cached.newestBefore(null, pageable.getPageSize());
+        if (content == null) {
+            return null;
+        }
+        long total = cached.complete() ? cached.messages().size() : cached.totalCount();
+        if (total < 0) {
+            // Counted once per buffered chat, then kept current by the send path
+            total = messageRepository.countByChat_Id(chatId);
+            recentMessageCache.setTotalCount(chatId, total);
+        }
+        return new PageImpl<>(content, pageable, total);
+    }
+
+    private MessageDeltaSync deltaFromCache(Long chatId, RecentMessageCache.Snapshot cached, Long lastSeenMessageId) {
+        if (cached == null) {
+            return null;
+        }
+        List<MessageDto> newer = cached.newerThan(lastSeenMessageId);
+        if (newer == null) {
+            // Not buffered: older than the buffer (ask the DB), or unknown if the buffer is the whole chat
+            return cached.complete() ? MessageDeltaSync.tooFarBehind(chatId) : null;
+        }
+        if (newer.size() > maxSyncDelta) {
+            return MessageDeltaSync.tooFarBehind(chatId);
+        }
+        return new MessageDeltaSync(chatId, List.copyOf(newer), false);
+    }
+
+    private MessageHistoryPage historyPageFromCache(RecentMessageCache.Snapshot cached, MessageCursor cursor, int pageSize) {
+        if (cached == null) {
+            return null;
+        }
+        MessageDto before = null;
+        if (cursor != null) {
+            before = new MessageDto();
+            before.setId(cursor.messageId());
+            before.setSentAt(cursor.sentAt());
+        }
+        List<MessageDto> rows = cached.newestBefore(before, pageSize + 1);
+        if (rows == null) {
+            return null;
+        }
+        boolean hasMore = rows.size() > pageSize;
+        List<MessageDto> messages = hasMore ? List.copyOf(rows.subList(0, pageSize)) : rows;
+        String nextCursor = hasMore ? MessageCursor.of(messages.get(messages.size() - 1)).encode() : null;
+        return new MessageHistoryPage(messages, nextCursor, hasMore);
+    }
+
+    // Either a synchronous insert or, in write-behind mode, id/timestamp stamping plus a queued batch insert
+    private Message persist(Message message) {
+        if (writeBehindQueue.isEnabled()) {
+            return writeBehindQueue.enqueue(message);
+        }
+        return messageRepository.save(message);
+    }
 
     private MessageDto mapMessageToDto(Message message) {
+        return mapMessageToDto(message, SenderSnapshot.of(message.getSender()));
+    }
+
+    private MessageDto mapMessageToDto(Message message, SenderSnapshot sender) {
         return new MessageDto(
                 message.getId(),
                 message.getChat().getId(),
-                message.getSender().getId(),
-                message.getSender().getNickname(),
-                message.getSender().getProfilePictureUrl(),
+                sender.id(),
+                sender.nickname(),
+                sender.profilePictureUrl(),
                 message.getMessageType(),
                 message.getContentText(),
                 message.getContentImageUrl(),
@@ -0,0 +1,302 @@
+package com.twentythree.messenger.service.impl;
+
+import com.twentythree.messenger.entity.Message;
+import com.twentythree.messenger.exception.ServiceBusyException;
+import com.twentythree.messenger.repository.MessageBatchWriter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in write-behind buffer for chat messages.
+ * The sender path stamps id + sentAt and returns immediately (so the message can be broadcast right away);
+ * a single flusher thread drains the queue into JDBC batches of up to {@code flush-size} rows,
+ * waiting at most {@code flush-interval-ms} for a batch to fill up.
+ * <p>
+ * An acknowledged message is never dropped. Transient DB errors are retried; a row the DB refuses outright goes to
+ * a rejected file. On shutdown the queue is drained for at most {@code shutdown-timeout-ms}; whatever is still
+ * unwritten then is spilled to {@code spill-dir} and written on the next start (see {@link WriteBehindSpill}).
+ */
+@Component
+public class MessageWriteBehindQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageWriteBehindQueue.class);
+
+    private static final long MAX_RETRY_BACKOFF_MS = 5000;
+    private static final long NO_DEADLINE = Long.MAX_VALUE; // The flusher retries until shutdown interrupts it
+
+    public enum QueueFullPolicy {
+        BLOCK,         // wait up to offer-timeout-ms for space, then reject
+        WRITE_THROUGH, // persist synchronously on the caller's thread
+        REJECT         // fail fast with 503
+    }
+
+    private final MessageBatchWriter batchWriter;
+    private final boolean enabled;
+    private final int flushSize;
+    private final long flushIntervalMs;
+    private final QueueFullPolicy queueFullPolicy;
+    private final long offerTimeoutMs;
+    private final long shutdownTimeoutMs;
+    private final BlockingQueue<MessageBatchWriter.Row> queue;
+    private final WriteBehindSpill spill;
+
+    private volatile boolean accepting;
+    private volatile List<MessageBatchWriter.Row> inFlight = List.of(); // The flusher's current batch
+    private Thread flusher;
+
+    @Autowired
+    public MessageWriteBehindQueue(MessageBatchWriter batchWriter, ObjectMapper objectMapper,
+                                   @Value("${app.messages.write-behind.enabled:false}") boolean enabled,
+                                   @Value("${app.messages.write-behind.queue-capacity:10000}") int queueCapacity,
+                                   @Value("${app.messages.write-behind.flush-size:200}") int flushSize,
+                                   @Value("${app.messages.write-behind.flush-interval-ms:50}") long flushIntervalMs,
+                                   @Value("${app.messages.write-behind.queue-full-policy:WRITE_THROUGH}") QueueFullPolicy queueFullPolicy,
+                                   @Value("${app.messages.write-behind.offer-timeout-ms:100}") long offerTimeoutMs,
+                                   @Value("${app.messages.write-behind.shutdown-timeout-ms:30000}") long shutdownTimeoutMs,
+                                   @Value("${app.messages.write-behind.spill-dir:./data/message-spill}") String spillDir) {
+        this.batchWriter = batchWriter;
+        this.enabled = enabled;
+        this.flushSize = flushSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queueFullPolicy = queueFullPolicy;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.shutdownTimeoutMs = shutdownTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.spill = new WriteBehindSpill(Path.of(spillDir), objectMapper);
+    }
+
+    @PostConstruct
+    void start() {
+        replaySpilled(); // Also when write-behind has been switched off since
+        if (!enabled) {
+            return;
+        }
+        accepting = true;
+        flusher = new Thread(this::flushLoop, "message-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("Message write-behind enabled (flushSize={}, flushIntervalMs={}, policy={})",
+                flushSize, flushIntervalMs, queueFullPolicy);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Assigns id and sentAt to the (validated) message and queues it for persistence.
+     * Once this returns the message counts as acknowledged and will be written, including on shutdown.
+     */
+    public Message enqueue(Message message) {
+        message.setId(batchWriter.nextId());
+        message.setSentAt(LocalDateTime.now());
+        MessageBatchWriter.Row row = new MessageBatchWriter.Row(
+                message.getId(),
+                message.getChat().getId(),
+                message.getSender().getId(),
+                message.getMessageType(),
+                message.getContentText(),
+                message.getContentImageUrl(),
+                message.getSentAt());
+
+        if (!accepting) {
+            // Shutting down: the flusher may already be gone, so persist on the caller's thread
+            batchWriter.insertBatch(List.of(row));
+            return message;
+        }
+        if (queue.offer(row)) {
+            return message;
+        }
+        switch (queueFullPolicy) {
+            case WRITE_THROUGH -> batchWriter.insertBatch(List.of(row));
+            case BLOCK -> {
+                try {
+                    if (!queue.offer(row, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        throw new ServiceBusyException("Message queue is full, please retry.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceBusyException("Interrupted while waiting for message queue space.", e);
+                }
+            }
+            case REJECT -> throw new ServiceBusyException("Message queue is full, please retry.");
+        }
+        return message;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void flushLoop() {
+        List<MessageBatchWriter.Row> batch = new ArrayList<>(flushSize);
+        while (accepting || !queue.isEmpty()) {
+            try {
+                MessageBatchWriter.Row first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                inFlight = List.copyOf(batch);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    inFlight = List.copyOf(batch);
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || remaining <= 0) {
+                        break;
+                    }
+                    MessageBatchWriter.Row next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    inFlight = List.copyOf(batch);
+                }
+                List<MessageBatchWriter.Row> unwritten = List.copyOf(write(batch, NO_DEADLINE)); // batch is reused
+                batch.clear();
+                inFlight = unwritten;
+                if (!unwritten.isEmpty()) {
+                    break; // Only on interrupt: shutdown gave up waiting and spills them
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the rows, retrying transient failures with backoff (the bounded queue then applies back-pressure)
+     * until {@code deadlineNanos} or an interrupt; returns the rows still unwritten then (empty when done).
+     * Constraint violations are isolated row by row so one bad row doesn't sink the whole batch.
+     */
+    private List<MessageBatchWriter.Row> write(List<MessageBatchWriter.Row> rows, long deadlineNanos) {
+        List<MessageBatchWriter.Row> pending = rows;
+        long backoffMs = 100;
+        while (!pending.isEmpty()) {
+            try {
+                batchWriter.insertBatch(pending);
+                return List.of();
+            } catch (DataIntegrityViolationException e) {
+                pending = writeRowByRow(pending);
+                if (pending.isEmpty()) {
+                    return pending;
+                }
+            } catch (DataAccessException e) {
+                logger.error("Failed to flush {} queued messages, retrying in {} ms: {}", pending.size(), backoffMs, e.getMessage());
+            }
+            if (deadlineNanos != NO_DEADLINE && deadlineNanos - System.nanoTime() < TimeUnit.MILLISECONDS.toNanos(backoffMs)) {
+                return pending;
+            }
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return pending;
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_RETRY_BACKOFF_MS);
+        }
+        return pending;
+    }
+
+    // Returns the rows from the first transient failure on; refused rows are kept in the rejected file
+    private List<MessageBatchWriter.Row> writeRowByRow(List<MessageBatchWriter.Row> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            MessageBatchWriter.Row row = rows.get(i);
+            try {
+                batchWriter.insertBatch(List.of(row));
+            } catch (DataIntegrityViolationException e) {
+                try {
+                    if (batchWriter.existingIds(List.of(row.id())).isEmpty()) {
+                        spill.reject(row, e.getMostSpecificCause().getMessage());
+                    } // else: written before (a replayed spill), nothing to do
+                } catch (DataAccessException lookupFailed) {
+                    return rows.subList(i, rows.size());
+                }
+            } catch (DataAccessException e) {
+                return rows.subList(i, rows.size());
+            }
+        }
+        return List.of();
+    }
+
+    // Rows spilled by an earlier shutdown; anything that still can't be written is spilled again
+    private void replaySpilled() {
+        for (Path file : spill.pendingFiles()) {
+            List<MessageBatchWriter.Row> rows;
+            try {
+                rows = spill.read(file);
+            } catch (UncheckedIOException e) {
+                logger.error("Skipping unreadable spill file {}: {}", file, e.getMessage());
+                continue;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+            List<MessageBatchWriter.Row> unwritten = new ArrayList<>();
+            try {
+                for (int from = 0; from < rows.size(); from += flushSize) {
+                    List<MessageBatchWriter.Row> chunk = rows.subList(from, Math.min(from + flushSize, rows.size()));
+                    Set<Long> existing = batchWriter.existingIds(chunk.stream().map(MessageBatchWriter.Row::id).toList());
+                    unwritten.addAll(write(chunk.stream().filter(row -> !existing.contains(row.id())).toList(), deadline));
+                }
+            } catch (DataAccessException e) {
+                logger.error("Database unavailable, spilled messages in {} stay for the next start: {}", file, e.getMessage());
+                return;
+            }
+            spill.spill(unwritten);
+            spill.delete(file);
+            logger.info("Replayed spill file {} ({} rows, {} spilled again)", file, rows.size(), unwritten.size());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        accepting = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+        List<MessageBatchWriter.Row> unwritten = new ArrayList<>();
+        try {
+            flusher.join(shutdownTimeoutMs);
+            if (flusher.isAlive()) {
+                flusher.interrupt();
+                flusher.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The flusher's batch: interrupted mid-retry, or still stuck in the driver. A row that does get committed
+        // after all is recognised on replay.
+        unwritten.addAll(inFlight);
+        // Anything still queued (e.g. enqueued while the flusher was exiting) is written until the same deadline
+        List<MessageBatchWriter.Row> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (int from = 0; from < remaining.size(); from += flushSize) {
+            List<MessageBatchWriter.Row> chunk = remaining.subList(from, Math.min(from + flushSize, remaining.size()));
+            unwritten.addAll(System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()
+                    ? write(chunk, deadline) : chunk);
+        }
+        spill.spill(unwritten);
+        logger.info("Message write-behind stopped, {} queued messages drained on shutdown, {} spilled",
+                remaining.size(), unwritten.size());
+    }
+}
@@ -0,0 +1,453 @@
+package com.twentythree.messenger.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.dto.message.MessageDto;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Last {@code messages-per-chat} messages of each active chat, kept in memory so that
+ * "open the chat and show the latest messages" reads don't go to the database.
+ * <p>
+ * A chat's buffer is created on the first read (warmed from the DB), kept up to date by the send paths,
+ * and dropped when the chat is deactivated or when the whole cache goes over {@code max-bytes}
+ * (least recently used chats first). The buffer also remembers who may read the chat, so a cache hit
+ * needs no authorization query either; membership changes invalidate that part only.
+ * <p>
+ * Each node has its own buffers. Messages sent on other nodes arrive with their chat broadcast over the
+ * {@link ClusterBus} and are appended like local ones; evictions and reader invalidations are published too.
+ * <p>
+ * The buffers keep their own copies of the messages, and snapshots hand out copies again, so callers may change
+ * what they get without touching the cache.
+ */
+@Component
+public class RecentMessageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecentMessageCache.class);
+
+    static final String CLUSTER_DESTINATION = "recent-message-cache";
+    private static final String EVICT_PREFIX = "e:";
+    private static final String READERS_PREFIX = "r:";
+    private static final String CHAT_TOPIC_PREFIX = "/topic/chat/"; // ChatTopicPublisher.chatTopic
+
+    // Rough per-entry overhead of a MessageDto and its boxed fields, on top of the strings
+    private static final int ENTRY_OVERHEAD_BYTES = 200;
+    // How long an evicted (deactivated) chat is refused a new buffer: far longer than a read that began before it ended
+    private static final long EVICTED_RETENTION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final Comparator<MessageDto> CHRONOLOGICAL =
+            Comparator.comparing(MessageDto::getSentAt).thenComparing(MessageDto::getId);
+
+    private final boolean enabled;
+    private final int messagesPerChat;
+    private final long maxBytes;
+    private final Map<Long, ChatBuffer> buffers = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final Map<Long, Long> evictedAtNanos = new ConcurrentHashMap<>(); // chatId -> when evict() dropped it
+    private final ClusterBus clusterBus;
+    private final ObjectMapper objectMapper;
+
+    public RecentMessageCache(@Value("${app.messages.recent-cache.enabled:true}") boolean enabled,
+                              @Value("${app.messages.recent-cache.messages-per-chat:100}") int messagesPerChat,
+                              @Value("${app.messages.recent-cache.max-bytes:67108864}") long maxBytes,
+                              ClusterBus clusterBus, ObjectMapper objectMapper) {
+        this.enabled = enabled;
+        this.messagesPerChat = messagesPerChat;
+        this.maxBytes = maxBytes;
+        this.clusterBus = clusterBus;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        if (enabled) {
+            clusterBus.subscribe(this::receiveFromCluster);
+        }
+    }
+
+    /**
+     * Immutable view of a chat's buffer.
+     *
+     * @param messages   oldest first
+     * @param complete   true if {@code messages} is the chat's entire history
+     * @param totalCount number of messages in the chat, or -1 if not known yet
+     */
+    public record Snapshot(List<MessageDto> messages, boolean complete, long totalCount) {
+
+        /**
+         * Up to {@code count} messages older than (sentAt, id) of {@code before}, newest first;
+         * {@code before == null} means from the newest message. Returns null if the buffer can't tell
+         * whether it has all of them, i.e. the caller has to ask the database.
+         */
+        public List<MessageDto> newestBefore(MessageDto before, int count) {
+            int end = messages.size();
+            if (before != null) {
+                while (end > 0 && CHRONOLOGICAL.compare(messages.get(end - 1), before) >= 0) {
+                    end--;
+                }
+            }
+            if (end < count && !complete) {
+                return null;
+            }
+            List<MessageDto> result = new ArrayList<>(Math.min(count, end));
+            for (int i = end - 1; i >= 0 && result.size() < count; i--) {
+                result.add(messages.get(i));
+            }
+            return result;
+        }
+
+        /**
+         * Messages after {@code messageId}, oldest first, or null if that message isn't in the buffer.
+         * The buffer always holds a chat's newest messages, so if the message is here, so is everything after it.
+         */
+        public List<MessageDto> newerThan(Long messageId) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                if (messages.get(i).getId().equals(messageId)) {
+                    return messages.subList(i + 1, messages.size());
+                }
+            }
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMessagesPerChat() {
+        return messagesPerChat;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Cached messages of the chat if it is buffered and {@code userId} is known to be allowed to read it, else null.
+     */
+    public Snapshot find(Long chatId, Long userId) {
+        if (!enabled) {
+            return null;
+        }
+        ChatBuffer buffer = buffers.get(chatId);
+        if (buffer == null) {
+            return null;
+        }
+        synchronized (buffer) {
+            if (!buffer.loaded || buffer.readerIds == null || !buffer.readerIds.contains(userId)) {
+                return null;
+            }
+            buffer.lastAccessNanos = System.nanoTime();
+            return buffer.snapshot();
+        }
+    }
+
+    /**
+     * Buffers an active chat after an authorized cache miss. {@code newestFirstLoader} runs at most once per buffer
+     * and should return the chat's latest {@link #getMessagesPerChat()} messages; messages sent while it runs are kept.
+     */
+    public Snapshot warm(Long chatId, Set<Long> readerIds, Supplier<List<MessageDto>> newestFirstLoader) {
+        if (!enabled) {
+            return null;
+        }
+        if (evictedAtNanos.containsKey(chatId)) {
+            return null;
+        }
+        ChatBuffer buffer = buffers.computeIfAbsent(chatId, id -> new ChatBuffer(messagesPerChat));
+        if (evictedAtNanos.containsKey(chatId)) {
+            // The chat ended while the caller was finding it active: don't bring its buffer back
+            if (buffers.remove(chatId, buffer)) {
+                release(buffer);
+            }
+            return null;
+        }
+        boolean loaded;
+        synchronized (buffer) {
+            loaded = buffer.loaded;
+        }
+        List<MessageDto> rows = loaded ? List.of() : newestFirstLoader.get();
+        Snapshot snapshot;
+        synchronized (buffer) {
+            if (!buffer.loaded) {
+                for (MessageDto row : rows) {
+                    buffer.insert(copy(row));
+                }
+                buffer.complete = rows.size() < messagesPerChat && !buffer.truncated;
+                buffer.loaded = true;
+                logger.debug("Warmed recent-message buffer for chat {} with {} messages", chatId, buffer.size);
+            }
+            buffer.readerIds = Set.copyOf(readerIds);
+            buffer.lastAccessNanos = System.nanoTime();
+            snapshot = buffer.snapshot();
+        }
+        enforceBudget();
+        return snapshot;
+    }
+
+    /**
+     * Records the chat's total message count the first time someone needed it; later appends keep it current.
+     */
+    public void setTotalCount(Long chatId, long totalCount) {
+        ChatBuffer buffer = buffers.get(chatId);
+        if (buffer != null) {
+            synchronized (buffer) {
+                if (buffer.totalCount < 0) {
+                    buffer.totalCount = totalCount;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a freshly sent message once the surrounding transaction commits (immediately if there is none).
+     * Chats that aren't buffered are left alone; they are warmed from the DB on their next read.
+     */
+    public void appendAfterCommit(MessageDto message) {
+        if (enabled) {
+            afterCommit(() -> append(message));
+        }
+    }
+
+    /** Drops the chat's buffer here and on the other nodes once the surrounding transaction commits, e.g. when the chat is deactivated. */
+    public void evictAfterCommit(Long chatId) {
+        if (enabled) {
+            afterCommit(() -> {
+                evict(chatId);
+                clusterBus.publish(CLUSTER_DESTINATION, EVICT_PREFIX + chatId);
+            });
+        }
+    }
+
+    /** Forgets who may read the chat (someone joined or left), on every node; the next read re-checks against the DB. */
+    public void invalidateReadersAfterCommit(Long chatId) {
+        if (enabled) {
+            afterCommit(() -> {
+                invalidateReaders(chatId);
+                clusterBus.publish(CLUSTER_DESTINATION, READERS_PREFIX + chatId);
+            });
+        }
+    }
+
+    public void evict(Long chatId) {
+        long now = System.nanoTime();
+        evictedAtNanos.values().removeIf(evictedAt -> now - evictedAt > EVICTED_RETENTION_NANOS);
+        evictedAtNanos.put(chatId, now); // Before the removal, so a warm racing with it sees one or the other
+        ChatBuffer buffer = buffers.remove(chatId);
+        if (buffer != null) {
+            release(buffer);
+        }
+    }
+
+    private void invalidateReaders(Long chatId) {
+        ChatBuffer buffer = buffers.get(chatId);
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.readerIds = null;
+            }
+        }
+    }
+
+    private void receiveFromCluster(ClusterMessage message) {
+        String destination = message.destination();
+        try {
+            if (CLUSTER_DESTINATION.equals(destination)) {
+                String body = message.body();
+                Long chatId = Long.parseLong(body.substring(2));
+                if (body.startsWith(EVICT_PREFIX)) {
+                    evict(chatId);
+                } else if (body.startsWith(READERS_PREFIX)) {
+                    invalidateReaders(chatId);
+                }
+            } else if (destination.startsWith(CHAT_TOPIC_PREFIX)) {
+                appendFromCluster(Long.parseLong(destination.substring(CHAT_TOPIC_PREFIX.length())), message.body());
+            }
+        } catch (NumberFormatException | JsonProcessingException e) {
+            // Not ours (e.g. a presence topic) or malformed
+            logger.debug("Ignoring cluster message for {}: {}", destination, e.getMessage());
+        }
+    }
+
+    // The chat broadcast of a message sent on another node; other broadcasts (e.g. ChatEndedEvent) have no message id.
+    // Sent just before the sender's commit, like the local broadcast; a send that then fails is rare and shows up
+    // only here until the buffer is evicted.
+    private void appendFromCluster(Long chatId, String body) throws JsonProcessingException {
+        if (!buffers.containsKey(chatId)) {
+            return; // Not buffered here; warmed from the DB on the next read
+        }
+        JsonNode node = objectMapper.readTree(body);
+        if (node.hasNonNull("id") && node.hasNonNull("sentAt") && !node.has("event")) {
+            append(objectMapper.treeToValue(node, MessageDto.class));
+        }
+    }
+
+    private void append(MessageDto message) {
+        ChatBuffer buffer = buffers.get(message.getChatId());
+        if (buffer == null) {
+            return;
+        }
+        synchronized (buffer) {
+            if (buffer.insert(copy(message)) && buffer.totalCount >= 0) {
+                buffer.totalCount++;
+            }
+        }
+        enforceBudget();
+    }
+
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void release(ChatBuffer buffer) {
+        synchronized (buffer) {
+            if (!buffer.evicted) {
+                buffer.evicted = true;
+                totalBytes.addAndGet(-buffer.bytes);
+            }
+        }
+    }
+
+    // Evicts least recently read chats until the cache fits its budget again. Runs without holding any buffer lock.
+    private void enforceBudget() {
+        while (totalBytes.get() > maxBytes) {
+            Map.Entry<Long, ChatBuffer> victim = null;
+            for (Map.Entry<Long, ChatBuffer> entry : buffers.entrySet()) {
+                if (victim == null || entry.getValue().lastAccessNanos - victim.getValue().lastAccessNanos < 0) {
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            if (buffers.remove(victim.getKey(), victim.getValue())) {
+                release(victim.getValue());
+                logger.debug("Evicted recent-message buffer for chat {} (cache over {} bytes)", victim.getKey(), maxBytes);
+            }
+        }
+    }
+
+    private static MessageDto copy(MessageDto message) {
+        return new MessageDto(message.getId(), message.getChatId(), message.getSenderId(), message.getSenderNickname(),
+                message.getSenderProfilePictureUrl(), message.getMessageType(), message.getContentText(),
+                message.getContentImageUrl(), message.getSentAt());
+    }
+
+    private static long estimateBytes(MessageDto message) {
+        return ENTRY_OVERHEAD_BYTES
+                + 2L * (length(message.getContentText())
+                + length(message.getContentImageUrl())
+                + length(message.getSenderNickname())
+                + length(message.getSenderProfilePictureUrl()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    // Ring of the newest messages in (sentAt, id) order. All access is synchronized on the buffer.
+    private final class ChatBuffer {
+        private final MessageDto[] ring;
+        private int head;  // index of the oldest message
+        private int size;
+        private boolean loaded;
+        private boolean complete;
+        private boolean truncated; // something older was dropped to make room
+        private boolean evicted;
+        private long totalCount = -1;
+        private long bytes;
+        private Set<Long> readerIds;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        ChatBuffer(int capacity) {
+            this.ring = new MessageDto[capacity];
+        }
+
+        private MessageDto at(int i) {
+            return ring[(head + i) % ring.length];
+        }
+
+        private void set(int i, MessageDto message) {
+            ring[(head + i) % ring.length] = message;
+        }
+
+        /** Inserts in order (almost always at the tail), ignoring duplicates. Returns false if it was already there. */
+        boolean insert(MessageDto message) {
+            // By id only: the DB copy of a message may carry a sentAt rounded differently than the one we broadcast
+            for (int i = size - 1; i >= 0; i--) {
+                if (at(i).getId().equals(message.getId())) {
+                    return false;
+                }
+            }
+            int pos = size;
+            while (pos > 0 && CHRONOLOGICAL.compare(at(pos - 1), message) > 0) {
+                pos--;
+            }
+            if (size == ring.length) {
+                if (pos == 0) {
+                    // Older than everything we keep
+                    truncated = true;
+                    complete = false;
+                    return true;
+                }
+                // Drop the oldest to make room
+                account(-estimateBytes(at(0)));
+                set(0, null);
+                head = (head + 1) % ring.length;
+                size--;
+                pos--;
+                truncated = true;
+                complete = false;
+            }
+            for (int i = size; i > pos; i--) {
+                set(i, at(i - 1));
+            }
+            set(pos, message);
+            size++;
+            account(estimateBytes(message));
+            return true;
+        }
+
+        private void account(long delta) {
+            bytes += delta;
+            if (!evicted) {
+                totalBytes.addAndGet(delta);
+            }
+        }
+
+        Snapshot snapshot() {
+            List<MessageDto> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add(copy(at(i)));
+            }
+            return new Snapshot(Collections.unmodifiableList(messages), complete, totalCount);
+        }
+    }
+}
@@ -7,8 +7,10 @@ import com.twentythree.messenger.entity.Interest;
 import com.twentythree.messenger.entity.User;
 import com.twentythree.messenger.exception.BadRequestException;
 import com.twentythree.messenger.exception.ResourceNotFoundException;
+import com.twentythree.messenger.matchmaking.ChatMatchIndex;
 import com.twentythree.messenger.repository.InterestRepository;
 import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.security.UserAuthStateCache;
 import com.twentythree.messenger.service.FileStorageService;
 import com.twentythree.messenger.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,6 +35,12 @@ public class UserServiceImpl implements UserService {
     @Autowired
     private FileStorageService fileStorageService;
 
+    @Autowired
+    private UserAuthStateCache userAuthStateCache;
+
+    @Autowired
+    private ChatMatchIndex chatMatchIndex;
+
     // @Autowired
     // private PasswordEncoder passwordEncoder; // If password change is implemented
 
@@ -56,6 +64,8 @@ public class UserServiceImpl implements UserService {
                 throw new BadRequestException("Nickname '" + userUpdateDto.getNickname() + "' is already taken.");
             }
             user.setNickname(userUpdateDto.getNickname());
+            // Tokens and WebSocket sessions carry the old nickname; both pick up the new one without a re-login
+            userAuthStateCache.updateAfterCommit(user);
         }
 
         // Update interests if provided
@@ -68,6 +78,8 @@ public class UserServiceImpl implements UserService {
                 }
             }
             user.setInterests(newInterests);
+            // Best-match ranking of the user's chat sees the new interests
+            chatMatchIndex.interestsChangedAfterCommit(user.getId(), newInterests.stream().map(Interest::getId).toList());
         }
 
         // Password update logic would go here if implemented
@@ -109,6 +121,7 @@ public class UserServiceImpl implements UserService {
 
         user.setProfilePictureUrl(fileAccessUrl);
         User updatedUser = userRepository.save(user);
+        userAuthStateCache.updateAfterCommit(updatedUser); // Open WebSocket sessions show the new avatar on their next message
         return mapUserToProfileDto(updatedUser);
     }
 
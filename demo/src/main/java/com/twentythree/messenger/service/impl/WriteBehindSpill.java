@@ -0,0 +1,122 @@
+package com.twentythree.messenger.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.repository.MessageBatchWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Local files for acknowledged messages that {@link MessageWriteBehindQueue} could not get into the database:
+ * {@code spill-*.jsonl} (shutdown deadline passed, DB unreachable) are written back on the next start;
+ * {@code rejected-*.jsonl} (rows the DB refuses, e.g. their chat is gone) are kept for an operator.
+ * One JSON row per line, fsynced before the file counts as written.
+ */
+class WriteBehindSpill {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindSpill.class);
+
+    private static final String SPILL_PREFIX = "spill-";
+    private static final String REJECTED_PREFIX = "rejected-";
+    private static final String SUFFIX = ".jsonl";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    WriteBehindSpill(Path directory, ObjectMapper objectMapper) {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+    }
+
+    /** Writes rows to be replayed on the next start. */
+    void spill(List<MessageBatchWriter.Row> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        Path file = write(SPILL_PREFIX, rows);
+        if (file != null) {
+            logger.warn("Spilled {} unflushed messages to {}; they are written on the next start", rows.size(), file);
+        }
+    }
+
+    /** Keeps a row the database refused, for manual recovery. */
+    void reject(MessageBatchWriter.Row row, String reason) {
+        Path file = write(REJECTED_PREFIX, List.of(row));
+        if (file != null) {
+            logger.error("Database refused message {} for chat {} ({}); saved to {}", row.id(), row.chatId(), reason, file);
+        }
+    }
+
+    /** Spill files left by earlier runs, oldest first. */
+    List<Path> pendingFiles() {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SPILL_PREFIX + "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list " + directory, e);
+        }
+        files.sort(null); // Names start with the write time
+        return files;
+    }
+
+    List<MessageBatchWriter.Row> read(Path file) {
+        try {
+            List<MessageBatchWriter.Row> rows = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    rows.add(objectMapper.readValue(line, MessageBatchWriter.Row.class));
+                }
+            }
+            return rows;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file, e);
+        }
+    }
+
+    void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete " + file, e);
+        }
+    }
+
+    // The file written, or null if that failed (the rows are logged instead)
+    private Path write(String prefix, List<MessageBatchWriter.Row> rows) {
+        try {
+            Files.createDirectories(directory);
+            Path file = directory.resolve(prefix + System.currentTimeMillis() + "-" + UUID.randomUUID() + SUFFIX);
+            StringBuilder lines = new StringBuilder();
+            for (MessageBatchWriter.Row row : rows) {
+                lines.append(objectMapper.writeValueAsString(row)).append('\n');
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            return file;
+        } catch (IOException e) {
+            // Nowhere left to keep them: at least the ids and contents end up in the log
+            logger.error("Could not save {} messages to {}: {}; rows {}", rows.size(), directory, e.getMessage(), rows);
+            return null;
+        }
+    }
+}
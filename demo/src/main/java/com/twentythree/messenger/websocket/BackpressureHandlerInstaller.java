@@ -0,0 +1,38 @@
+package com.twentythree.messenger.websocket;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+/**
+ * Puts {@link BackpressureSubProtocolWebSocketHandler} in place of the stock handler that
+ * {@code @EnableWebSocketMessageBroker} registers, before the endpoints are configured with it.
+ */
+@Component
+public class BackpressureHandlerInstaller implements BeanPostProcessor, BeanFactoryAware {
+
+    private static final String HANDLER_BEAN = "subProtocolWebSocketHandler";
+
+    private BeanFactory beanFactory;
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) {
+        this.beanFactory = beanFactory;
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        if (!HANDLER_BEAN.equals(beanName) || bean.getClass() != SubProtocolWebSocketHandler.class) {
+            return bean;
+        }
+        // Freshly constructed, nothing configured yet: the same channels it was created with are all it needs
+        return new BackpressureSubProtocolWebSocketHandler(
+                beanFactory.getBean("clientInboundChannel", MessageChannel.class),
+                beanFactory.getBean("clientOutboundChannel", SubscribableChannel.class));
+    }
+}
@@ -0,0 +1,286 @@
+package com.twentythree.messenger.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Outbound side of one WebSocket session: {@link #sendMessage} only queues and returns, and a flush task on the
+ * {@link OutboundBackpressure} pool writes the queue out (at most one per session, so writes never overlap).
+ * Queue size is tracked in bytes against the watermarks of {@link OutboundBackpressure}; above the high watermark
+ * its {@link SlowConsumerPolicy} applies. A write that blocks longer than the send time limit disconnects the
+ * session whatever the policy.
+ * <p>
+ * Replaces Spring's ConcurrentWebSocketSessionDecorator (see {@link BackpressureSubProtocolWebSocketHandler}),
+ * so the sender thread - the broker's - never waits for a slow client.
+ */
+public class BackpressureSessionDecorator extends WebSocketSessionDecorator {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackpressureSessionDecorator.class);
+
+    private final OutboundBackpressure settings;
+    private final Deque<QueuedFrame> queue = new ArrayDeque<>(); // guarded by itself
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private long queuedBytes;   // guarded by queue
+    private long droppedFrames; // guarded by queue
+    private long coalescedFrames; // guarded by queue
+    private volatile long sendStartNanos;
+    private volatile boolean closing;
+
+    BackpressureSessionDecorator(WebSocketSession delegate, OutboundBackpressure settings) {
+        super(delegate);
+        this.settings = settings;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (closing) {
+            return;
+        }
+        boolean overHighWatermark;
+        synchronized (queue) {
+            queue.add(new QueuedFrame(message));
+            queuedBytes += message.getPayloadLength();
+            overHighWatermark = queuedBytes > settings.getHighWatermarkBytes();
+        }
+        if (isStalled()) {
+            disconnect("send time limit exceeded");
+            return;
+        }
+        if (overHighWatermark) {
+            relieve();
+            if (closing) {
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return; // The running flush picks up what was just queued
+        }
+        try {
+            settings.getFlushExecutor().execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+            disconnect("outbound flush pool unavailable");
+        }
+    }
+
+    private void flush() {
+        try {
+            QueuedFrame frame;
+            while (!closing && (frame = poll()) != null) {
+                sendStartNanos = System.nanoTime();
+                getDelegate().sendMessage(frame.message);
+                sendStartNanos = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Write to WebSocket session {} failed, closing it: {}", getId(), e.getMessage());
+            abandon(CloseStatus.SESSION_NOT_RELIABLE);
+        } finally {
+            sendStartNanos = 0;
+            flushScheduled.set(false);
+        }
+        if (!closing && !isQueueEmpty()) {
+            scheduleFlush(); // Queued after the last poll, while this flush still held the flag
+        }
+    }
+
+    private void relieve() {
+        switch (settings.getPolicy()) {
+            case DISCONNECT -> disconnect("outbound queue above high watermark");
+            case COALESCE -> {
+                long coalesced = coalesce();
+                long dropped = dropOldest();
+                settings.recordEvictions(getId(), SlowConsumerPolicy.COALESCE, coalesced);
+                settings.recordEvictions(getId(), SlowConsumerPolicy.DROP_OLDEST, dropped);
+            }
+            case DROP_OLDEST -> settings.recordEvictions(getId(), SlowConsumerPolicy.DROP_OLDEST, dropOldest());
+        }
+    }
+
+    // Newest frame per destination survives; walks from the tail so "newest" is the first one seen
+    private long coalesce() {
+        long count = 0;
+        synchronized (queue) {
+            Set<String> seen = new HashSet<>();
+            Iterator<QueuedFrame> it = queue.descendingIterator();
+            while (it.hasNext() && queuedBytes > settings.getLowWatermarkBytes()) {
+                QueuedFrame frame = it.next();
+                String destination = frame.destination();
+                if (destination != null && !seen.add(destination)) {
+                    it.remove();
+                    queuedBytes -= frame.bytes;
+                    count++;
+                }
+            }
+            coalescedFrames += count;
+        }
+        return count;
+    }
+
+    private long dropOldest() {
+        long count = 0;
+        synchronized (queue) {
+            Iterator<QueuedFrame> it = queue.iterator();
+            while (it.hasNext() && queuedBytes > settings.getLowWatermarkBytes()) {
+                QueuedFrame frame = it.next();
+                if (frame.isMessageFrame()) {
+                    it.remove();
+                    queuedBytes -= frame.bytes;
+                    count++;
+                }
+            }
+            droppedFrames += count;
+        }
+        return count;
+    }
+
+    private void disconnect(String reason) {
+        if (closing) {
+            return;
+        }
+        settings.recordDisconnect(getId(), reason);
+        abandon(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    private void abandon(CloseStatus status) {
+        closing = true;
+        synchronized (queue) {
+            queue.clear();
+            queuedBytes = 0;
+        }
+        try {
+            getDelegate().close(status);
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private boolean isStalled() {
+        long started = sendStartNanos;
+        return started != 0 && System.nanoTime() - started > settings.getSendTimeLimitNanos();
+    }
+
+    private QueuedFrame poll() {
+        synchronized (queue) {
+            QueuedFrame frame = queue.poll();
+            if (frame != null) {
+                queuedBytes -= frame.bytes;
+            }
+            return frame;
+        }
+    }
+
+    private boolean isQueueEmpty() {
+        synchronized (queue) {
+            return queue.isEmpty();
+        }
+    }
+
+    // --- Snapshot for metrics and the actuator endpoint ---
+
+    int getQueuedFrames() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    long getQueuedBytes() {
+        synchronized (queue) {
+            return queuedBytes;
+        }
+    }
+
+    long getDroppedFrames() {
+        synchronized (queue) {
+            return droppedFrames;
+        }
+    }
+
+    long getCoalescedFrames() {
+        synchronized (queue) {
+            return coalescedFrames;
+        }
+    }
+
+    long getCurrentSendMillis() {
+        long started = sendStartNanos;
+        return started == 0 ? 0 : (System.nanoTime() - started) / 1_000_000;
+    }
+
+    private static final class QueuedFrame {
+        private static final byte[] MESSAGE_COMMAND = "MESSAGE\n".getBytes(StandardCharsets.UTF_8);
+        private static final String DESTINATION_HEADER = "\ndestination:";
+
+        final WebSocketMessage<?> message;
+        final int bytes;
+
+        QueuedFrame(WebSocketMessage<?> message) {
+            this.message = message;
+            this.bytes = message.getPayloadLength();
+        }
+
+        boolean isMessageFrame() {
+            if (message instanceof TextMessage text) {
+                return text.getPayload().startsWith("MESSAGE\n");
+            }
+            if (message instanceof BinaryMessage binary) {
+                ByteBuffer payload = binary.getPayload();
+                if (payload.remaining() < MESSAGE_COMMAND.length) {
+                    return false;
+                }
+                for (int i = 0; i < MESSAGE_COMMAND.length; i++) {
+                    if (payload.get(payload.position() + i) != MESSAGE_COMMAND[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        // STOMP destination of a MESSAGE frame, null for anything else
+        String destination() {
+            if (!isMessageFrame()) {
+                return null;
+            }
+            String headers;
+            if (message instanceof TextMessage text) {
+                headers = text.getPayload();
+            } else {
+                ByteBuffer payload = ((BinaryMessage) message).getPayload().duplicate();
+                byte[] head = new byte[Math.min(payload.remaining(), 512)];
+                payload.get(head);
+                headers = new String(head, StandardCharsets.UTF_8);
+            }
+            int end = headers.indexOf("\n\n");
+            int start = headers.indexOf(DESTINATION_HEADER);
+            if (start < 0 || (end >= 0 && start > end)) {
+                return null;
+            }
+            start += DESTINATION_HEADER.length();
+            int lineEnd = headers.indexOf('\n', start);
+            return lineEnd < 0 ? null : headers.substring(start, lineEnd);
+        }
+    }
+}
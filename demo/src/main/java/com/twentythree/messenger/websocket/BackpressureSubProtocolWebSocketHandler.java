@@ -0,0 +1,24 @@
+package com.twentythree.messenger.websocket;
+
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+/**
+ * STOMP handler that keeps the {@link BackpressureSessionDecorator} it is handed. The stock handler wraps every
+ * session in its own ConcurrentWebSocketSessionDecorator, which sends one frame at a time on the caller's thread:
+ * outside ours, our queue would never fill and the watermarks would never apply.
+ * Sessions that arrive without our decorator still get Spring's. Installed by {@link BackpressureHandlerInstaller}.
+ */
+public class BackpressureSubProtocolWebSocketHandler extends SubProtocolWebSocketHandler {
+
+    public BackpressureSubProtocolWebSocketHandler(MessageChannel clientInboundChannel, SubscribableChannel clientOutboundChannel) {
+        super(clientInboundChannel, clientOutboundChannel);
+    }
+
+    @Override
+    protected WebSocketSession decorateSession(WebSocketSession session) {
+        return session instanceof BackpressureSessionDecorator ? session : super.decorateSession(session);
+    }
+}
@@ -0,0 +1,195 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate-adaptive batching of chat broadcasts, per destination.
+ * <p>
+ * While a destination stays under {@code rateThreshold} messages per second every body goes out as its own frame.
+ * Once it gets busier, the first body opens a batch, everything arriving in the next {@code windowMs} joins it, and
+ * the batch goes out as one frame whose body is a JSON array of the messages ({@code batchSize} > 0 tells the sink
+ * to mark it). The destination drops back to single frames once its rate falls below half the threshold.
+ * Order is preserved: while a batch is open, nothing for that destination bypasses it.
+ */
+final class BroadcastCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastCoalescer.class);
+
+    private static final long RATE_BUCKET_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    @FunctionalInterface
+    interface FrameSink {
+        void send(String destination, byte[] body, int batchSize);
+    }
+
+    private final long windowMs;
+    private final int rateThreshold;
+    private final int maxBatchSize;
+    private final FrameSink sink;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, DestinationState> states = new ConcurrentHashMap<>();
+    private final DistributionSummary batchSizes;
+
+    BroadcastCoalescer(long windowMs, int rateThreshold, int maxBatchSize, FrameSink sink, MeterRegistry meterRegistry) {
+        this.windowMs = windowMs;
+        this.rateThreshold = rateThreshold;
+        this.maxBatchSize = maxBatchSize;
+        this.sink = sink;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-broadcast-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::forgetIdle, 1, 1, TimeUnit.MINUTES);
+        this.batchSizes = DistributionSummary.builder("chat.broadcast.batch.size")
+                .description("Messages per coalesced chat broadcast frame")
+                .register(meterRegistry);
+        Gauge.builder("chat.broadcast.coalescing.destinations", this, BroadcastCoalescer::coalescingCount)
+                .description("Chat topics currently above the coalescing rate threshold")
+                .register(meterRegistry);
+    }
+
+    void deliver(String destination, byte[] body) {
+        while (true) {
+            DestinationState state = states.computeIfAbsent(destination, d -> new DestinationState());
+            synchronized (state) {
+                if (state.retired) {
+                    continue; // Removed as idle just now; take the fresh one
+                }
+                long now = System.nanoTime();
+                state.count(now);
+                if (state.pending != null) {
+                    state.pending.add(body);
+                    state.pendingBytes += body.length;
+                    if (state.pending.size() >= maxBatchSize) {
+                        flush(destination, state);
+                    }
+                    return;
+                }
+                if (!state.updateMode(rateThreshold)) {
+                    sink.send(destination, body, 0);
+                    return;
+                }
+                state.pending = new ArrayList<>();
+                state.pending.add(body);
+                state.pendingBytes = body.length;
+                scheduler.schedule(() -> {
+                    synchronized (state) {
+                        flush(destination, state);
+                    }
+                }, windowMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        // Hand out whatever is still open rather than lose it
+        states.forEach((destination, state) -> {
+            synchronized (state) {
+                flush(destination, state);
+            }
+        });
+    }
+
+    // Caller holds the state's lock
+    private void flush(String destination, DestinationState state) {
+        List<byte[]> batch = state.pending;
+        if (batch == null) {
+            return;
+        }
+        state.pending = null;
+        try {
+            if (batch.size() == 1) {
+                sink.send(destination, batch.get(0), 0);
+                return;
+            }
+            byte[] array = new byte[state.pendingBytes + batch.size() + 1];
+            array[0] = '[';
+            int pos = 1;
+            for (byte[] body : batch) {
+                if (pos > 1) {
+                    array[pos++] = ',';
+                }
+                System.arraycopy(body, 0, array, pos, body.length);
+                pos += body.length;
+            }
+            array[pos] = ']';
+            batchSizes.record(batch.size());
+            sink.send(destination, array, batch.size());
+        } catch (RuntimeException e) {
+            logger.error("Failed to send coalesced broadcast of {} messages to {}", batch.size(), destination, e);
+        }
+    }
+
+    private void forgetIdle() {
+        long now = System.nanoTime();
+        states.forEach((destination, state) -> {
+            synchronized (state) {
+                if (state.pending == null && now - state.lastMessageNanos > IDLE_NANOS) {
+                    state.retired = true;
+                    states.remove(destination, state);
+                }
+            }
+        });
+    }
+
+    private int coalescingCount() {
+        int count = 0;
+        for (DestinationState state : states.values()) {
+            if (state.coalescing) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // All fields guarded by the state itself
+    private static final class DestinationState {
+        private long bucketStartNanos = System.nanoTime();
+        private int currentBucket;
+        private int previousBucket;
+        private long lastMessageNanos;
+        private volatile boolean coalescing;
+        private boolean retired;
+        private List<byte[]> pending;
+        private int pendingBytes;
+
+        void count(long now) {
+            long elapsed = now - bucketStartNanos;
+            if (elapsed >= RATE_BUCKET_NANOS) {
+                // A gap of more than one bucket means the previous second was empty
+                previousBucket = elapsed < 2 * RATE_BUCKET_NANOS ? currentBucket : 0;
+                currentBucket = 0;
+                bucketStartNanos = now - elapsed % RATE_BUCKET_NANOS;
+            }
+            currentBucket++;
+            lastMessageNanos = now;
+        }
+
+        // Messages per second, with hysteresis so a chat hovering at the threshold doesn't flip every message
+        boolean updateMode(int rateThreshold) {
+            int rate = Math.max(currentBucket, previousBucket);
+            if (coalescing) {
+                coalescing = rate * 2 >= rateThreshold;
+            } else {
+                coalescing = rate >= rateThreshold;
+            }
+            return coalescing;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.twentythree.messenger.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Broadcasts to {@code /topic/chat/{chatId}} with the payload serialized to JSON exactly once.
+ * The bytes travel as a {@link SharedStompPayload}, so the outbound encoder reuses them for every subscriber.
+ * Each broadcast is delivered to this node's subscribers right away and published on the {@link ClusterBus}
+ * for subscribers connected to other nodes.
+ * <p>
+ * With {@code app.websocket.coalescing.enabled} a chat busier than {@code rate-threshold} messages per second
+ * is broadcast in batches: the messages of each {@code window-ms} window go out as one frame whose body is
+ * a JSON array, marked with the {@value #BATCH_SIZE_HEADER} header (see {@link BroadcastCoalescer}).
+ * Clients must accept both shapes before this is switched on.
+ * <p>
+ * Metrics: {@code chat.broadcast.bytes{stage=encoded}} counts body bytes serialized (once per broadcast),
+ * {@code chat.broadcast.bytes{stage=sent}} the frame bytes produced for all subscriber sessions.
+ */
+@Component
+public class ChatTopicPublisher {
+
+    public static final String BYTES_METRIC = "chat.broadcast.bytes";
+    public static final String FRAMES_METRIC = "chat.broadcast.frames";
+    public static final String BATCH_SIZE_HEADER = "x-batch-size";
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
+    private final ClusterBus clusterBus;
+    private final Counter encodedBytes;
+    private final Counter encodedPayloads;
+    private final BroadcastCoalescer coalescer;
+
+    public ChatTopicPublisher(SimpMessagingTemplate messagingTemplate, ObjectMapper objectMapper,
+                              ClusterBus clusterBus, MeterRegistry meterRegistry,
+                              @Value("${app.websocket.coalescing.enabled:false}") boolean coalescingEnabled,
+                              @Value("${app.websocket.coalescing.window-ms:25}") long coalescingWindowMs,
+                              @Value("${app.websocket.coalescing.rate-threshold:50}") int coalescingRateThreshold,
+                              @Value("${app.websocket.coalescing.max-batch-size:200}") int coalescingMaxBatchSize) {
+        this.messagingTemplate = messagingTemplate;
+        this.objectMapper = objectMapper;
+        this.clusterBus = clusterBus;
+        this.coalescer = coalescingEnabled
+                ? new BroadcastCoalescer(coalescingWindowMs, coalescingRateThreshold, coalescingMaxBatchSize, this::sendFrame, meterRegistry)
+                : null;
+        this.encodedBytes = Counter.builder(BYTES_METRIC)
+                .tag("stage", "encoded")
+                .description("JSON body bytes serialized for chat broadcasts")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.encodedPayloads = Counter.builder(FRAMES_METRIC)
+                .tag("stage", "encoded")
+                .description("Chat broadcasts serialized")
+                .register(meterRegistry);
+    }
+
+    public static String chatTopic(Long chatId) {
+        return "/topic/chat/" + chatId;
+    }
+
+    public static String presenceTopic(Long chatId) {
+        return chatTopic(chatId) + "/presence";
+    }
+
+    @PostConstruct
+    void subscribeToCluster() {
+        clusterBus.subscribe(this::deliverFromCluster);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+    }
+
+    public void publishToChat(Long chatId, Object payload) {
+        String destination = chatTopic(chatId);
+        byte[] body = serialize(destination, payload);
+        deliverLocally(destination, body);
+        clusterBus.publish(destination, new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Broadcast to this node's subscribers only, for state each node works out for itself (e.g. presence).
+     */
+    public void publishLocally(String destination, Object payload) {
+        deliverLocally(destination, serialize(destination, payload));
+    }
+
+    private byte[] serialize(String destination, Object payload) {
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize broadcast for " + destination, e);
+        }
+        encodedBytes.increment(body.length);
+        encodedPayloads.increment();
+        return body;
+    }
+
+    // Subscribers only; RecentMessageCache takes the same broadcasts off the bus for its buffers
+    private void deliverFromCluster(ClusterMessage message) {
+        if (message.destination().startsWith("/topic/chat/")) {
+            deliverLocally(message.destination(), message.body().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Messages from this node and from the cluster share the coalescer, so a chat's rate counts all of its traffic
+    private void deliverLocally(String destination, byte[] body) {
+        if (coalescer != null) {
+            coalescer.deliver(destination, body);
+        } else {
+            sendFrame(destination, body, 0);
+        }
+    }
+
+    private void sendFrame(String destination, byte[] body, int batchSize) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create();
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        if (batchSize > 0) {
+            accessor.setNativeHeader(BATCH_SIZE_HEADER, Integer.toString(batchSize));
+        }
+        accessor.setHeader(SharedStompPayload.HEADER, new SharedStompPayload(body));
+        accessor.setLeaveMutable(true);
+        messagingTemplate.send(destination, MessageBuilder.createMessage(body, accessor.getMessageHeaders()));
+    }
+}
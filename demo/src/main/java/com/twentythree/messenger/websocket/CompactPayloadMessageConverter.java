@@ -0,0 +1,32 @@
+package com.twentythree.messenger.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.util.MimeType;
+
+/**
+ * CBOR for {@code @MessageMapping} payloads: reads SENDs with {@code content-type:application/cbor} and writes
+ * replies addressed to a single session (e.g. {@code @SendToUser(broadcast = false)}) as CBOR if that session
+ * negotiated the compact encoding. Everything else falls through to the default JSON converter.
+ */
+public class CompactPayloadMessageConverter extends MappingJackson2MessageConverter {
+
+    private final CompactPayloadSessions compactPayloadSessions;
+
+    public CompactPayloadMessageConverter(ObjectMapper cborMapper, CompactPayloadSessions compactPayloadSessions) {
+        super(MimeType.valueOf(CompactPayloadSessions.CBOR_CONTENT_TYPE));
+        setObjectMapper(cborMapper);
+        setSerializedPayloadClass(byte[].class);
+        this.compactPayloadSessions = compactPayloadSessions;
+    }
+
+    @Override
+    protected boolean canConvertTo(Object payload, @Nullable MessageHeaders headers) {
+        return headers != null
+                && compactPayloadSessions.isCompact(SimpMessageHeaderAccessor.getSessionId(headers))
+                && super.canConvertTo(payload, headers);
+    }
+}
@@ -0,0 +1,313 @@
+package com.twentythree.messenger.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in compact encoding of WebSocket payloads (registered in WebSocketConfig).
+ * <p>
+ * A client sends {@code x-payload-encoding:cbor} in its CONNECT frame. Over a raw WebSocket (not SockJS, which can't
+ * carry binary frames) the session is then switched to compact mode:
+ * <ul>
+ *     <li>every frame goes out as a binary WebSocket message;</li>
+ *     <li>chat broadcasts are CBOR with short field names (see {@link #SHORT_NAMES}), body
+ *     {@code [senders, payload]}, where {@code senders} maps senderId (a string, as ids are in JSON) to {@code {n: nickname, p: profilePictureUrl}}
+ *     for senders this session hasn't been sent yet (or whose profile changed), and messages carry only the id;</li>
+ *     <li>replies converted by Spring (e.g. sync) are plain CBOR, see {@link CompactPayloadMessageConverter};</li>
+ *     <li>clients may SEND with {@code content-type:application/cbor}.</li>
+ * </ul>
+ * Frames say which encoding they carry in content-type, so a client that asked for CBOR and got JSON (older server,
+ * SockJS) keeps working. If frames are evicted for a slow consumer the session's sender dictionary starts over,
+ * so entries that were lost are sent again; until then clients should treat an unknown sender id as unknown.
+ */
+@Component
+public class CompactPayloadSessions implements ChannelInterceptor, WebSocketHandlerDecoratorFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompactPayloadSessions.class);
+
+    public static final String ENCODING_HEADER = "x-payload-encoding";
+    public static final String CBOR_ENCODING = "cbor";
+    public static final String CBOR_CONTENT_TYPE = "application/cbor";
+
+    /** MessageDto field -> key used in compact broadcasts. Fields not listed keep their name. */
+    static final Map<String, String> SHORT_NAMES = Map.of(
+            "id", "i",
+            "chatId", "c",
+            "senderId", "s",
+            "messageType", "k",
+            "contentText", "t",
+            "contentImageUrl", "u",
+            "sentAt", "a");
+
+    private static final String SENDER_ID_FIELD = "senderId";
+    private static final String SENDER_NICKNAME_FIELD = "senderNickname";
+    private static final String SENDER_PICTURE_FIELD = "senderProfilePictureUrl";
+
+    private static final int MAX_DICTIONARY_SIZE = 10_000;
+
+    private final ObjectMapper jsonMapper;
+    private final ObjectMapper cborMapper;
+    private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
+
+    public CompactPayloadSessions(ObjectMapper jsonMapper, Jackson2ObjectMapperBuilder objectMapperBuilder,
+                                  OutboundBackpressure outboundBackpressure, MeterRegistry meterRegistry) {
+        this.jsonMapper = jsonMapper;
+        // Same modules and settings as the JSON mapper, CBOR on the wire
+        this.cborMapper = objectMapperBuilder.factory(new CBORFactory()).build();
+        outboundBackpressure.addEvictionListener(this::resetDictionary);
+        Gauge.builder("websocket.compact.sessions", this, CompactPayloadSessions::compactCount)
+                .description("WebSocket sessions using the compact CBOR encoding")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Transcoded form of one broadcast, shared by all compact sessions.
+     *
+     * @param payload CBOR of the body with short field names and without sender profiles
+     * @param senders dictionary entries for every sender the body mentions
+     */
+    record CompactBody(byte[] payload, List<SenderEntry> senders) {
+        static final CompactBody UNSUPPORTED = new CompactBody(null, List.of());
+    }
+
+    /** @param encoded CBOR key (senderId) and value ({n, p}) ready to be put in a map */
+    record SenderEntry(long senderId, int profileHash, byte[] encoded) {
+    }
+
+    public ObjectMapper getCborMapper() {
+        return cborMapper;
+    }
+
+    public boolean isCompact(String sessionId) {
+        SessionState state = sessionId != null ? sessions.get(sessionId) : null;
+        return state != null && state.compact;
+    }
+
+    // --- CONNECT negotiation ---
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor != null && StompCommand.CONNECT.equals(accessor.getCommand())
+                && CBOR_ENCODING.equalsIgnoreCase(accessor.getFirstNativeHeader(ENCODING_HEADER))) {
+            SessionState state = accessor.getSessionId() != null ? sessions.get(accessor.getSessionId()) : null;
+            if (state != null && state.binaryCapable) {
+                state.compact = true;
+                logger.debug("WebSocket session {} switched to compact CBOR payloads", accessor.getSessionId());
+            }
+        }
+        return message;
+    }
+
+    // --- Session tracking, binary frames ---
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                SessionState state = new SessionState(!(session instanceof SockJsSession));
+                sessions.put(session.getId(), state);
+                super.afterConnectionEstablished(new WebSocketSessionDecorator(session) {
+                    @Override
+                    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                        // StompSubProtocolHandler hands STOMP frames over as text; asBytes() is the encoder's output as is
+                        if (state.compact && message instanceof TextMessage text) {
+                            message = new BinaryMessage(text.asBytes());
+                        }
+                        super.sendMessage(message);
+                    }
+                });
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    // --- Broadcast bodies ---
+
+    /**
+     * CBOR body of {@code shared} for this session, including the dictionary entries it hasn't seen yet,
+     * or null if the session uses JSON (or the body can't be transcoded).
+     */
+    byte[] bodyFor(String sessionId, SharedStompPayload shared) {
+        SessionState state = sessionId != null ? sessions.get(sessionId) : null;
+        if (state == null || !state.compact) {
+            return null;
+        }
+        CompactBody compact = shared.getCompactBody();
+        if (compact == null) {
+            compact = transcode(shared.getBody());
+            shared.setCompactBody(compact); // Benign race: concurrent first frames transcode the same bytes
+        }
+        if (compact == CompactBody.UNSUPPORTED) {
+            return null;
+        }
+        List<SenderEntry> fresh = state.unseen(compact.senders());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compact.payload().length + 16 + 64 * fresh.size());
+        out.write(0x82); // array(2): [senders, payload]
+        writeMapHeader(out, fresh.size());
+        for (SenderEntry entry : fresh) {
+            out.writeBytes(entry.encoded());
+        }
+        out.writeBytes(compact.payload());
+        return out.toByteArray();
+    }
+
+    private CompactBody transcode(byte[] json) {
+        try {
+            JsonNode body = jsonMapper.readTree(json);
+            Map<Long, SenderEntry> senders = new LinkedHashMap<>();
+            JsonNode compact;
+            if (body instanceof ArrayNode array) {
+                ArrayNode messages = cborMapper.createArrayNode();
+                for (JsonNode element : array) {
+                    messages.add(compactMessage(element, senders));
+                }
+                compact = messages;
+            } else {
+                compact = compactMessage(body, senders);
+            }
+            return new CompactBody(cborMapper.writeValueAsBytes(compact), List.copyOf(senders.values()));
+        } catch (IOException e) {
+            logger.warn("Broadcast body can't be transcoded to CBOR, sending JSON: {}", e.getMessage());
+            return CompactBody.UNSUPPORTED;
+        }
+    }
+
+    private JsonNode compactMessage(JsonNode node, Map<Long, SenderEntry> senders) throws IOException {
+        if (!(node instanceof ObjectNode message)) {
+            return node;
+        }
+        ObjectNode compact = cborMapper.createObjectNode();
+        for (Map.Entry<String, JsonNode> field : message.properties()) {
+            String name = field.getKey();
+            if (field.getValue().isNull() || SENDER_NICKNAME_FIELD.equals(name) || SENDER_PICTURE_FIELD.equals(name)) {
+                continue;
+            }
+            compact.set(SHORT_NAMES.getOrDefault(name, name), field.getValue());
+        }
+        long senderId = message.path(SENDER_ID_FIELD).asLong(0); // A JSON string, like every entity id
+        if (senderId != 0 && !senders.containsKey(senderId)) {
+            senders.put(senderId, senderEntry(senderId, message));
+        }
+        return compact;
+    }
+
+    private SenderEntry senderEntry(long senderId, ObjectNode message) throws IOException {
+        String nickname = message.path(SENDER_NICKNAME_FIELD).textValue();
+        String picture = message.path(SENDER_PICTURE_FIELD).textValue();
+        ObjectNode profile = cborMapper.createObjectNode();
+        profile.put("n", nickname);
+        if (picture != null) {
+            profile.put("p", picture);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(64);
+        encoded.writeBytes(cborMapper.writeValueAsBytes(Long.toString(senderId))); // Same form as the messages' "s"
+        encoded.writeBytes(cborMapper.writeValueAsBytes(profile));
+        return new SenderEntry(senderId, Objects.hash(nickname, picture), encoded.toByteArray());
+    }
+
+    // CBOR major type 5 (map) with a definite length
+    private static void writeMapHeader(ByteArrayOutputStream out, int size) {
+        if (size < 24) {
+            out.write(0xA0 | size);
+        } else if (size < 256) {
+            out.write(0xB8);
+            out.write(size);
+        } else {
+            out.write(0xB9);
+            out.write(size >> 8);
+            out.write(size & 0xFF);
+        }
+    }
+
+    private void resetDictionary(String sessionId) {
+        SessionState state = sessions.get(sessionId);
+        if (state != null) {
+            state.reset();
+        }
+    }
+
+    private int compactCount() {
+        int count = 0;
+        for (SessionState state : sessions.values()) {
+            if (state.compact) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class SessionState {
+        private final boolean binaryCapable;
+        private volatile boolean compact;
+        // senderId -> profile hash of the entry this session was last sent
+        private final Map<Long, Integer> knownSenders = new HashMap<>();
+
+        SessionState(boolean binaryCapable) {
+            this.binaryCapable = binaryCapable;
+        }
+
+        synchronized List<SenderEntry> unseen(List<SenderEntry> senders) {
+            if (senders.isEmpty()) {
+                return List.of();
+            }
+            if (knownSenders.size() > MAX_DICTIONARY_SIZE) {
+                knownSenders.clear();
+            }
+            List<SenderEntry> fresh = new ArrayList<>(1);
+            for (SenderEntry entry : senders) {
+                Integer known = knownSenders.put(entry.senderId(), entry.profileHash());
+                if (known == null || known != entry.profileHash()) {
+                    fresh.add(entry);
+                }
+            }
+            return fresh;
+        }
+
+        synchronized void reset() {
+            knownSenders.clear();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Per-session outbound queue accounting for WebSocket clients (registered in WebSocketConfig).
+ * <p>
+ * Every session is wrapped in a {@link BackpressureSessionDecorator}, so a client on a bad link only grows its own
+ * queue. Once that queue passes {@code high-watermark-bytes}, {@code slow-consumer-policy} decides what goes:
+ * queued MESSAGE frames are dropped or coalesced down to {@code low-watermark-bytes}, or the session is closed.
+ * A single write blocked for longer than {@code send-time-limit-ms} always closes the session.
+ * Queues are written out by a pool of {@code flush-threads}, so a blocked write holds up neither the broker
+ * nor other sessions.
+ * <p>
+ * Metrics: {@code websocket.outbound.queue.bytes} / {@code .frames} (all sessions), {@code websocket.outbound.queue.max.bytes},
+ * {@code websocket.outbound.evictions{policy}} and {@code websocket.outbound.disconnects}; per-session depth is
+ * recorded into the {@code websocket.outbound.session.queue.bytes} summary and listed by the
+ * {@code websocketsessions} actuator endpoint.
+ */
+@Component
+public class OutboundBackpressure implements WebSocketHandlerDecoratorFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundBackpressure.class);
+
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final long sendTimeLimitNanos;
+    private final SlowConsumerPolicy policy;
+    private final ThreadPoolExecutor flushExecutor;
+
+    private final Map<String, BackpressureSessionDecorator> sessions = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> evictionListeners = new CopyOnWriteArrayList<>();
+    private final Map<SlowConsumerPolicy, Counter> evictions = new EnumMap<>(SlowConsumerPolicy.class);
+    private final Counter disconnects;
+    private final DistributionSummary sessionQueueBytes;
+
+    public OutboundBackpressure(@Value("${app.websocket.outbound.high-watermark-bytes:1048576}") long highWatermarkBytes,
+                                @Value("${app.websocket.outbound.low-watermark-bytes:262144}") long lowWatermarkBytes,
+                                @Value("${app.websocket.outbound.send-time-limit-ms:15000}") long sendTimeLimitMs,
+                                @Value("${app.websocket.outbound.slow-consumer-policy:DROP_OLDEST}") SlowConsumerPolicy policy,
+                                @Value("${app.websocket.outbound.flush-threads:0}") int flushThreads,
+                                MeterRegistry meterRegistry) {
+        if (lowWatermarkBytes > highWatermarkBytes) {
+            throw new IllegalArgumentException("app.websocket.outbound.low-watermark-bytes must not exceed high-watermark-bytes");
+        }
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = lowWatermarkBytes;
+        this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMs);
+        this.policy = policy;
+        int poolSize = flushThreads > 0 ? flushThreads : 2 * Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        // Unbounded queue, but each session has at most one flush task in it
+        this.flushExecutor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "websocket-outbound-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (SlowConsumerPolicy p : List.of(SlowConsumerPolicy.DROP_OLDEST, SlowConsumerPolicy.COALESCE)) {
+            evictions.put(p, Counter.builder("websocket.outbound.evictions")
+                    .tag("policy", p.name().toLowerCase())
+                    .description("Queued frames evicted from slow WebSocket sessions")
+                    .register(meterRegistry));
+        }
+        this.disconnects = Counter.builder("websocket.outbound.disconnects")
+                .description("WebSocket sessions closed as slow consumers")
+                .register(meterRegistry);
+        this.sessionQueueBytes = DistributionSummary.builder("websocket.outbound.session.queue.bytes")
+                .description("Outbound queue depth of a session, sampled on every metrics read")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.queue.bytes", this, OutboundBackpressure::totalQueuedBytes)
+                .description("Bytes queued for all WebSocket sessions")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.queue.frames", this, OutboundBackpressure::totalQueuedFrames)
+                .description("Frames queued for all WebSocket sessions")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.queue.max.bytes", this, OutboundBackpressure::maxQueuedBytes)
+                .description("Deepest outbound queue of any WebSocket session")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.sessions", sessions, Map::size)
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.flush.active", flushExecutor, ThreadPoolExecutor::getActiveCount)
+                .description("Threads currently writing to WebSocket sessions")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    void stop() {
+        flushExecutor.shutdownNow();
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                BackpressureSessionDecorator decorated = new BackpressureSessionDecorator(session, OutboundBackpressure.this);
+                sessions.put(session.getId(), decorated);
+                super.afterConnectionEstablished(decorated);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                BackpressureSessionDecorator decorated = sessions.remove(session.getId());
+                super.afterConnectionClosed(decorated != null ? decorated : session, closeStatus);
+            }
+        };
+    }
+
+    long getHighWatermarkBytes() {
+        return highWatermarkBytes;
+    }
+
+    long getLowWatermarkBytes() {
+        return lowWatermarkBytes;
+    }
+
+    long getSendTimeLimitNanos() {
+        return sendTimeLimitNanos;
+    }
+
+    SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    Executor getFlushExecutor() {
+        return flushExecutor;
+    }
+
+    /** Called with the session id whenever frames queued for that session were evicted. */
+    public void addEvictionListener(Consumer<String> listener) {
+        evictionListeners.add(listener);
+    }
+
+    void recordEvictions(String sessionId, SlowConsumerPolicy evictedBy, long frames) {
+        if (frames > 0) {
+            evictions.get(evictedBy).increment(frames);
+            for (Consumer<String> listener : evictionListeners) {
+                listener.accept(sessionId);
+            }
+        }
+    }
+
+    void recordDisconnect(String sessionId, String reason) {
+        disconnects.increment();
+        logger.info("Closing slow WebSocket session {}: {}", sessionId, reason);
+    }
+
+    /** One entry per open session, deepest queue first. */
+    public List<Map<String, Object>> describeSessions() {
+        List<BackpressureSessionDecorator> snapshot = new ArrayList<>(sessions.values());
+        snapshot.sort((a, b) -> Long.compare(b.getQueuedBytes(), a.getQueuedBytes()));
+        List<Map<String, Object>> result = new ArrayList<>(snapshot.size());
+        for (BackpressureSessionDecorator session : snapshot) {
+            Principal principal = session.getPrincipal();
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("id", session.getId());
+            entry.put("user", principal != null ? principal.getName() : null);
+            entry.put("queuedFrames", session.getQueuedFrames());
+            entry.put("queuedBytes", session.getQueuedBytes());
+            entry.put("droppedFrames", session.getDroppedFrames());
+            entry.put("coalescedFrames", session.getCoalescedFrames());
+            entry.put("currentSendMillis", session.getCurrentSendMillis());
+            result.add(entry);
+        }
+        return result;
+    }
+
+    private double totalQueuedBytes() {
+        long total = 0;
+        for (BackpressureSessionDecorator session : sessions.values()) {
+            long bytes = session.getQueuedBytes();
+            sessionQueueBytes.record(bytes);
+            total += bytes;
+        }
+        return total;
+    }
+
+    private double totalQueuedFrames() {
+        long total = 0;
+        for (BackpressureSessionDecorator session : sessions.values()) {
+            total += session.getQueuedFrames();
+        }
+        return total;
+    }
+
+    private double maxQueuedBytes() {
+        long max = 0;
+        for (BackpressureSessionDecorator session : sessions.values()) {
+            max = Math.max(max, session.getQueuedBytes());
+        }
+        return max;
+    }
+}
@@ -0,0 +1,84 @@
+package com.twentythree.messenger.websocket;
+
+import com.twentythree.messenger.security.SenderSnapshot;
+import com.twentythree.messenger.security.UserAuthState;
+import com.twentythree.messenger.security.UserAuthStateCache;
+import com.twentythree.messenger.security.UserPrincipal;
+import jakarta.annotation.PostConstruct;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The authenticated sender of each WebSocket session as a {@link SenderSnapshot} in the session attributes,
+ * captured at CONNECT (JwtChannelInterceptor), so a STOMP SEND needs no user query.
+ * <p>
+ * Sessions are indexed by user: when {@link UserAuthStateCache} sees a user's nickname or avatar change
+ * (on this node or another), the snapshots of all that user's sessions here are replaced.
+ */
+@Component
+public class SenderSnapshotSessions {
+
+    public static final String SESSION_ATTRIBUTE = "senderSnapshot";
+
+    private final UserAuthStateCache userAuthStateCache;
+    // userId -> sessionId -> that session's attributes
+    private final Map<Long, Map<String, Map<String, Object>>> sessionsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Long> userBySession = new ConcurrentHashMap<>();
+
+    public SenderSnapshotSessions(UserAuthStateCache userAuthStateCache) {
+        this.userAuthStateCache = userAuthStateCache;
+    }
+
+    @PostConstruct
+    void listenForChanges() {
+        userAuthStateCache.addChangeListener(this::refresh);
+    }
+
+    /** Stores the principal's snapshot in a session that just authenticated. */
+    public void capture(String sessionId, Map<String, Object> sessionAttributes, UserPrincipal principal) {
+        if (sessionId == null || sessionAttributes == null) {
+            return;
+        }
+        UserAuthState state = userAuthStateCache.get(principal.getId());
+        if (state == null) {
+            return; // Deleted meanwhile; senders fall back to loading the user
+        }
+        sessionsByUser.compute(principal.getId(), (id, sessions) -> {
+            Map<String, Map<String, Object>> result = sessions != null ? sessions : new ConcurrentHashMap<>();
+            result.put(sessionId, sessionAttributes);
+            return result;
+        });
+        userBySession.put(sessionId, principal.getId());
+        sessionAttributes.put(SESSION_ATTRIBUTE, SenderSnapshot.of(principal.getId(), state));
+    }
+
+    /** The session's sender, or null if none was captured at CONNECT. */
+    public SenderSnapshot get(SimpMessageHeaderAccessor accessor) {
+        Map<String, Object> attributes = accessor.getSessionAttributes();
+        return attributes != null ? (SenderSnapshot) attributes.get(SESSION_ATTRIBUTE) : null;
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Long userId = userBySession.remove(event.getSessionId());
+        if (userId != null) {
+            sessionsByUser.computeIfPresent(userId, (id, sessions) -> {
+                sessions.remove(event.getSessionId());
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+    }
+
+    private void refresh(Long userId, UserAuthState state) {
+        Map<String, Map<String, Object>> sessions = sessionsByUser.get(userId);
+        if (sessions != null) {
+            SenderSnapshot snapshot = SenderSnapshot.of(userId, state);
+            sessions.values().forEach(attributes -> attributes.put(SESSION_ATTRIBUTE, snapshot));
+        }
+    }
+}
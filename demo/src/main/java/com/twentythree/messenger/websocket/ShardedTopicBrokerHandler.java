@@ -0,0 +1,230 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.broker.AbstractBrokerMessageHandler;
+import org.springframework.messaging.simp.broker.OrderedMessageChannelDecorator;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-process broker for {@code /topic} destinations, replacing the simple broker there
+ * (which keeps {@code /queue} and the CONNECT/DISCONNECT handshake, see WebSocketConfig).
+ * <p>
+ * Destinations are partitioned over N single-threaded lanes; {@code /topic/chat/{chatId}[/...]} is keyed by chatId,
+ * so everything for one chat runs on one lane, in the order it was published. Each lane owns its part of the
+ * subscription registry outright (plain maps, touched only by the lane thread), so there is no global lock and
+ * chats spread across cores. Only the session -> subscriptions index, needed for UNSUBSCRIBE and DISCONNECT,
+ * is a shared concurrent map. Delivery to each session keeps publish order (ordered outbound channel decorator).
+ * <p>
+ * Exact destination matching only: pattern subscriptions and selector headers are not supported.
+ */
+@Component
+public class ShardedTopicBrokerHandler extends AbstractBrokerMessageHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedTopicBrokerHandler.class);
+
+    public static final String TOPIC_PREFIX = "/topic";
+    private static final String CHAT_TOPIC_PREFIX = "/topic/chat/";
+
+    private final Lane[] lanes;
+
+    private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
+
+    public ShardedTopicBrokerHandler(@Qualifier("clientInboundChannel") SubscribableChannel clientInboundChannel,
+                                     @Qualifier("clientOutboundChannel") MessageChannel clientOutboundChannel,
+                                     @Qualifier("brokerChannel") SubscribableChannel brokerChannel,
+                                     @Value("${app.websocket.broker.lanes:0}") int laneCount,
+                                     MeterRegistry meterRegistry) {
+        super(clientInboundChannel, clientOutboundChannel, brokerChannel, List.of(TOPIC_PREFIX));
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i);
+            Lane lane = lanes[i];
+            Gauge.builder("chat.broker.lane.queue", lane, Lane::queueSize)
+                    .tag("lane", Integer.toString(i))
+                    .description("Broker tasks waiting on the lane")
+                    .register(meterRegistry);
+        }
+        setPreservePublishOrder(true);
+    }
+
+    @Override
+    protected void startInternal() {
+        // Lets the ordered decorator hold back a session's next frame until the previous one was handled
+        OrderedMessageChannelDecorator.configureInterceptor(getClientOutboundChannel(), true);
+        publishBrokerAvailableEvent();
+        log.info("Sharded /topic broker started with {} lanes", lanes.length);
+    }
+
+    @Override
+    protected void stopInternal() {
+        publishBrokerUnavailableEvent();
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+    }
+
+    @Override
+    protected void handleMessageInternal(Message<?> message) {
+        SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+
+        if (SimpMessageType.MESSAGE.equals(messageType)) {
+            if (destination != null && checkDestinationPrefix(destination)) {
+                laneFor(destination).execute(lane -> lane.publish(destination, message));
+            }
+        } else if (SimpMessageType.SUBSCRIBE.equals(messageType)) {
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+            if (destination == null || sessionId == null || subscriptionId == null || !checkDestinationPrefix(destination)) {
+                return;
+            }
+            sessions.computeIfAbsent(sessionId, id -> new SessionState(getClientOutboundChannelForSession(id)))
+                    .subscriptions.put(subscriptionId, destination);
+            laneFor(destination).execute(lane -> lane.subscribe(destination, sessionId, subscriptionId));
+        } else if (SimpMessageType.UNSUBSCRIBE.equals(messageType)) {
+            String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(message.getHeaders());
+            SessionState session = sessionId != null ? sessions.get(sessionId) : null;
+            String subscribed = session != null && subscriptionId != null ? session.subscriptions.remove(subscriptionId) : null;
+            if (subscribed != null) {
+                laneFor(subscribed).execute(lane -> lane.unsubscribe(subscribed, sessionId, subscriptionId));
+            }
+        } else if (SimpMessageType.DISCONNECT.equals(messageType)) {
+            // The simple broker answers DISCONNECT (and CONNECT, heartbeats); we only forget the session
+            SessionState session = sessionId != null ? sessions.remove(sessionId) : null;
+            if (session != null) {
+                session.subscriptions.forEach((subscriptionId, subscribed) ->
+                        laneFor(subscribed).execute(lane -> lane.unsubscribe(subscribed, sessionId, subscriptionId)));
+            }
+        }
+    }
+
+    private Lane laneFor(String destination) {
+        return lanes[Math.floorMod(shardKey(destination), lanes.length)];
+    }
+
+    // chatId for chat destinations, so a chat's messages and presence share one lane; a hash otherwise
+    static long shardKey(String destination) {
+        if (destination.startsWith(CHAT_TOPIC_PREFIX)) {
+            long chatId = 0;
+            int digits = 0;
+            for (int i = CHAT_TOPIC_PREFIX.length(); i < destination.length(); i++, digits++) {
+                char c = destination.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                chatId = chatId * 10 + (c - '0');
+            }
+            if (digits > 0) {
+                return Long.hashCode(chatId * 0x9E3779B97F4A7C15L); // Spread sequential and time-ordered ids alike
+            }
+        }
+        return destination.hashCode();
+    }
+
+    // Outbound channel (ordered per session) and subscriptionId -> destination, for UNSUBSCRIBE and DISCONNECT
+    private record SessionState(MessageChannel outbound, Map<String, String> subscriptions) {
+        SessionState(MessageChannel outbound) {
+            this(outbound, new ConcurrentHashMap<>());
+        }
+    }
+
+    private final class Lane {
+
+        private final ThreadPoolExecutor executor;
+
+        // Confined to this lane's thread: destination -> (sessionId -> subscriptionIds)
+        private final Map<String, Map<String, List<String>>> subscribers = new HashMap<>();
+
+        Lane(int index) {
+            this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "topic-broker-lane-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        int queueSize() {
+            return executor.getQueue().size();
+        }
+
+        void execute(Consumer<Lane> task) {
+            executor.execute(() -> {
+                try {
+                    task.accept(this);
+                } catch (RuntimeException e) {
+                    log.error("Topic broker lane task failed", e);
+                }
+            });
+        }
+
+        void subscribe(String destination, String sessionId, String subscriptionId) {
+            List<String> ids = subscribers.computeIfAbsent(destination, d -> new HashMap<>())
+                    .computeIfAbsent(sessionId, s -> new ArrayList<>(1));
+            if (!ids.contains(subscriptionId)) {
+                ids.add(subscriptionId);
+            }
+        }
+
+        void unsubscribe(String destination, String sessionId, String subscriptionId) {
+            Map<String, List<String>> sessions = subscribers.get(destination);
+            if (sessions == null) {
+                return;
+            }
+            List<String> ids = sessions.get(sessionId);
+            if (ids != null && ids.remove(subscriptionId) && ids.isEmpty()) {
+                sessions.remove(sessionId);
+                if (sessions.isEmpty()) {
+                    subscribers.remove(destination);
+                }
+            }
+        }
+
+        void publish(String destination, Message<?> message) {
+            Map<String, List<String>> destinationSessions = subscribers.get(destination);
+            if (destinationSessions == null) {
+                return;
+            }
+            Object payload = message.getPayload();
+            destinationSessions.forEach((sessionId, subscriptionIds) -> {
+                SessionState session = sessions.get(sessionId);
+                if (session == null) {
+                    return; // Disconnected, lane cleanup still queued
+                }
+                for (String subscriptionId : subscriptionIds) {
+                    SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+                    accessor.setSessionId(sessionId);
+                    accessor.setSubscriptionId(subscriptionId);
+                    accessor.copyHeadersIfAbsent(message.getHeaders());
+                    accessor.setLeaveMutable(true);
+                    try {
+                        session.outbound().send(MessageBuilder.createMessage(payload, accessor.getMessageHeaders()));
+                    } catch (RuntimeException e) {
+                        log.error("Failed to send {} to session {}: {}", destination, sessionId, e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.messaging.StompSubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+/**
+ * Swaps the STOMP encoder of the endpoints registered in WebSocketConfig for {@link SharedPayloadStompEncoder}.
+ * Runs after all singletons are created and before the web server starts accepting connections.
+ */
+@Component
+public class SharedPayloadEncoderInstaller implements SmartInitializingSingleton {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedPayloadEncoderInstaller.class);
+
+    private final WebSocketHandler subProtocolWebSocketHandler;
+    private final MeterRegistry meterRegistry;
+    private final CompactPayloadSessions compactPayloadSessions;
+
+    public SharedPayloadEncoderInstaller(@Qualifier("subProtocolWebSocketHandler") WebSocketHandler subProtocolWebSocketHandler,
+                                         MeterRegistry meterRegistry, CompactPayloadSessions compactPayloadSessions) {
+        this.subProtocolWebSocketHandler = subProtocolWebSocketHandler;
+        this.meterRegistry = meterRegistry;
+        this.compactPayloadSessions = compactPayloadSessions;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!(subProtocolWebSocketHandler instanceof SubProtocolWebSocketHandler handler)) {
+            logger.warn("Unexpected WebSocket handler {}, shared-payload STOMP encoding not installed", subProtocolWebSocketHandler);
+            return;
+        }
+        SharedPayloadStompEncoder encoder = new SharedPayloadStompEncoder(meterRegistry, compactPayloadSessions);
+        for (SubProtocolHandler protocolHandler : handler.getProtocolHandlers()) {
+            if (protocolHandler instanceof StompSubProtocolHandler stompHandler) {
+                stompHandler.setEncoder(encoder);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StompEncoder that builds MESSAGE frames for {@link SharedStompPayload} broadcasts from the pre-encoded
+ * header block and body: per session only the subscription and message-id lines are encoded,
+ * and the frame is assembled with one allocation. Sessions in compact mode get the CBOR body and header block
+ * from {@link CompactPayloadSessions}. Everything else goes through the regular encoder.
+ */
+public class SharedPayloadStompEncoder extends StompEncoder {
+
+    private static final byte[] MESSAGE_COMMAND = "MESSAGE\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Counter sentBytes;
+    private final Counter sentFrames;
+    private final CompactPayloadSessions compactPayloadSessions;
+
+    public SharedPayloadStompEncoder(MeterRegistry meterRegistry, CompactPayloadSessions compactPayloadSessions) {
+        this.compactPayloadSessions = compactPayloadSessions;
+        this.sentBytes = Counter.builder(ChatTopicPublisher.BYTES_METRIC)
+                .tag("stage", "sent")
+                .description("STOMP frame bytes handed to subscriber sessions for chat broadcasts")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.sentFrames = Counter.builder(ChatTopicPublisher.FRAMES_METRIC)
+                .tag("stage", "sent")
+                .description("STOMP frames handed to subscriber sessions for chat broadcasts")
+                .register(meterRegistry);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Map<String, Object> headers, byte[] payload) {
+        if (!(headers.get(SharedStompPayload.HEADER) instanceof SharedStompPayload shared)
+                || shared.getBody() != payload
+                || SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE) {
+            return super.encode(headers, payload);
+        }
+        Map<String, List<String>> nativeHeaders =
+                (Map<String, List<String>>) headers.get(NativeMessageHeaderAccessor.NATIVE_HEADERS);
+        if (nativeHeaders == null) {
+            return super.encode(headers, payload);
+        }
+        byte[] compactBody = compactPayloadSessions.bodyFor(SimpMessageHeaderAccessor.getSessionId(headers), shared);
+        byte[] common;
+        if (compactBody != null) {
+            common = shared.compactHeaders(nativeHeaders, CompactPayloadSessions.CBOR_CONTENT_TYPE);
+            payload = compactBody;
+        } else {
+            common = shared.commonHeaders(nativeHeaders);
+        }
+        if (common == null) {
+            return super.encode(headers, shared.getBody());
+        }
+
+        ByteArrayOutputStream perSession = new ByteArrayOutputStream(64);
+        for (String key : SharedStompPayload.PER_SESSION_HEADERS) {
+            List<String> values = nativeHeaders.get(key);
+            if (values != null && !values.isEmpty()) {
+                SharedStompPayload.writeHeader(perSession, key, values.get(0));
+            }
+        }
+        if (compactBody != null) {
+            SharedStompPayload.writeHeader(perSession, "content-length", Integer.toString(compactBody.length));
+        }
+        byte[] sessionHeaders = perSession.toByteArray();
+
+        byte[] frame = new byte[MESSAGE_COMMAND.length + sessionHeaders.length + common.length + 1 + payload.length + 1];
+        int pos = 0;
+        System.arraycopy(MESSAGE_COMMAND, 0, frame, pos, MESSAGE_COMMAND.length);
+        pos += MESSAGE_COMMAND.length;
+        System.arraycopy(sessionHeaders, 0, frame, pos, sessionHeaders.length);
+        pos += sessionHeaders.length;
+        System.arraycopy(common, 0, frame, pos, common.length);
+        pos += common.length;
+        frame[pos++] = '\n';
+        System.arraycopy(payload, 0, frame, pos, payload.length);
+        // Last byte stays 0: the frame terminator
+
+        sentBytes.increment(frame.length);
+        sentFrames.increment();
+        return frame;
+    }
+}
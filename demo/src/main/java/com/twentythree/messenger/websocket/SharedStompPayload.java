@@ -0,0 +1,134 @@
+package com.twentythree.messenger.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A broadcast body serialized once, carried in a message header alongside the payload itself.
+ * The simple broker copies headers and payload reference into every subscriber's copy, so
+ * {@link SharedPayloadStompEncoder} can build each session's frame from the same bytes.
+ * <p>
+ * Of the STOMP headers only {@code subscription} and {@code message-id} differ between subscribers;
+ * everything else is encoded once, on the first frame, and reused. Sessions that negotiated the compact encoding
+ * get the body transcoded to CBOR once per broadcast ({@link CompactPayloadSessions}) and a header block of their own.
+ */
+public final class SharedStompPayload {
+
+    public static final String HEADER = "twentythree.sharedPayload";
+
+    static final Set<String> PER_SESSION_HEADERS = Set.of("subscription", "message-id");
+
+    private final byte[] body;
+    private volatile byte[] commonHeaders;
+    private volatile int commonHeaderCount = -1;
+    private volatile byte[] compactHeaders;
+    private volatile int compactHeaderCount = -1;
+    private volatile CompactPayloadSessions.CompactBody compactBody;
+
+    public SharedStompPayload(byte[] body) {
+        this.body = body;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Encoded "key:value\n" lines of all headers except the per-session ones, plus content-length.
+     * Returns null if {@code nativeHeaders} doesn't have the shape of the first frame (then encode normally).
+     */
+    byte[] commonHeaders(Map<String, List<String>> nativeHeaders) {
+        int count = countCommon(nativeHeaders);
+        byte[] encoded = commonHeaders;
+        if (encoded == null) {
+            ByteArrayOutputStream out = encodeCommon(nativeHeaders, null);
+            writeHeader(out, "content-length", Integer.toString(body.length));
+            // Benign race: concurrent first frames build identical blocks
+            encoded = out.toByteArray();
+            commonHeaderCount = count;
+            commonHeaders = encoded;
+        }
+        return count == commonHeaderCount ? encoded : null;
+    }
+
+    /**
+     * Same as {@link #commonHeaders} for compact sessions: content-type is {@code contentType}, and
+     * content-length is left out because the body differs per session.
+     */
+    byte[] compactHeaders(Map<String, List<String>> nativeHeaders, String contentType) {
+        int count = countCommon(nativeHeaders);
+        byte[] encoded = compactHeaders;
+        if (encoded == null) {
+            encoded = encodeCommon(nativeHeaders, contentType).toByteArray();
+            compactHeaderCount = count;
+            compactHeaders = encoded;
+        }
+        return count == compactHeaderCount ? encoded : null;
+    }
+
+    CompactPayloadSessions.CompactBody getCompactBody() {
+        return compactBody;
+    }
+
+    void setCompactBody(CompactPayloadSessions.CompactBody compactBody) {
+        this.compactBody = compactBody;
+    }
+
+    // contentType != null replaces the content-type header
+    private static ByteArrayOutputStream encodeCommon(Map<String, List<String>> nativeHeaders, String contentType) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        for (Map.Entry<String, List<String>> header : nativeHeaders.entrySet()) {
+            String key = header.getKey();
+            if (PER_SESSION_HEADERS.contains(key) || "content-length".equals(key)
+                    || (contentType != null && "content-type".equals(key))) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                writeHeader(out, key, value);
+            }
+        }
+        if (contentType != null) {
+            writeHeader(out, "content-type", contentType);
+        }
+        return out;
+    }
+
+    private static int countCommon(Map<String, List<String>> nativeHeaders) {
+        int count = 0;
+        for (String key : nativeHeaders.keySet()) {
+            if (!PER_SESSION_HEADERS.contains(key) && !"content-length".equals(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static void writeHeader(ByteArrayOutputStream out, String key, String value) {
+        out.writeBytes(escape(key).getBytes(StandardCharsets.UTF_8));
+        out.write(':');
+        out.writeBytes(escape(value).getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    // STOMP 1.2 header escaping, as StompEncoder does for every frame but CONNECT/CONNECTED
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf(':') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case ':' -> sb.append("\\c");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
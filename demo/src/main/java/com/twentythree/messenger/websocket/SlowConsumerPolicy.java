@@ -0,0 +1,12 @@
+package com.twentythree.messenger.websocket;
+
+/**
+ * What to do with a session whose outbound queue passes the high watermark.
+ * Only MESSAGE frames are ever evicted; CONNECTED, RECEIPT, ERROR and heartbeats always go out.
+ * Clients that lost chat messages this way catch up through delta sync.
+ */
+public enum SlowConsumerPolicy {
+    DROP_OLDEST, // evict the oldest queued messages down to the low watermark
+    COALESCE,    // keep only the newest queued message per destination, then drop oldest if still above the low watermark
+    DISCONNECT   // close the session; the client reconnects and resyncs
+}
@@ -0,0 +1,28 @@
+package com.twentythree.messenger.websocket;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code /actuator/websocketsessions}: outbound queue depth and evictions of every open WebSocket session.
+ * Kept out of the meter registry on purpose, a tag per session id would blow up metric cardinality.
+ */
+@Component
+@Endpoint(id = "websocketsessions")
+public class WebSocketSessionsEndpoint {
+
+    private final OutboundBackpressure outboundBackpressure;
+
+    public WebSocketSessionsEndpoint(OutboundBackpressure outboundBackpressure) {
+        this.outboundBackpressure = outboundBackpressure;
+    }
+
+    @ReadOperation
+    public List<Map<String, Object>> sessions() {
+        return outboundBackpressure.describeSessions();
+    }
+}
@@ -0,0 +1,119 @@
+package com.twentythree.messenger.cluster;
+
+import com.twentythree.messenger.exception.LeaseLostException;
+import com.twentythree.messenger.repository.JobLeaseRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Several "nodes" (JobLeases with their own owner id) sharing the test database's job_leases table.
+ * A node that stops renewing stands for one that died.
+ */
+@SpringBootTest
+class JobLeasesTest {
+
+    @Autowired
+    private JobLeaseRepository jobLeaseRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final List<JobLeases> nodes = new ArrayList<>();
+    private final String job = "test-job-" + System.nanoTime();
+
+    @AfterEach
+    void stopNodes() {
+        nodes.forEach(JobLeases::stop);
+    }
+
+    @Test
+    void onlyOneNodeRunsTheJob() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        JobLeases a = node("a", 60000, registry);
+        JobLeases b = node("b", 60000, new SimpleMeterRegistry());
+
+        assertTrue(a.runIfLeader(job, lease -> { }));
+        assertFalse(b.runIfLeader(job, lease -> fail()));
+        assertTrue(a.runIfLeader(job, lease -> { }));
+        assertTrue(a.isLeader(job));
+        assertFalse(b.isLeader(job));
+        assertEquals(1, registry.counter("jobs.lease.attempts", "job", job, "result", "acquired").count());
+        assertEquals(1, registry.get("jobs.lease.held").tag("job", job).gauge().value());
+    }
+
+    @Test
+    void failsOverOnceTheLeaseLapses() throws Exception {
+        JobLeases a = node("a", 1000, new SimpleMeterRegistry()); // Never renews: dies right after taking the lease
+        JobLeases b = node("b", 1000, new SimpleMeterRegistry());
+        AtomicLong firstToken = new AtomicLong();
+        AtomicLong secondToken = new AtomicLong();
+
+        assertTrue(a.runIfLeader(job, lease -> firstToken.set(lease.fencingToken())));
+        assertFalse(b.runIfLeader(job, lease -> fail()));
+
+        Thread.sleep(1400); // Lease plus b's retry interval
+        assertTrue(b.runIfLeader(job, lease -> secondToken.set(lease.fencingToken())));
+        assertTrue(secondToken.get() > firstToken.get());
+    }
+
+    @Test
+    void renewedLeaseStaysAndIsReleasedOnShutdown() throws Exception {
+        JobLeases a = node("a", 600, new SimpleMeterRegistry());
+        a.start();
+        assertTrue(a.runIfLeader(job, lease -> { }));
+
+        Thread.sleep(1500); // Several lease lengths, kept by renewals
+        JobLeases b = node("b", 600, new SimpleMeterRegistry());
+        assertFalse(b.runIfLeader(job, lease -> fail()));
+
+        a.stop();
+        JobLeases c = node("c", 600, new SimpleMeterRegistry());
+        assertTrue(c.runIfLeader(job, lease -> { }));
+    }
+
+    @Test
+    void staleLeaderIsFenced() throws Exception {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        JobLeases a = node("a", 1000, registry);
+        JobLeases b = node("b", 1000, new SimpleMeterRegistry());
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        List<JobLeases.Lease> leases = new ArrayList<>();
+
+        assertTrue(a.runIfLeader(job, leases::add));
+        transactionTemplate.executeWithoutResult(status -> a.checkFence(leases.get(0))); // Still current
+
+        Thread.sleep(1400); // a stalls past its lease and b takes over
+        assertTrue(b.runIfLeader(job, lease -> { }));
+
+        assertThrows(LeaseLostException.class,
+                () -> transactionTemplate.executeWithoutResult(status -> a.checkFence(leases.get(0))));
+        assertEquals(1, registry.counter("jobs.lease.fenced", "job", job).count());
+        // Through runIfLeader the lost lease just means the work didn't happen
+        assertFalse(a.runIfLeader(job, lease -> transactionTemplate.executeWithoutResult(status -> a.checkFence(leases.get(0)))));
+    }
+
+    private JobLeases node(String name, long leaseMs, MeterRegistry registry) {
+        JobLeases node = new JobLeases(jobLeaseRepository, transactionManager, registry, name + "-" + System.nanoTime(), leaseMs);
+        nodes.add(node);
+        return node;
+    }
+
+    private static void fail() {
+        throw new AssertionError("Ran on a node without the lease");
+    }
+}
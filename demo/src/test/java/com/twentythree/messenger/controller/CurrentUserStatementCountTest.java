@@ -0,0 +1,161 @@
+package com.twentythree.messenger.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.entity.Interest;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.repository.InterestRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * JDBC statements per HTTP endpoint, with the requesting user's auth state already cached.
+ * An endpoint that only needs the current user's id must not load the user; others load it once.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class CurrentUserStatementCountTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private InterestRepository interestRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    private record Counts(long statements, long userLoads) {
+    }
+
+    @BeforeEach
+    void enableStatistics() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    @Test
+    void userEndpoints() throws Exception {
+        String token = registerAndLogin();
+
+        // Only the service loads the user: the user row, its created/participating chat and its interests
+        assertCounts(new Counts(4, 1), get("/api/users/me"), token);
+        assertCounts(new Counts(4, 1), put("/api/users/me").contentType(MediaType.APPLICATION_JSON).content("{}"), token);
+        assertCounts(new Counts(5, 1), multipart("/api/users/me/avatar")
+                .file(new MockMultipartFile("file", "a.png", "image/png", new byte[]{1, 2, 3})), token);
+    }
+
+    @Test
+    void chatEndpoints() throws Exception {
+        Interest interest = newInterest();
+        String creator = registerAndLogin();
+        String joiner = registerAndLogin();
+
+        // Creating loads the creator once (the DTO shows the nickname); the rest get an unloaded reference.
+        // Users loaded there are the chat's creator and participants, mapped into the DTO.
+        // Create and join also read the user's interest ids (one narrow query) for the match index.
+        Long chatId = idOf(assertCounts(new Counts(9, 1), post("/api/chats").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"primaryInterestId\":" + interest.getId() + "}"), creator));
+        // Join loads the joiner too: their (not yet inserted) participant row is mapped into the DTO
+        MvcResult join = assertCounts(new Counts(11, 2), post("/api/chats/join/" + interest.getId()), joiner);
+        assertTrue(participantIds(join).contains(userIdOf(joiner)), "joiner missing from the join response");
+        assertCounts(new Counts(9, 2), get("/api/chats/current"), joiner);
+        assertCounts(new Counts(6, 2), get("/api/chats/" + chatId), joiner);
+        assertCounts(new Counts(3, 0), post("/api/chats/" + chatId + "/leave"), joiner);
+    }
+
+    @Test
+    void messageEndpoints() throws Exception {
+        Interest interest = newInterest();
+        String token = registerAndLogin();
+        Long chatId = idOf(perform(post("/api/chats").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"primaryInterestId\":" + interest.getId() + "}"), token));
+
+        // Only the upload loads the sender (for the DTO); history reads get an unloaded reference.
+        // The user the others load is the chat's creator, for the participant check; "since" is served from the recent-message cache.
+        Long messageId = idOf(assertCounts(new Counts(5, 1), multipart("/api/chats/" + chatId + "/messages/image")
+                .file(new MockMultipartFile("file", "a.png", "image/png", new byte[]{1, 2, 3})), token));
+        assertCounts(new Counts(4, 1), get("/api/chats/" + chatId + "/messages"), token);
+        assertCounts(new Counts(0, 0), get("/api/chats/" + chatId + "/messages/since").param("after", messageId.toString()), token);
+        assertCounts(new Counts(4, 1), get("/api/chats/" + chatId + "/messages/export"), token);
+    }
+
+    private MvcResult assertCounts(Counts expected, MockHttpServletRequestBuilder request, String token) throws Exception {
+        statistics.clear();
+        MvcResult result = perform(request, token);
+        Counts actual = new Counts(statistics.getPrepareStatementCount(),
+                statistics.getEntityStatistics(User.class.getName()).getLoadCount());
+        assertEquals(expected, actual, () -> request.buildRequest(new MockServletContext()).getRequestURI());
+        return result;
+    }
+
+    private MvcResult perform(MockHttpServletRequestBuilder request, String token) throws Exception {
+        MvcResult result = mockMvc.perform(request.header("Authorization", "Bearer " + token)).andReturn();
+        assertTrue(result.getResponse().getStatus() < 300, () -> "HTTP " + result.getResponse().getStatus());
+        return result;
+    }
+
+    private String registerAndLogin() throws Exception {
+        String body = "{\"nickname\":\"u" + System.nanoTime() % 1_000_000_000L + "\",\"password\":\"secret123\"}";
+        // Both complete asynchronously on the password hashing pool
+        mockMvc.perform(asyncDispatch(mockMvc.perform(post("/api/auth/register").contentType(MediaType.APPLICATION_JSON).content(body)).andReturn()));
+        MvcResult login = mockMvc.perform(asyncDispatch(mockMvc.perform(post("/api/auth/login")
+                .contentType(MediaType.APPLICATION_JSON).content(body)).andReturn())).andReturn();
+        String token = objectMapper.readTree(login.getResponse().getContentAsString()).get("accessToken").asText();
+        perform(get("/api/chats/current"), token); // Caches the user's auth state, which later requests don't re-read
+        return token;
+    }
+
+    private List<Long> participantIds(MvcResult result) throws Exception {
+        // The join answers through a DeferredResult (it may wait for a chat): its body is written on the async dispatch
+        MvcResult completed = result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)).andReturn() : result;
+        List<Long> ids = new ArrayList<>();
+        objectMapper.readTree(completed.getResponse().getContentAsString()).path("participants")
+                .forEach(participant -> ids.add(participant.path("userId").asLong()));
+        return ids;
+    }
+
+    private Long userIdOf(String token) throws Exception {
+        return idOf(perform(get("/api/users/me"), token));
+    }
+
+    private Interest newInterest() {
+        Interest interest = new Interest();
+        interest.setName("interest" + System.nanoTime());
+        return interestRepository.save(interest);
+    }
+
+    private Long idOf(MvcResult result) throws Exception {
+        // Ids come as JSON strings (time-ordered ids exceed 2^53)
+        return objectMapper.readValue(result.getResponse().getContentAsString(), Map.class).get("id") instanceof String id
+                ? Long.valueOf(id) : null;
+    }
+}
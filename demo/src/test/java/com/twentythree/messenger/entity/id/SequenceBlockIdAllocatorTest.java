@@ -0,0 +1,92 @@
+package com.twentythree.messenger.entity.id;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The block hand-out with a stub in place of the PostgreSQL reserve query (the test profile runs H2 with time-ordered ids).
+ */
+class SequenceBlockIdAllocatorTest {
+
+    private final List<Integer> reservations = new ArrayList<>();
+    private long sequence = 100; // Rows already in the table keep their numbering
+
+    // Stands in for the sequence: hands out the next count values
+    private final IdBlockSource blockSource = (sql, count) -> {
+        assertTrue(sql.contains("pg_get_serial_sequence('messages', 'message_id')"));
+        reservations.add(count);
+        List<Long> block = LongStream.range(sequence + 1, sequence + 1 + count).boxed().toList();
+        sequence += count;
+        return block;
+    };
+
+    @Test
+    void servesABlockPerRoundTripAndRefillsWhenItRunsOut() {
+        SequenceBlockIdAllocator allocator = new SequenceBlockIdAllocator("messages", "message_id", 50);
+
+        long last = 100;
+        for (int i = 0; i < 120; i++) {
+            long id = allocator.nextId(blockSource);
+            assertEquals(last + 1, id);
+            last = id;
+        }
+        assertEquals(List.of(50, 50, 50), reservations); // 120 ids, three blocks
+    }
+
+    @Test
+    void allocatorsOnOneSequenceNeverOverlap() {
+        // E.g. two nodes, each holding its own block
+        SequenceBlockIdAllocator a = new SequenceBlockIdAllocator("messages", "message_id", 10);
+        SequenceBlockIdAllocator b = new SequenceBlockIdAllocator("messages", "message_id", 10);
+
+        assertEquals(101, a.nextId(blockSource));
+        assertEquals(111, b.nextId(blockSource));
+        assertEquals(102, a.nextId(blockSource));
+        for (int i = 0; i < 9; i++) {
+            b.nextId(blockSource);
+        }
+        assertEquals(121, b.nextId(blockSource)); // Refilled past a's block
+    }
+
+    @Test
+    void concurrentCallersShareBlocksWithoutDuplicatesOrWaste() throws Exception {
+        SequenceBlockIdAllocator allocator = new SequenceBlockIdAllocator("messages", "message_id", 50);
+        AtomicLong concurrentSequence = new AtomicLong(100);
+        AtomicInteger roundTrips = new AtomicInteger();
+        IdBlockSource slowSource = (sql, count) -> {
+            roundTrips.incrementAndGet();
+            Thread.yield(); // Let other callers arrive mid-refill
+            long first = concurrentSequence.getAndAdd(count) + 1;
+            return LongStream.range(first, first + count).boxed().toList();
+        };
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    ids.add(allocator.nextId(slowSource));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, ids.size());
+        assertEquals(160, roundTrips.get()); // A refill only when the block is used up, never two at once
+        assertEquals(LongStream.rangeClosed(101, 8100).boxed().collect(Collectors.toSet()), ids);
+    }
+}
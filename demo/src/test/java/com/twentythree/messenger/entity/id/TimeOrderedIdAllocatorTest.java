@@ -0,0 +1,90 @@
+package com.twentythree.messenger.entity.id;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeOrderedIdAllocatorTest {
+
+    private static final long NOW = Instant.parse("2026-03-01T12:00:00Z").toEpochMilli();
+
+    private final AtomicLong clock = new AtomicLong(NOW);
+    private final TimeOrderedIdAllocator allocator = new TimeOrderedIdAllocator(7, clock::get);
+
+    @Test
+    void idsIncreaseAndCarryTimestampAndNode() {
+        long first = allocator.nextId();
+        long second = allocator.nextId();
+        clock.addAndGet(5);
+        long third = allocator.nextId();
+
+        assertTrue(first < second && second < third);
+        assertEquals(NOW, TimeOrderedIdAllocator.timestampMillis(first));
+        assertEquals(NOW + 5, TimeOrderedIdAllocator.timestampMillis(third));
+        assertEquals(7, (third >>> 12) & 1023);
+    }
+
+    @Test
+    void clockGoingBackwardsKeepsCountingOnTheLastTimestamp() {
+        long before = allocator.nextId();
+        clock.addAndGet(-2000); // NTP step back
+        long after = allocator.nextId();
+
+        assertTrue(after > before);
+        assertEquals(NOW, TimeOrderedIdAllocator.timestampMillis(after));
+
+        clock.set(NOW + 1); // Clock caught up again
+        assertEquals(NOW + 1, TimeOrderedIdAllocator.timestampMillis(allocator.nextId()));
+    }
+
+    @Test
+    void counterOverflowBorrowsTheNextMillisecondInsteadOfRepeating() {
+        long last = 0;
+        for (int i = 0; i < 5000; i++) { // More than the 4096 ids of one millisecond
+            long id = allocator.nextId();
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals(NOW + 1, TimeOrderedIdAllocator.timestampMillis(last));
+    }
+
+    @Test
+    void concurrentCallersNeverGetTheSameId() throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    ids.add(allocator.nextId());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, ids.size());
+    }
+
+    @Test
+    void rejectsNodeIdsOutsideTenBits() {
+        assertThrows(IllegalArgumentException.class, () -> new TimeOrderedIdAllocator(1024, clock::get));
+        assertThrows(IllegalArgumentException.class, () -> new TimeOrderedIdAllocator(-1, clock::get));
+    }
+
+    @Test
+    void sharedInstancePerNode() {
+        assertSame(TimeOrderedIdAllocator.forNode(3), TimeOrderedIdAllocator.forNode(3));
+    }
+}
@@ -0,0 +1,140 @@
+package com.twentythree.messenger.matchmaking;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.entity.Chat;
+import com.twentythree.messenger.entity.Interest;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.matchmaking.ChatMatchIndex.PlacementPolicy;
+import com.twentythree.messenger.repository.ChatParticipantRepository;
+import com.twentythree.messenger.repository.ChatRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The index on its own, outside any transaction (so every ...AfterCommit change applies at once).
+ */
+class ChatMatchIndexTest {
+
+    private static final Long INTEREST = 7L;
+
+    private long nextUserId = 100;
+
+    @Test
+    void leastPopulatedSpreadsJoinsEvenly() {
+        ChatMatchIndex index = index(10, PlacementPolicy.LEAST_POPULATED, 0);
+        open(index, 1L);
+        open(index, 2L);
+
+        List<Long> joined = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            joined.add(join(index));
+        }
+        assertEquals(3, joined.stream().filter(chatId -> chatId == 1L).count());
+        assertEquals(3, joined.stream().filter(chatId -> chatId == 2L).count());
+    }
+
+    @Test
+    void fillToTargetFillsOneChatBeforeTheNext() {
+        ChatMatchIndex index = index(10, PlacementPolicy.FILL_TO_TARGET, 3);
+        open(index, 1L);
+        open(index, 2L);
+
+        assertEquals(1L, join(index));
+        assertEquals(1L, join(index)); // Chat 1 now at the target of 3
+        assertEquals(2L, join(index));
+        assertEquals(2L, join(index));
+        join(index); // Both at the target: least populated from here on
+        assertEquals(3, join(index) + join(index)); // One each
+    }
+
+    @Test
+    void fullChatsGiveNoSeat() {
+        ChatMatchIndex index = index(3, PlacementPolicy.LEAST_POPULATED, 0);
+        open(index, 1L);
+
+        assertEquals(1L, join(index));
+        assertEquals(1L, join(index));
+        assertNull(index.reserveSeat(INTEREST, nextUserId++, List.of(INTEREST)));
+        assertTrue(index.hasOpenChats(INTEREST)); // Full, not missing: the joiner opens the next chat
+    }
+
+    @Test
+    void onlyOneConcurrentJoinOpensTheOverflowChat() throws Exception {
+        ChatMatchIndex index = index(1, PlacementPolicy.LEAST_POPULATED, 0);
+        open(index, 1L); // Full with its creator
+        int joiners = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(joiners);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> claims = new ArrayList<>();
+        try {
+            for (int i = 0; i < joiners; i++) {
+                long userId = 500 + i;
+                Callable<Boolean> claim = () -> {
+                    start.await();
+                    return index.reserveSeat(INTEREST, userId, List.of()) == null && index.claimOverflow(INTEREST, userId);
+                };
+                claims.add(pool.submit(claim));
+            }
+            start.countDown();
+            int winners = 0;
+            for (Future<Boolean> claim : claims) {
+                winners += claim.get() ? 1 : 0;
+            }
+            assertEquals(1, winners);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void overflowClaimIsReleasedOnceTheNewChatIsIndexed() {
+        ChatMatchIndex index = index(1, PlacementPolicy.LEAST_POPULATED, 0);
+        open(index, 1L);
+
+        assertTrue(index.claimOverflow(INTEREST, 42L));
+        assertFalse(index.claimOverflow(INTEREST, 43L));
+        index.openedAfterCommit(chat(2L, 42L), List.of()); // The claimant's chat
+        assertTrue(index.claimOverflow(INTEREST, 43L));
+    }
+
+    private ChatMatchIndex index(int capacity, PlacementPolicy placement, int fillTarget) {
+        return new ChatMatchIndex(mock(ChatRepository.class), mock(ChatParticipantRepository.class),
+                mock(ClusterBus.class), new ObjectMapper().findAndRegisterModules(), capacity, placement, fillTarget);
+    }
+
+    private void open(ChatMatchIndex index, Long chatId) {
+        index.openedAfterCommit(chat(chatId, nextUserId++), List.of(INTEREST));
+    }
+
+    private Long join(ChatMatchIndex index) {
+        return index.reserveSeat(INTEREST, nextUserId++, List.of(INTEREST)).getChatId();
+    }
+
+    private static Chat chat(Long chatId, Long creatorId) {
+        Interest interest = new Interest();
+        interest.setId(INTEREST);
+        User creator = new User();
+        creator.setId(creatorId);
+        Chat chat = new Chat();
+        chat.setId(chatId);
+        chat.setPrimaryInterest(interest);
+        chat.setCreator(creator);
+        chat.setExpiresAt(LocalDateTime.now().plusHours(1));
+        return chat;
+    }
+}
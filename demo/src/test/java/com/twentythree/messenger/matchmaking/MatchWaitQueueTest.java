@@ -0,0 +1,110 @@
+package com.twentythree.messenger.matchmaking;
+
+import com.twentythree.messenger.dto.chat.ChatDto;
+import com.twentythree.messenger.dto.chat.ChatParticipantDto;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.exception.NoChatAvailableException;
+import com.twentythree.messenger.service.ChatService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The queue with a mocked chat service, batches of two: a waiter is either seated or cancelled, never both.
+ */
+class MatchWaitQueueTest {
+
+    private static final Long INTEREST_ID = 5L;
+
+    private final ChatService chatService = mock(ChatService.class);
+    private MatchWaitQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        queue = new MatchWaitQueue(chatService, new SimpleMeterRegistry(), true, 2, 60_000, 50);
+        when(chatService.joinChatByInterest(eq(INTEREST_ID), any())).thenThrow(new NoChatAvailableException(INTEREST_ID, "Books"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.stop();
+    }
+
+    @Test
+    void cancelAfterTheWaiterWasTakenForSeatingLeavesItSeated() throws Exception {
+        CountDownLatch seating = new CountDownLatch(1);
+        CountDownLatch releaseSeating = new CountDownLatch(1);
+        ChatDto chat = chatWith(1L, 2L);
+        when(chatService.openChatForWaiters(eq(INTEREST_ID), anyList())).thenAnswer(invocation -> {
+            seating.countDown();
+            releaseSeating.await();
+            return chat;
+        });
+
+        CompletableFuture<ChatDto> first = queue.joinOrWait(INTEREST_ID, user(1L), null);
+        queue.joinOrWait(INTEREST_ID, user(2L), null);
+        assertTrue(seating.await(5, TimeUnit.SECONDS));
+
+        assertFalse(queue.cancel(1L, first)); // The HTTP timeout fired while the chat was being created
+        releaseSeating.countDown();
+        assertSame(chat, first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void disconnectCancelsOnlyThatSessionsWaiterAndItIsNotSeated() throws Exception {
+        ChatDto chat = chatWith(2L, 3L);
+        when(chatService.openChatForWaiters(eq(INTEREST_ID), anyList())).thenReturn(chat);
+
+        CompletableFuture<ChatDto> gone = queue.joinOrWait(INTEREST_ID, user(1L), "session-1");
+        queue.onDisconnect(disconnect("session-2"));
+        assertFalse(gone.isDone());
+        queue.onDisconnect(disconnect("session-1"));
+        assertTrue(gone.isCancelled());
+
+        CompletableFuture<ChatDto> stays = queue.joinOrWait(INTEREST_ID, user(2L), "session-2");
+        queue.joinOrWait(INTEREST_ID, user(3L), "session-3");
+        assertSame(chat, stays.get(5, TimeUnit.SECONDS));
+        verify(chatService, timeout(5000)).openChatForWaiters(INTEREST_ID, List.of(2L, 3L));
+    }
+
+    private static ChatDto chatWith(Long... userIds) {
+        ChatDto chat = new ChatDto();
+        chat.setId(100L);
+        chat.setParticipants(List.of(userIds).stream().map(userId -> {
+            ChatParticipantDto participant = new ChatParticipantDto();
+            participant.setUserId(userId);
+            return participant;
+        }).toList());
+        return chat;
+    }
+
+    private static User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    private static SessionDisconnectEvent disconnect(String sessionId) {
+        return new SessionDisconnectEvent(new Object(), mock(Message.class), sessionId, CloseStatus.NORMAL);
+    }
+}
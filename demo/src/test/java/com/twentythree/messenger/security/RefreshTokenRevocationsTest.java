@@ -0,0 +1,92 @@
+package com.twentythree.messenger.security;
+
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.entity.RefreshToken;
+import com.twentythree.messenger.repository.RefreshTokenRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The in-memory revocation check with a mocked repository standing in for the database. A filter sized for a handful
+ * of keys and a one-entry exact cache make rebuilds happen and make any filter miss show up as "not spent".
+ */
+class RefreshTokenRevocationsTest {
+
+    private final RefreshTokenRepository repository = mock(RefreshTokenRepository.class);
+    private final List<String> spentInDatabase = new ArrayList<>();
+    private final List<String> revokedFamiliesInDatabase = new ArrayList<>();
+
+    @Test
+    void noFalseNegativesAcrossRebuilds() {
+        when(repository.findSpentTokenHashes(any())).thenAnswer(invocation -> List.copyOf(spentInDatabase));
+        when(repository.findRevokedFamilies(any())).thenAnswer(invocation -> List.copyOf(revokedFamiliesInDatabase));
+        // A filter hit that misses the exact cache asks the database, which knows everything marked so far
+        when(repository.findByTokenHash(anyString())).thenAnswer(invocation ->
+                spentInDatabase.contains(invocation.<String>getArgument(0)) ? Optional.of(revokedRow()) : Optional.empty());
+        when(repository.existsByFamilyIdAndRevokedTrue(anyString()))
+                .thenAnswer(invocation -> revokedFamiliesInDatabase.contains(invocation.<String>getArgument(0)));
+        RefreshTokenRevocations revocations = new RefreshTokenRevocations(repository, mock(ClusterBus.class),
+                new SimpleMeterRegistry(), mock(PlatformTransactionManager.class), 8, 0.01, 1);
+        revocations.loadFromDatabase();
+
+        for (int i = 0; i < 200; i++) { // Capacity 8, then twice the live set: several rebuilds on the way
+            String hash = JwtTokenProvider.hashToken(UUID.randomUUID().toString());
+            String family = UUID.randomUUID().toString();
+            spentInDatabase.add(hash);
+            revokedFamiliesInDatabase.add(family);
+            revocations.markSpent(hash);
+            revocations.markFamilyRevoked(family);
+        }
+        verify(repository, atLeastOnce()).deleteExpired(any());
+
+        spentInDatabase.forEach(hash -> assertTrue(revocations.isSpent(hash), hash));
+        revokedFamiliesInDatabase.forEach(family -> assertTrue(revocations.isFamilyRevoked(family), family));
+        assertFalse(revocations.isFamilyRevoked(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    void bloomFilterHasNoFalseNegativesAndFewFalsePositives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        List<byte[]> added = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            byte[] digest = digest("added-" + i);
+            filter.put(digest);
+            added.add(digest);
+        }
+
+        added.forEach(digest -> assertTrue(filter.mightContain(digest)));
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (filter.mightContain(digest("absent-" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "false positives: " + falsePositives); // About 100 expected at 1%
+    }
+
+    private static RefreshToken revokedRow() {
+        RefreshToken row = new RefreshToken();
+        row.setRevoked(true);
+        return row;
+    }
+
+    private static byte[] digest(String value) {
+        return HexFormat.of().parseHex(JwtTokenProvider.hashToken(value));
+    }
+}
@@ -0,0 +1,173 @@
+package com.twentythree.messenger.service.impl;
+
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.cluster.ClusterMessage;
+import com.twentythree.messenger.cluster.JobLeases;
+import com.twentythree.messenger.dto.chat.ChatEndedEvent;
+import com.twentythree.messenger.exception.LeaseLostException;
+import com.twentythree.messenger.matchmaking.ChatMatchIndex;
+import com.twentythree.messenger.repository.ChatRepository;
+import com.twentythree.messenger.websocket.ChatTopicPublisher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The wheel with its collaborators mocked; transactions only run the after-commit callbacks of those that commit.
+ */
+class ChatExpiryWheelTest {
+
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 8;
+
+    private final ChatRepository chatRepository = mock(ChatRepository.class);
+    private final ChatTopicPublisher chatTopicPublisher = mock(ChatTopicPublisher.class);
+    private final ClusterBus clusterBus = mock(ClusterBus.class);
+    private final JobLeases jobLeases = mock(JobLeases.class);
+    private final JobLeases.Lease lease = new JobLeases.Lease(ChatExpiryWheel.TICK_JOB, 1);
+    private ChatExpiryWheel wheel;
+    private long now;
+
+    @BeforeEach
+    void setUp() {
+        wheel = new ChatExpiryWheel(chatRepository, mock(ChatMatchIndex.class), mock(RecentMessageCache.class),
+                chatTopicPublisher, clusterBus, jobLeases, new CommitOnlyTransactionManager(), new SimpleMeterRegistry(),
+                TICK_MS, WHEEL_SIZE);
+        now = System.currentTimeMillis() / TICK_MS * TICK_MS; // Start of the wheel's current tick
+        when(chatRepository.findActiveIdsByIdIn(anyCollection()))
+                .thenAnswer(invocation -> List.copyOf(invocation.<Collection<Long>>getArgument(0)));
+    }
+
+    @Test
+    void chatComesDueInItsTickAndNotBefore() {
+        wheel.scheduleAfterCommit(1L, at(now + 2500));
+
+        assertEquals(List.of(), wheel.advance(now + 1000));
+        assertEquals(List.of(1L), wheel.advance(now + 3000));
+    }
+
+    @Test
+    void deadlineMoreThanATurnAwayWaitsForItsOwnTurn() {
+        wheel.scheduleAfterCommit(1L, at(now + 10 * TICK_MS)); // Same slot as two ticks from now
+
+        assertEquals(List.of(), wheel.advance(now + 3 * TICK_MS));
+        assertEquals(List.of(), wheel.advance(now + 9 * TICK_MS));
+        assertEquals(List.of(1L), wheel.advance(now + 11 * TICK_MS));
+    }
+
+    @Test
+    void chatThatFailedToEndStaysOverdueUntilItDoes() {
+        wheel.scheduleAfterCommit(1L, at(now - 5000)); // Overdue already: due on the next tick
+        List<Long> due = wheel.advance(now + TICK_MS);
+        assertEquals(List.of(1L), due);
+
+        doThrow(new DataAccessResourceFailureException("Connection reset")).when(chatRepository).deactivateAll(anyCollection());
+        assertThrows(DataAccessResourceFailureException.class, () -> wheel.expire(due, lease));
+        assertEquals(List.of(1L), wheel.overdue());
+
+        reset(chatRepository);
+        doThrow(new LeaseLostException("moved on")).when(jobLeases).checkFence(lease);
+        assertThrows(LeaseLostException.class, () -> wheel.expire(due, lease));
+        assertEquals(List.of(1L), wheel.overdue());
+        verify(chatTopicPublisher, never()).publishToChat(any(), any());
+
+        reset(jobLeases);
+        when(chatRepository.findActiveIdsByIdIn(anyCollection())).thenReturn(List.of(1L));
+        assertEquals(1, wheel.expire(wheel.overdue(), lease));
+        assertEquals(List.of(), wheel.overdue());
+        assertEquals(0, wheel.size());
+        verify(chatTopicPublisher).publishToChat(eq(1L), any(ChatEndedEvent.class));
+        verify(clusterBus).publish(ChatExpiryWheel.CLUSTER_DESTINATION, "c:1");
+    }
+
+    @Test
+    void followerTurnsItsWheelAndDropsChatsTheLeaderEnded() {
+        ArgumentCaptor<Consumer<ClusterMessage>> subscriber = ArgumentCaptor.captor();
+        wheel.subscribeToCluster();
+        verify(clusterBus).subscribe(subscriber.capture());
+        wheel.scheduleAfterCommit(1L, at(now + 1500));
+        wheel.scheduleAfterCommit(2L, at(now + 1500));
+
+        assertEquals(List.of(1L, 2L), wheel.advance(now + 2 * TICK_MS).stream().sorted().toList());
+        subscriber.getValue().accept(new ClusterMessage("leader", 1, ChatExpiryWheel.CLUSTER_DESTINATION, "c:1", 0, 1));
+
+        assertEquals(List.of(2L), wheel.advance(now + 3 * TICK_MS)); // A later tick doesn't revisit older slots
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    void chatsAlreadyEndedElsewhereLeaveTheWheel() {
+        wheel.scheduleAfterCommit(1L, at(now - 1000));
+        wheel.advance(now + TICK_MS);
+        when(chatRepository.findActiveIdsByIdIn(anyCollection())).thenReturn(List.of());
+
+        assertEquals(0, wheel.expire(wheel.overdue(), lease));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void largeBacklogIsEndedInBoundedStatements() {
+        List<Long> ids = LongStream.rangeClosed(1, 2500).boxed().toList();
+        ids.forEach(id -> wheel.scheduleAfterCommit(id, at(now - 60_000)));
+        wheel.advance(now + TICK_MS);
+
+        assertEquals(2500, wheel.expire(wheel.overdue(), lease));
+        ArgumentCaptor<Collection<Long>> batches = ArgumentCaptor.captor();
+        verify(chatRepository, times(3)).deactivateAll(batches.capture());
+        assertTrue(batches.getAllValues().stream().allMatch(batch -> batch.size() <= ChatExpiryWheel.MAX_IDS_PER_STATEMENT));
+        verify(jobLeases, times(3)).checkFence(lease);
+        assertEquals(0, wheel.size());
+    }
+
+    private static LocalDateTime at(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    // No resources; Spring's synchronization support still runs afterCommit callbacks on commit only
+    private static class CommitOnlyTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.twentythree.messenger.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.entity.Chat;
+import com.twentythree.messenger.entity.Message;
+import com.twentythree.messenger.entity.User;
+import com.twentythree.messenger.entity.enums.MessageType;
+import com.twentythree.messenger.exception.ServiceBusyException;
+import com.twentythree.messenger.repository.MessageBatchWriter;
+import com.twentythree.messenger.service.impl.MessageWriteBehindQueue.QueueFullPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The queue against a fake batch writer: a stuck or unreachable database must never cost an acknowledged message.
+ */
+class MessageWriteBehindQueueTest {
+
+    @TempDir
+    Path spillDir;
+
+    private final AtomicLong ids = new AtomicLong(1000);
+    private final List<Long> written = new CopyOnWriteArrayList<>();
+    private final List<String> writerThreads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch insertStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseInsert = new CountDownLatch(1);
+    private final List<MessageWriteBehindQueue> queues = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        releaseInsert.countDown();
+        queues.forEach(MessageWriteBehindQueue::shutdown);
+    }
+
+    @Test
+    void rejectPolicyFailsFastWhenFull() throws Exception {
+        MessageWriteBehindQueue queue = queue(stuckWriter(), 1, QueueFullPolicy.REJECT, 60000);
+
+        queue.enqueue(message()); // Taken by the flusher, which then hangs in the insert
+        assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+        queue.enqueue(message()); // Fills the one slot
+        assertThrows(ServiceBusyException.class, () -> queue.enqueue(message()));
+    }
+
+    @Test
+    void blockPolicyWaitsForSpaceThenRejects() throws Exception {
+        MessageWriteBehindQueue queue = queue(stuckWriter(), 1, QueueFullPolicy.BLOCK, 60000);
+
+        queue.enqueue(message());
+        assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+        queue.enqueue(message());
+        long startedAt = System.nanoTime();
+        assertThrows(ServiceBusyException.class, () -> queue.enqueue(message()));
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(100)); // offer-timeout-ms
+    }
+
+    @Test
+    void writeThroughPolicyPersistsOnTheCallersThread() throws Exception {
+        MessageWriteBehindQueue queue = queue(stuckWriter(), 1, QueueFullPolicy.WRITE_THROUGH, 60000);
+
+        queue.enqueue(message());
+        assertTrue(insertStarted.await(5, TimeUnit.SECONDS));
+        queue.enqueue(message());
+        Message third = queue.enqueue(message());
+
+        assertEquals(List.of(third.getId()), written);
+        assertEquals(List.of(Thread.currentThread().getName()), writerThreads);
+    }
+
+    @Test
+    void shutdownWithTheDatabaseDownSpillsWithinTheDeadlineAndTheNextStartWritesThem() throws Exception {
+        MessageBatchWriter down = writer();
+        doAnswer(invocation -> {
+            throw new DataAccessResourceFailureException("Connection refused");
+        }).when(down).insertBatch(anyList());
+        MessageWriteBehindQueue queue = queue(down, 100, QueueFullPolicy.REJECT, 300);
+        List<Long> acknowledged = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            acknowledged.add(queue.enqueue(message()).getId());
+        }
+
+        long startedAt = System.nanoTime();
+        queue.shutdown();
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.SECONDS.toNanos(3), "shutdown overran its deadline");
+        assertEquals(1, files("spill-").size());
+
+        // Next start, database back; one row had made it in after all
+        MessageBatchWriter up = recordingWriter();
+        when(up.existingIds(anyList())).thenReturn(Set.of(acknowledged.get(0)));
+        queue(up, 100, QueueFullPolicy.REJECT, 300);
+
+        assertEquals(acknowledged.subList(1, 5), written.stream().sorted().toList());
+        assertEquals(0, files("spill-").size());
+    }
+
+    @Test
+    void refusedRowIsSetAsideAndTheRestOfTheBatchIsWritten() throws Exception {
+        MessageBatchWriter writer = writer();
+        long refused = 1001;
+        doAnswer(invocation -> {
+            List<MessageBatchWriter.Row> rows = invocation.getArgument(0);
+            if (rows.stream().anyMatch(row -> row.id() == refused)) {
+                throw new DataIntegrityViolationException("chat_id not present in table chats");
+            }
+            rows.forEach(row -> written.add(row.id()));
+            return null;
+        }).when(writer).insertBatch(anyList());
+        when(writer.existingIds(anyList())).thenReturn(Set.of());
+        MessageWriteBehindQueue queue = queue(writer, 100, QueueFullPolicy.REJECT, 300);
+
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(message());
+        }
+        queue.shutdown();
+
+        assertEquals(List.of(1000L, 1002L), written.stream().sorted().toList());
+        List<Path> rejected = files("rejected-");
+        assertEquals(1, rejected.size());
+        assertTrue(Files.readString(rejected.get(0)).contains("\"id\":" + refused));
+        assertEquals(0, files("spill-").size());
+    }
+
+    private MessageWriteBehindQueue queue(MessageBatchWriter writer, int capacity, QueueFullPolicy policy, long shutdownTimeoutMs) {
+        MessageWriteBehindQueue queue = new MessageWriteBehindQueue(writer, new ObjectMapper().findAndRegisterModules(),
+                true, capacity, 200, 20, policy, 100, shutdownTimeoutMs, spillDir.toString());
+        queues.add(queue);
+        queue.start();
+        return queue;
+    }
+
+    private MessageBatchWriter writer() {
+        MessageBatchWriter writer = mock(MessageBatchWriter.class);
+        when(writer.nextId()).thenAnswer(invocation -> ids.getAndIncrement());
+        return writer;
+    }
+
+    private MessageBatchWriter recordingWriter() {
+        MessageBatchWriter writer = writer();
+        doAnswer(invocation -> {
+            List<MessageBatchWriter.Row> rows = invocation.getArgument(0);
+            rows.forEach(row -> written.add(row.id()));
+            writerThreads.add(Thread.currentThread().getName());
+            return null;
+        }).when(writer).insertBatch(anyList());
+        return writer;
+    }
+
+    // The flusher's first insert hangs until the test ends; later inserts (other threads) go through
+    private MessageBatchWriter stuckWriter() {
+        MessageBatchWriter writer = recordingWriter();
+        doAnswer(invocation -> {
+            if (Thread.currentThread().getName().equals("message-write-behind")) {
+                insertStarted.countDown();
+                releaseInsert.await();
+                return null;
+            }
+            List<MessageBatchWriter.Row> rows = invocation.getArgument(0);
+            rows.forEach(row -> written.add(row.id()));
+            writerThreads.add(Thread.currentThread().getName());
+            return null;
+        }).when(writer).insertBatch(any());
+        return writer;
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(spillDir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix)).toList();
+        }
+    }
+
+    private static Message message() {
+        Chat chat = new Chat();
+        chat.setId(1L);
+        User sender = new User();
+        sender.setId(2L);
+        Message message = new Message();
+        message.setChat(chat);
+        message.setSender(sender);
+        message.setMessageType(MessageType.TEXT);
+        message.setContentText("hi");
+        return message;
+    }
+}
@@ -0,0 +1,112 @@
+package com.twentythree.messenger.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twentythree.messenger.cluster.ClusterBus;
+import com.twentythree.messenger.dto.message.MessageDto;
+import com.twentythree.messenger.entity.enums.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class RecentMessageCacheTest {
+
+    private static final Long CHAT = 1L;
+    private static final Long READER = 10L;
+    private static final LocalDateTime START = LocalDateTime.of(2026, 3, 1, 12, 0);
+
+    private final RecentMessageCache cache = new RecentMessageCache(true, 5, 1 << 20, mock(ClusterBus.class), new ObjectMapper());
+
+    @Test
+    void ringKeepsTheNewestMessagesInOrder() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 3));
+        for (long id = 4; id <= 8; id++) {
+            cache.appendAfterCommit(message(id));
+        }
+        cache.appendAfterCommit(message(6)); // Duplicate (e.g. the cluster copy of our own message)
+
+        RecentMessageCache.Snapshot snapshot = cache.find(CHAT, READER);
+        assertEquals(List.of(4L, 5L, 6L, 7L, 8L), ids(snapshot.messages()));
+        assertFalse(snapshot.complete()); // 1-3 were dropped to make room
+    }
+
+    @Test
+    void lateMessageIsInsertedInPlace() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 2));
+        cache.appendAfterCommit(message(4));
+        cache.appendAfterCommit(message(3)); // Committed after 4
+
+        assertEquals(List.of(1L, 2L, 3L, 4L), ids(cache.find(CHAT, READER).messages()));
+    }
+
+    @Test
+    void pagesBackwardsUntilTheBufferCanNoLongerTell() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 12)); // Buffer holds 8-12 of a longer history
+        RecentMessageCache.Snapshot snapshot = cache.find(CHAT, READER);
+
+        assertEquals(List.of(12L, 11L), ids(snapshot.newestBefore(null, 2)));
+        assertEquals(List.of(10L, 9L), ids(snapshot.newestBefore(message(11), 2)));
+        assertNull(snapshot.newestBefore(message(9), 2)); // Only 8 is here; 7 may exist: ask the DB
+    }
+
+    @Test
+    void completeHistoryPagesToTheStart() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 3));
+        RecentMessageCache.Snapshot snapshot = cache.find(CHAT, READER);
+
+        assertTrue(snapshot.complete());
+        assertEquals(List.of(2L, 1L), ids(snapshot.newestBefore(message(3), 10)));
+        assertEquals(List.of(), snapshot.newestBefore(message(1), 10));
+        assertEquals(List.of(2L, 3L), ids(snapshot.newerThan(1L)));
+    }
+
+    @Test
+    void snapshotsAreCopies() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 2));
+
+        cache.find(CHAT, READER).messages().get(0).setContentText("changed by a caller");
+
+        assertEquals("message 1", cache.find(CHAT, READER).messages().get(0).getContentText());
+    }
+
+    @Test
+    void endedChatIsNotWarmedAgain() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 2));
+        cache.evictAfterCommit(CHAT); // Deactivated
+
+        // A read that found the chat active just before it ended
+        assertNull(cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 2)));
+        assertNull(cache.find(CHAT, READER));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    void unknownReaderMisses() {
+        cache.warm(CHAT, Set.of(READER), () -> newestFirst(1, 2));
+
+        assertNull(cache.find(CHAT, 99L));
+    }
+
+    private static List<MessageDto> newestFirst(long fromId, long toId) {
+        List<MessageDto> messages = new ArrayList<>();
+        LongStream.iterate(toId, id -> id >= fromId, id -> id - 1).forEach(id -> messages.add(message(id)));
+        return messages;
+    }
+
+    private static MessageDto message(long id) {
+        return new MessageDto(id, CHAT, READER, "reader", null, MessageType.TEXT, "message " + id, null, START.plusSeconds(id));
+    }
+
+    private static List<Long> ids(List<MessageDto> messages) {
+        return messages.stream().map(MessageDto::getId).toList();
+    }
+}
@@ -0,0 +1,126 @@
+package com.twentythree.messenger.service.impl;
+
+import com.twentythree.messenger.dto.auth.JwtAuthResponse;
+import com.twentythree.messenger.dto.auth.LoginRequest;
+import com.twentythree.messenger.dto.auth.RegistrationRequest;
+import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.service.AuthService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.authentication.BadCredentialsException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Refresh token rotation against the test database: each token works once, and a token that comes back
+ * ends its whole login.
+ */
+@SpringBootTest
+class RefreshTokenRotationTest {
+
+    @Autowired
+    private AuthService authService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Test
+    void tokenRotatesOnce() throws Exception {
+        JwtAuthResponse login = registerAndLogin(nickname());
+
+        JwtAuthResponse refreshed = authService.refreshToken(login.getRefreshToken());
+        assertNotNull(refreshed.getAccessToken());
+        assertNotEquals(login.getRefreshToken(), refreshed.getRefreshToken());
+        assertNotNull(authService.refreshToken(refreshed.getRefreshToken()).getRefreshToken());
+    }
+
+    @Test
+    void reusedTokenRevokesItsFamilyButNotOtherLogins() throws Exception {
+        String nickname = nickname();
+        JwtAuthResponse login = registerAndLogin(nickname);
+        JwtAuthResponse otherDevice = login(nickname);
+        JwtAuthResponse refreshed = authService.refreshToken(login.getRefreshToken());
+
+        assertThrows(BadCredentialsException.class, () -> authService.refreshToken(login.getRefreshToken()));
+        // The legitimate holder's next token is gone too: which of the two was the thief is unknown
+        assertThrows(BadCredentialsException.class, () -> authService.refreshToken(refreshed.getRefreshToken()));
+        assertNotNull(authService.refreshToken(otherDevice.getRefreshToken()).getRefreshToken());
+    }
+
+    @Test
+    void ofTwoConcurrentRefreshesOnlyOneWins() throws Exception {
+        JwtAuthResponse login = registerAndLogin(nickname());
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<JwtAuthResponse>> attempts = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                attempts.add(pool.submit(() -> {
+                    start.await();
+                    return authService.refreshToken(login.getRefreshToken());
+                }));
+            }
+            start.countDown();
+
+            int won = 0;
+            int rejected = 0;
+            for (Future<JwtAuthResponse> attempt : attempts) {
+                try {
+                    attempt.get();
+                    won++;
+                } catch (ExecutionException e) {
+                    assertEquals(BadCredentialsException.class, e.getCause().getClass());
+                    rejected++;
+                }
+            }
+            assertEquals(1, won);
+            assertEquals(1, rejected);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void logoutEverywhereEndsRefresh() throws Exception {
+        String nickname = nickname();
+        JwtAuthResponse login = registerAndLogin(nickname);
+
+        authService.revokeAllTokens(userRepository.findByNickname(nickname).orElseThrow().getId());
+
+        assertThrows(BadCredentialsException.class, () -> authService.refreshToken(login.getRefreshToken()));
+        assertNotNull(authService.refreshToken(login(nickname).getRefreshToken()).getRefreshToken());
+    }
+
+    private JwtAuthResponse registerAndLogin(String nickname) throws Exception {
+        RegistrationRequest registration = new RegistrationRequest();
+        registration.setNickname(nickname);
+        registration.setPassword("secret123");
+        authService.registerUser(registration).get();
+        return login(nickname);
+    }
+
+    private JwtAuthResponse login(String nickname) throws Exception {
+        LoginRequest request = new LoginRequest();
+        request.setNickname(nickname);
+        request.setPassword("secret123");
+        CompletableFuture<JwtAuthResponse> login = authService.loginUser(request);
+        return login.get();
+    }
+
+    private static String nickname() {
+        return "r" + System.nanoTime() % 1_000_000_000L;
+    }
+}
@@ -0,0 +1,75 @@
+package com.twentythree.messenger.service.impl;
+
+import com.twentythree.messenger.dto.auth.RegistrationRequest;
+import com.twentythree.messenger.exception.BadRequestException;
+import com.twentythree.messenger.repository.UserRepository;
+import com.twentythree.messenger.service.AuthService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Registrations racing for one nickname: the unique constraint decides, and the loser gets a 400, not a 500.
+ */
+@SpringBootTest
+class RegistrationTest {
+
+    @Autowired
+    private AuthService authService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Test
+    void concurrentRegistrationsOfOneNicknameCreateOneUser() throws Exception {
+        String nickname = "g" + System.nanoTime() % 1_000_000_000L;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> attempts = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                attempts.add(pool.submit(() -> {
+                    start.await();
+                    CompletableFuture<String> registration = authService.registerUser(request(nickname));
+                    return registration.get();
+                }));
+            }
+            start.countDown();
+
+            int registered = 0;
+            for (Future<String> attempt : attempts) {
+                try {
+                    attempt.get();
+                    registered++;
+                } catch (ExecutionException e) {
+                    // Thrown by the early check, or by the insert (wrapped once more by the registration future)
+                    Throwable cause = e.getCause() instanceof ExecutionException wrapped ? wrapped.getCause() : e.getCause();
+                    assertTrue(cause instanceof BadRequestException, () -> "unexpected " + cause);
+                }
+            }
+            assertEquals(1, registered);
+            assertTrue(userRepository.findByNickname(nickname).isPresent());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static RegistrationRequest request(String nickname) {
+        RegistrationRequest request = new RegistrationRequest();
+        request.setNickname(nickname);
+        request.setPassword("secret123");
+        return request;
+    }
+}
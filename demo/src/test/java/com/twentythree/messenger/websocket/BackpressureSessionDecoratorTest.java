@@ -0,0 +1,123 @@
+package com.twentythree.messenger.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.SubscribableChannel;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A session whose socket write blocks (a slow client) while the broker keeps sending to it.
+ */
+class BackpressureSessionDecoratorTest {
+
+    private static final long HIGH_WATERMARK = 1000;
+    private static final long LOW_WATERMARK = 300;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final List<String> written = new CopyOnWriteArrayList<>();
+    private OutboundBackpressure backpressure;
+
+    @AfterEach
+    void stop() {
+        unblock.countDown();
+        backpressure.stop();
+    }
+
+    @Test
+    void slowSessionIsTrimmedPastHighWatermarkWithoutBlockingTheSender() throws Exception {
+        WebSocketSession socket = slowSocket();
+        BackpressureSessionDecorator session = decorate(socket, SlowConsumerPolicy.DROP_OLDEST);
+
+        session.sendMessage(frame(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS)); // The flush thread is now stuck on frame 0
+        int sent = 50;
+        for (int i = 1; i <= sent; i++) {
+            session.sendMessage(frame(i)); // Returns although nothing is being written
+            assertTrue(session.getQueuedBytes() <= HIGH_WATERMARK, "queue above high watermark after frame " + i);
+        }
+        long dropped = session.getDroppedFrames();
+        assertTrue(dropped > 0);
+        assertEquals(dropped, meterRegistry.get("websocket.outbound.evictions").tag("policy", "drop_oldest").counter().count());
+
+        unblock.countDown();
+        long expected = 1 + sent - dropped;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (written.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, written.size());
+        assertTrue(written.get(written.size() - 1).endsWith("#" + sent)); // Oldest went first, the newest got through
+        assertEquals(0, session.getQueuedBytes());
+    }
+
+    @Test
+    void disconnectPolicyClosesTheSlowSession() throws Exception {
+        WebSocketSession socket = slowSocket();
+        BackpressureSessionDecorator session = decorate(socket, SlowConsumerPolicy.DISCONNECT);
+
+        session.sendMessage(frame(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 50; i++) {
+            session.sendMessage(frame(i));
+        }
+        verify(socket, timeout(5000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertEquals(1, meterRegistry.get("websocket.outbound.disconnects").counter().count());
+        assertEquals(0, session.getQueuedBytes());
+    }
+
+    @Test
+    void stompHandlerKeepsOurDecoratorInsteadOfSpringsOwn() throws Exception {
+        BackpressureSubProtocolWebSocketHandler handler = new BackpressureSubProtocolWebSocketHandler(
+                mock(MessageChannel.class), mock(SubscribableChannel.class));
+        BackpressureSessionDecorator session = decorate(slowSocket(), SlowConsumerPolicy.DROP_OLDEST);
+
+        assertSame(session, handler.decorateSession(session));
+        assertInstanceOf(ConcurrentWebSocketSessionDecorator.class, handler.decorateSession(mock(WebSocketSession.class)));
+    }
+
+    private BackpressureSessionDecorator decorate(WebSocketSession socket, SlowConsumerPolicy policy) {
+        backpressure = new OutboundBackpressure(HIGH_WATERMARK, LOW_WATERMARK, 60000, policy, 1, meterRegistry);
+        return new BackpressureSessionDecorator(socket, backpressure);
+    }
+
+    // Every write blocks until the test lets go
+    private WebSocketSession slowSocket() throws Exception {
+        WebSocketSession socket = mock(WebSocketSession.class);
+        when(socket.getId()).thenReturn("slow");
+        doAnswer(invocation -> {
+            writing.countDown();
+            unblock.await();
+            written.add(((TextMessage) invocation.getArgument(0)).getPayload());
+            return null;
+        }).when(socket).sendMessage(any());
+        return socket;
+    }
+
+    private static TextMessage frame(int n) {
+        return new TextMessage("MESSAGE\ndestination:/topic/chat/1\n\n" + "x".repeat(80) + "#" + n);
+    }
+}